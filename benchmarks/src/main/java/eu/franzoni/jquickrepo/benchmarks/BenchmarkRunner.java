@@ -0,0 +1,44 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the selected benchmarks once per thread count, writing one JSON result file per run
+ * ({@code jmh-result-<threads>t.json}), so that before/after comparisons of a change can be
+ * diffed mechanically.
+ *
+ * System properties:
+ * <ul>
+ * <li>bench.include: benchmark regexp, default is every benchmark in this module;</li>
+ * <li>bench.threads: comma separated thread counts, default 1,4,16;</li>
+ * <li>bench.output: directory for the result files, default the working directory;</li>
+ * <li>bench.jvmArgs: extra arguments for the forked VMs, space separated.</li>
+ * </ul>
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        String include = System.getProperty("bench.include", "eu\\.franzoni\\.jquickrepo\\.benchmarks\\..*");
+        String output = System.getProperty("bench.output", ".");
+        String jvmArgs = System.getProperty("bench.jvmArgs", "").trim();
+
+        for (String threads : System.getProperty("bench.threads", "1,4,16").split(",")) {
+            int threadCount = Integer.parseInt(threads.trim());
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threadCount)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(output + "/jmh-result-" + threadCount + "t.json")
+                    .jvmArgsAppend(jvmArgs.isEmpty() ? new String[0] : jvmArgs.split("\\s+"))
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
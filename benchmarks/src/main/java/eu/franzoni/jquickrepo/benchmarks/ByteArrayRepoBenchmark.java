@@ -0,0 +1,185 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.repository.ByteArrayRepo;
+import eu.franzoni.jquickrepo.repository.Durability;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-entry operations of {@link ByteArrayRepo}. The repository directory is filled with
+ * {@code entryCount} tiny entries first, so that the directory size is realistic; the payload
+ * of the entries under test is {@code payloadSize} bytes. Writes are made with the given
+ * {@code durability}; run with several threads to see group commit at work.
+ *
+ * Throughput gives ops/sec, SampleTime gives the latency percentiles (p99 included).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ByteArrayRepoBenchmark {
+
+    private static final WritableByteChannel DISCARD = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+            int written = src.remaining();
+            src.position(src.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @State(Scope.Benchmark)
+    public static class RepoState {
+
+        @Param({"100", "10240", "1048576", "10485760"})
+        public int payloadSize;
+
+        @Param({"10", "10000", "1000000"})
+        public int entryCount;
+
+        @Param({"NONE", "FSYNC", "GROUP_COMMIT"})
+        public Durability durability;
+
+        File dir;
+        ByteArrayRepo repo;
+        byte[] payload;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            dir = Fixtures.createScratchDir("jquickrepo-bench");
+            payload = Fixtures.randomBytes(payloadSize, 42);
+            // the filler doesn't need to be durable, and would take ages if it were.
+            Fixtures.populateFiller(new ByteArrayRepo(dir), entryCount);
+            repo = new ByteArrayRepo.Builder(dir).durability(durability).build();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            repo.close();
+            Fixtures.deleteRecursively(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class HotEntry {
+
+        String id;
+
+        @Setup(Level.Trial)
+        public void setUp(RepoState state, ThreadIds ids) {
+            id = ids.hot();
+            state.repo.saveOrUpdate(id, state.payload);
+        }
+    }
+
+    /**
+     * An entry which exists right before every single invocation; used by the delete benchmark.
+     */
+    @State(Scope.Thread)
+    public static class DoomedEntry {
+
+        String id;
+
+        @Setup(Level.Invocation)
+        public void setUp(RepoState state, ThreadIds ids) {
+            id = ids.next();
+            state.repo.save(id, state.payload);
+        }
+    }
+
+    /**
+     * Removes whatever the save benchmark created, so that the directory size stays close to
+     * {@code entryCount} across iterations.
+     */
+    @State(Scope.Thread)
+    public static class FreshIds {
+
+        private ThreadIds ids;
+        private RepoState state;
+        private final List<String> created = new ArrayList<String>();
+
+        @Setup(Level.Trial)
+        public void setUp(RepoState state, ThreadIds ids) {
+            this.state = state;
+            this.ids = ids;
+        }
+
+        String next() {
+            String id = ids.next();
+            created.add(id);
+            return id;
+        }
+
+        @TearDown(Level.Iteration)
+        public void cleanUp() {
+            for (String id : created) {
+                state.repo.delete(id);
+            }
+            created.clear();
+        }
+    }
+
+    @Benchmark
+    public byte[] load(RepoState state, HotEntry entry) {
+        return state.repo.load(entry.id);
+    }
+
+    @Benchmark
+    public ByteBuffer loadMapped(RepoState state, HotEntry entry) {
+        return state.repo.loadMapped(entry.id);
+    }
+
+    @Benchmark
+    public long transferTo(RepoState state, HotEntry entry) throws IOException {
+        return state.repo.transferTo(entry.id, DISCARD);
+    }
+
+    @Benchmark
+    public void save(RepoState state, FreshIds ids) {
+        state.repo.save(ids.next(), state.payload);
+    }
+
+    @Benchmark
+    public void update(RepoState state, HotEntry entry) {
+        state.repo.update(entry.id, state.payload);
+    }
+
+    @Benchmark
+    public void saveOrUpdate(RepoState state, HotEntry entry) {
+        state.repo.saveOrUpdate(entry.id, state.payload);
+    }
+
+    @Benchmark
+    public void delete(RepoState state, DoomedEntry entry) {
+        state.repo.delete(entry.id);
+    }
+}
@@ -0,0 +1,114 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.repository.ByteArrayRepo;
+import eu.franzoni.jquickrepo.repository.DoWhileLocking;
+import eu.franzoni.jquickrepo.repository.Entry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-modify-write of a few shared entries, with a slow transform, while other threads load
+ * them: {@code locking} runs the transform inside {@link ByteArrayRepo#modifyWhileLocking}, so
+ * readers wait for it, {@code cas} runs it unlocked and retries with
+ * {@link ByteArrayRepo#compareAndSet} on a conflict. Compare the reader scores; the writer score
+ * counts completed updates, retries included in their time.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContendedUpdateBenchmark {
+
+    private static final int HOT_ENTRIES = 4;
+
+    @State(Scope.Group)
+    public static class RepoState {
+
+        @Param({"locking", "cas"})
+        public String update;
+
+        // tokens of Blackhole.consumeCPU spent transforming each value.
+        @Param({"0", "100000"})
+        public long transformCost;
+
+        File dir;
+        ByteArrayRepo repo;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            dir = Fixtures.createScratchDir("jquickrepo-bench");
+            repo = new ByteArrayRepo(dir);
+            for (int i = 0; i < HOT_ENTRIES; i++) {
+                repo.save(Fixtures.fillerId(i), Fixtures.randomBytes(100, i));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            Fixtures.deleteRecursively(dir);
+        }
+
+        byte[] transform(byte[] value) {
+            Blackhole.consumeCPU(transformCost);
+            byte[] transformed = value.clone();
+            transformed[0]++;
+            return transformed;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Turn {
+
+        int next;
+
+        String id() {
+            next = (next + 1) % HOT_ENTRIES;
+            return Fixtures.fillerId(next);
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public void writer(final RepoState state, Turn turn) {
+        String id = turn.id();
+        if ("locking".equals(state.update)) {
+            state.repo.modifyWhileLocking(id, new DoWhileLocking<byte[]>() {
+                @Override
+                public byte[] execute(byte[] data) {
+                    return state.transform(data);
+                }
+            });
+        } else {
+            Entry<byte[]> entry = state.repo.loadEntry(id);
+            while (!state.repo.compareAndSet(id, entry.getVersion(), state.transform(entry.getContent()))) {
+                entry = state.repo.loadEntry(id);
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public byte[] reader(RepoState state, Turn turn) {
+        return state.repo.load(turn.id());
+    }
+}
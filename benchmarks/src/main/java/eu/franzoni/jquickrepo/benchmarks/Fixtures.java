@@ -0,0 +1,80 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.repository.Repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Helpers shared by the benchmarks: scratch directories, payloads and pre-populated repositories.
+ */
+final class Fixtures {
+
+    private static final int FILLER_SIZE = 16;
+    private static final int STRING_CHUNK = 100;
+
+    private Fixtures() {
+    }
+
+    static File createScratchDir(String prefix) {
+        try {
+            return Files.createTempDirectory(prefix).toFile();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            throw new RuntimeException("could not delete " + file.getAbsolutePath());
+        }
+    }
+
+    static byte[] randomBytes(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * A list of strings whose marshalled form is roughly the given number of bytes.
+     */
+    static List<String> stringPayload(int approximateSize, long seed) {
+        Random random = new Random(seed);
+        int chunks = Math.max(1, approximateSize / STRING_CHUNK);
+        List<String> payload = new ArrayList<String>(chunks);
+        char[] chunk = new char[STRING_CHUNK];
+        for (int i = 0; i < chunks; i++) {
+            for (int j = 0; j < STRING_CHUNK; j++) {
+                chunk[j] = (char) ('a' + random.nextInt(26));
+            }
+            payload.add(new String(chunk));
+        }
+        return payload;
+    }
+
+    /**
+     * Brings the repository directory to the given number of entries, so that lookups and renames
+     * happen in a directory of realistic size. Filler entries are tiny, their content doesn't matter.
+     */
+    static void populateFiller(Repository<byte[]> repo, int count) {
+        byte[] filler = new byte[FILLER_SIZE];
+        for (int i = 0; i < count; i++) {
+            repo.saveOrUpdate(fillerId(i), filler);
+        }
+    }
+
+    static String fillerId(int i) {
+        return "filler-" + i;
+    }
+}
@@ -0,0 +1,64 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.concurrency.LockProvider;
+import eu.franzoni.jquickrepo.concurrency.StampedLockProvider;
+import eu.franzoni.jquickrepo.concurrency.StripedLockProvider;
+import eu.franzoni.jquickrepo.repository.ByteArrayRepo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every thread loading the same small entry, the case where readers contend on the lock of a
+ * single id; run with many threads (e.g. -t 64) to compare pessimistic and optimistic reads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotReadBenchmark {
+
+    private static final String HOT_ID = "hot";
+
+    @State(Scope.Benchmark)
+    public static class RepoState {
+
+        @Param({"striped", "stamped"})
+        public String locking;
+
+        File dir;
+        ByteArrayRepo repo;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            dir = Fixtures.createScratchDir("jquickrepo-bench");
+            LockProvider lockProvider = "stamped".equals(locking) ? new StampedLockProvider() : new StripedLockProvider();
+            repo = new ByteArrayRepo.Builder(dir).lockProvider(lockProvider).build();
+            repo.save(HOT_ID, Fixtures.randomBytes(100, 42));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            Fixtures.deleteRecursively(dir);
+        }
+    }
+
+    @Benchmark
+    public byte[] load(RepoState state) {
+        return state.repo.load(HOT_ID);
+    }
+}
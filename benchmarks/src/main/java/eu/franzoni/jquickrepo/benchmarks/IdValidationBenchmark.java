@@ -0,0 +1,64 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.repository.CharacterTableIdValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Validating a valid id of {@code idLength} characters: the regex the repositories used to
+ * compile on every call, the same regex precompiled, and {@link CharacterTableIdValidator}.
+ * Run with {@code -prof gc} to see the allocation per call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IdValidationBenchmark {
+
+    private static final String REGEX = "^[a-zA-Z0-9_\\-]+$";
+    private static final Pattern PATTERN = Pattern.compile(REGEX);
+
+    @Param({"8", "36", "128"})
+    public int idLength;
+
+    private String id;
+
+    @Setup
+    public void setUp() {
+        char[] chars = new char[idLength];
+        Arrays.fill(chars, 'a');
+        chars[idLength / 2] = '-';
+        id = new String(chars);
+    }
+
+    @Benchmark
+    public boolean regex() {
+        return id.matches(REGEX);
+    }
+
+    @Benchmark
+    public boolean precompiledRegex() {
+        return PATTERN.matcher(id).matches();
+    }
+
+    @Benchmark
+    public String characterTable() {
+        CharacterTableIdValidator.DEFAULT.validate(id);
+        return id;
+    }
+}
@@ -0,0 +1,80 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.repository.ByteArrayRepo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enumerating the ids of {@code entryCount} entries from the index, against listing the
+ * directory as opening a repository which wasn't closed does, and against reopening one which
+ * was (reading the saved ids back).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeysBenchmark {
+
+    @Param({"10000", "1000000"})
+    public int entryCount;
+
+    private File dir;
+    private ByteArrayRepo repo;
+    private String prefix;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = Fixtures.createScratchDir("jquickrepo-bench");
+        repo = new ByteArrayRepo(dir);
+        Fixtures.populateFiller(repo, entryCount);
+        // matches about one id in a hundred.
+        String middle = Fixtures.fillerId(entryCount / 2);
+        prefix = middle.substring(0, middle.length() - 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public List<String> keys() {
+        return repo.keys();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<String> keysWithPrefix() {
+        return repo.keys(prefix);
+    }
+
+    @Benchmark
+    public int openAfterCrash() {
+        return new ByteArrayRepo(dir).size();
+    }
+
+    @Benchmark
+    public int openAfterClose() {
+        ByteArrayRepo reopened = new ByteArrayRepo(dir);
+        int size = reopened.size();
+        reopened.close();
+        return size;
+    }
+}
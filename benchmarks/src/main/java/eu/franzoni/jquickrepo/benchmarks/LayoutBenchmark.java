@@ -0,0 +1,100 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.repository.ByteArrayRepo;
+import eu.franzoni.jquickrepo.repository.Entry;
+import eu.franzoni.jquickrepo.repository.Layout;
+import eu.franzoni.jquickrepo.repository.ShardedLayout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The flat layout against sharded ones, with {@code entryCount} entries of 100 bytes: saves of new
+ * ids, loads of random ones and full scans, serial or a task per top level shard.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LayoutBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class RepoState {
+
+        @Param({"flat", "1", "2"})
+        public String layout;
+
+        @Param({"10000", "1000000"})
+        public int entryCount;
+
+        File dir;
+        ByteArrayRepo repo;
+        byte[] payload;
+        ExecutorService executor;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            dir = Fixtures.createScratchDir("jquickrepo-bench");
+            repo = new ByteArrayRepo.Builder(dir).layout("flat".equals(layout) ? Layout.FLAT : new ShardedLayout(Integer.parseInt(layout))).build();
+            payload = Fixtures.randomBytes(100, 42);
+            Fixtures.populateFiller(repo, entryCount);
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            executor.shutdown();
+            Fixtures.deleteRecursively(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class RandomIds {
+
+        private final Random random = new Random(42);
+
+        String next(RepoState state) {
+            return Fixtures.fillerId(random.nextInt(state.entryCount));
+        }
+    }
+
+    @Benchmark
+    public void save(RepoState state, ThreadIds ids) {
+        state.repo.save(ids.next(), state.payload);
+    }
+
+    @Benchmark
+    public byte[] load(RepoState state, RandomIds ids) {
+        return state.repo.load(ids.next(state));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Collection<Entry<byte[]>> loadAll(RepoState state) {
+        return state.repo.loadAll();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Collection<Entry<byte[]>> loadAllParallel(RepoState state) {
+        return state.repo.loadAll(state.executor);
+    }
+}
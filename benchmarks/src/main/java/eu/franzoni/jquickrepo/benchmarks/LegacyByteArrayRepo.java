@@ -0,0 +1,109 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import com.google.common.io.Files;
+import eu.franzoni.jquickrepo.concurrency.LockProvider;
+import eu.franzoni.jquickrepo.concurrency.ScopedReadWriteLock;
+import eu.franzoni.jquickrepo.concurrency.StripedLockProvider;
+import eu.franzoni.jquickrepo.concurrency.WhileLocked;
+import eu.franzoni.jquickrepo.repository.DuplicateResourceIdException;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The java.io storage path ByteArrayRepo used before moving to NIO.2 (exists checks,
+ * createNewFile, buffered FileOutputStream, renameTo, File.list), with the same locking, kept
+ * only as the baseline of {@link NioComparisonBenchmark} and {@link SaveBenchmark}.
+ */
+class LegacyByteArrayRepo {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File persistenceDir;
+    private final LockProvider lockProvider = new StripedLockProvider();
+
+    LegacyByteArrayRepo(File persistenceDir) {
+        this.persistenceDir = persistenceDir;
+    }
+
+    void save(final String id, final byte[] data) {
+        new ScopedReadWriteLock<Void>(lockProvider.provideLock(id)).executeWithWriteLock(new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                if (new File(persistenceDir, id).exists()) {
+                    throw new DuplicateResourceIdException(id);
+                }
+                persistData(id, data);
+                return null;
+            }
+        });
+    }
+
+    void saveOrUpdate(final String id, final byte[] data) {
+        new ScopedReadWriteLock<Void>(lockProvider.provideLock(id)).executeWithWriteLock(new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                persistData(id, data);
+                return null;
+            }
+        });
+    }
+
+    private void persistData(String id, byte[] data) {
+        File datafile = new File(persistenceDir, id + ".part");
+        if (datafile.exists()) {
+            throw new RuntimeException("Part file exists already: " + datafile);
+        }
+        try {
+            boolean created = datafile.createNewFile();
+            if (datafile.exists() && !created) {
+                throw new RuntimeException("Part file exists already but was not created: " + datafile);
+            }
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(datafile), BUFFER_SIZE);
+            try {
+                out.write(data);
+                out.flush();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (!datafile.renameTo(new File(persistenceDir, id))) {
+            throw new RuntimeException("could not rename " + datafile);
+        }
+    }
+
+    byte[] load(final String id) {
+        return new ScopedReadWriteLock<byte[]>(lockProvider.provideLock(id)).executeWithReadLock(new WhileLocked<byte[]>() {
+            @Override
+            public byte[] execute() {
+                try {
+                    return Files.toByteArray(new File(persistenceDir, id));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    List<byte[]> loadAll() {
+        String[] names = this.persistenceDir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return (!name.endsWith(".part") && !name.startsWith("."));
+            }
+        });
+        List<byte[]> entries = new ArrayList<byte[]>(names.length);
+        for (String name : names) {
+            entries.add(load(name));
+        }
+        return entries;
+    }
+}
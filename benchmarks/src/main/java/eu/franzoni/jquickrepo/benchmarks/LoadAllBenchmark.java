@@ -0,0 +1,110 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.repository.ByteArrayRepo;
+import eu.franzoni.jquickrepo.repository.Entry;
+import eu.franzoni.jquickrepo.repository.MarshallingRepository;
+import eu.franzoni.jquickrepo.serialization.CompressingSerializer;
+import eu.franzoni.jquickrepo.serialization.CompressionCodec;
+import eu.franzoni.jquickrepo.serialization.XStreamSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full scans. Both repositories read the very same directory, which is populated through the
+ * marshalling repository; the byte array figures are therefore the I/O share of the marshalling ones.
+ * {@code compression} is how the XML entries are stored, see {@link CompressingSerializer}.
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoadAllBenchmark {
+
+    private static final int IN_FLIGHT = 256;
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int entryCount;
+
+    @Param({"100", "10240"})
+    public int payloadSize;
+
+    @Param({"none", "deflate", "lzf"})
+    public String compression;
+
+    private File dir;
+    private ByteArrayRepo byteArrayRepo;
+    private MarshallingRepository<List<String>> marshallingRepo;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = Fixtures.createScratchDir("jquickrepo-bench");
+        byteArrayRepo = new ByteArrayRepo(dir);
+        XStreamSerializer<List<String>> xstream = new XStreamSerializer<List<String>>();
+        if ("none".equals(compression)) {
+            marshallingRepo = new MarshallingRepository<List<String>>(dir, xstream);
+        } else {
+            CompressionCodec codec = "lzf".equals(compression) ? CompressionCodec.lzf() : CompressionCodec.deflate();
+            marshallingRepo = new MarshallingRepository<List<String>>(dir, new CompressingSerializer<List<String>>(xstream, codec, CompressingSerializer.DEFAULT_THRESHOLD));
+        }
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<String> payload = Fixtures.stringPayload(payloadSize, 42);
+        for (int i = 0; i < entryCount; i++) {
+            marshallingRepo.save("entry-" + i, payload);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+        Fixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public Collection<Entry<byte[]>> byteArrayLoadAll() {
+        return byteArrayRepo.loadAll();
+    }
+
+    @Benchmark
+    public Collection<Entry<List<String>>> marshallingLoadAll() {
+        return marshallingRepo.loadAll();
+    }
+
+    @Benchmark
+    public void byteArrayIterateAllParallel(Blackhole blackhole) {
+        consume(byteArrayRepo.iterateAll(executor, IN_FLIGHT), blackhole);
+    }
+
+    @Benchmark
+    public void marshallingIterateAllParallel(Blackhole blackhole) {
+        consume(marshallingRepo.iterateAll(executor, IN_FLIGHT), blackhole);
+    }
+
+    private static <T> void consume(Iterator<Entry<T>> iterator, Blackhole blackhole) {
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+    }
+}
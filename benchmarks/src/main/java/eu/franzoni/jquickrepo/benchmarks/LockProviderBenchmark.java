@@ -0,0 +1,83 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.concurrency.LockProvider;
+import eu.franzoni.jquickrepo.concurrency.MultipleResourceLock;
+import eu.franzoni.jquickrepo.concurrency.StripedLockProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The locking overhead every repository operation pays: getting the lock of an id, then taking
+ * and releasing it. Each thread cycles over its own {@code idCount} ids.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LockProviderBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ProviderState {
+
+        @Param({"striped", "perId"})
+        public String provider;
+
+        LockProvider lockProvider;
+
+        @Setup
+        public void setUp() {
+            lockProvider = "striped".equals(provider) ? new StripedLockProvider() : new MultipleResourceLock();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Ids {
+
+        @Param({"1", "10000"})
+        public int idCount;
+
+        String[] ids;
+        int next;
+
+        @Setup
+        public void setUp(ThreadIds threadIds) {
+            ids = new String[idCount];
+            for (int i = 0; i < idCount; i++) {
+                ids[i] = threadIds.next();
+            }
+        }
+
+        String next() {
+            String id = ids[next];
+            next = (next + 1) % ids.length;
+            return id;
+        }
+    }
+
+    @Benchmark
+    public void readLock(ProviderState state, Ids ids) {
+        Lock lock = state.lockProvider.provideLock(ids.next()).readLock();
+        lock.lock();
+        lock.unlock();
+    }
+
+    @Benchmark
+    public void writeLock(ProviderState state, Ids ids) {
+        Lock lock = state.lockProvider.provideLock(ids.next()).writeLock();
+        lock.lock();
+        lock.unlock();
+    }
+}
@@ -0,0 +1,169 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.repository.ByteArrayRepo;
+import eu.franzoni.jquickrepo.repository.Copier;
+import eu.franzoni.jquickrepo.repository.DoWhileLocking;
+import eu.franzoni.jquickrepo.repository.MarshallingRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-entry operations of {@link MarshallingRepository}; same layout as
+ * {@link ByteArrayRepoBenchmark}, but the payload is a list of strings whose marshalled form
+ * is roughly {@code payloadSize} bytes, so that the marshalling cost is part of the measure;
+ * {@code serializer} picks the serialization format.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarshallingRepositoryBenchmark {
+
+    private static final long OBJECT_CACHE_BYTES = 256L * 1024 * 1024;
+
+    @State(Scope.Benchmark)
+    public static class RepoState {
+
+        @Param({"100", "10240", "1048576", "10485760"})
+        public int payloadSize;
+
+        @Param({"10", "10000", "1000000"})
+        public int entryCount;
+
+        @Param({"xstream", "java", "data"})
+        public String serializer;
+
+        File dir;
+        MarshallingRepository<List<String>> repo;
+        MarshallingRepository<List<String>> cachingRepo;
+        List<String> payload;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            dir = Fixtures.createScratchDir("jquickrepo-bench");
+            Fixtures.populateFiller(new ByteArrayRepo(dir), entryCount);
+            repo = new MarshallingRepository<List<String>>(dir, StringListSerializer.named(serializer));
+            cachingRepo = new MarshallingRepository<List<String>>(dir, StringListSerializer.named(serializer), OBJECT_CACHE_BYTES, new Copier<List<String>>() {
+                @Override
+                public List<String> copy(List<String> original) {
+                    return original;
+                }
+            });
+            payload = Fixtures.stringPayload(payloadSize, 42);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            Fixtures.deleteRecursively(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class HotEntry {
+
+        String id;
+
+        @Setup(Level.Trial)
+        public void setUp(RepoState state, ThreadIds ids) {
+            id = ids.hot();
+            state.repo.saveOrUpdate(id, state.payload);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DoomedEntry {
+
+        String id;
+
+        @Setup(Level.Invocation)
+        public void setUp(RepoState state, ThreadIds ids) {
+            id = ids.next();
+            state.repo.save(id, state.payload);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FreshIds {
+
+        private ThreadIds ids;
+        private RepoState state;
+        private final List<String> created = new ArrayList<String>();
+
+        @Setup(Level.Trial)
+        public void setUp(RepoState state, ThreadIds ids) {
+            this.state = state;
+            this.ids = ids;
+        }
+
+        String next() {
+            String id = ids.next();
+            created.add(id);
+            return id;
+        }
+
+        @TearDown(Level.Iteration)
+        public void cleanUp() {
+            for (String id : created) {
+                state.repo.delete(id);
+            }
+            created.clear();
+        }
+    }
+
+    @Benchmark
+    public List<String> load(RepoState state, HotEntry entry) {
+        return state.repo.load(entry.id);
+    }
+
+    @Benchmark
+    public List<String> cachedLoad(RepoState state, HotEntry entry) {
+        return state.cachingRepo.load(entry.id);
+    }
+
+    @Benchmark
+    public void save(RepoState state, FreshIds ids) {
+        state.repo.save(ids.next(), state.payload);
+    }
+
+    @Benchmark
+    public void update(RepoState state, HotEntry entry) {
+        state.repo.update(entry.id, state.payload);
+    }
+
+    @Benchmark
+    public void saveOrUpdate(RepoState state, HotEntry entry) {
+        state.repo.saveOrUpdate(entry.id, state.payload);
+    }
+
+    @Benchmark
+    public void delete(RepoState state, DoomedEntry entry) {
+        state.repo.delete(entry.id);
+    }
+
+    @Benchmark
+    public void modifyWhileLocking(final RepoState state, HotEntry entry) {
+        state.repo.modifyWhileLocking(entry.id, new DoWhileLocking<List<String>>() {
+            @Override
+            public List<String> execute(List<String> data) {
+                return state.payload;
+            }
+        });
+    }
+}
@@ -0,0 +1,99 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.repository.ByteArrayRepo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The NIO.2 storage path of {@link ByteArrayRepo} against the java.io one it replaced
+ * ({@link LegacyByteArrayRepo}), on the same directory layout; {@code io} picks the implementation.
+ * loadAll reads {@code entryCount} small entries, so it's dominated by listing and opening files.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NioComparisonBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class RepoState {
+
+        @Param({"legacy", "nio"})
+        public String io;
+
+        @Param({"100", "10240", "1048576"})
+        public int payloadSize;
+
+        @Param({"10", "10000"})
+        public int entryCount;
+
+        File dir;
+        ByteArrayRepo repo;
+        LegacyByteArrayRepo legacyRepo;
+        byte[] payload;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            dir = Fixtures.createScratchDir("jquickrepo-bench");
+            repo = new ByteArrayRepo(dir);
+            legacyRepo = new LegacyByteArrayRepo(dir);
+            payload = Fixtures.randomBytes(payloadSize, 42);
+            Fixtures.populateFiller(repo, entryCount);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            Fixtures.deleteRecursively(dir);
+        }
+
+        boolean legacy() {
+            return "legacy".equals(io);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class HotEntry {
+
+        String id;
+
+        @Setup(Level.Trial)
+        public void setUp(RepoState state, ThreadIds ids) {
+            id = ids.hot();
+            state.repo.saveOrUpdate(id, state.payload);
+        }
+    }
+
+    @Benchmark
+    public void saveOrUpdate(RepoState state, HotEntry entry) {
+        if (state.legacy()) {
+            state.legacyRepo.saveOrUpdate(entry.id, state.payload);
+        } else {
+            state.repo.saveOrUpdate(entry.id, state.payload);
+        }
+    }
+
+    @Benchmark
+    public byte[] load(RepoState state, HotEntry entry) {
+        return state.legacy() ? state.legacyRepo.load(entry.id) : state.repo.load(entry.id);
+    }
+
+    @Benchmark
+    public int loadAll(RepoState state) {
+        return state.legacy() ? state.legacyRepo.loadAll().size() : state.repo.loadAll().size();
+    }
+}
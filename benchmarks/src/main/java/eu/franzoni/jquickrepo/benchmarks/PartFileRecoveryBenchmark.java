@@ -0,0 +1,110 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.repository.ByteArrayRepo;
+import eu.franzoni.jquickrepo.repository.Layout;
+import eu.franzoni.jquickrepo.repository.PartFileRecovery;
+import eu.franzoni.jquickrepo.repository.ShardedLayout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup recovery of a directory of {@code entryCount} entries, {@code partFiles} of which were
+ * left half written by a crash: serial, or a task per top level shard.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PartFileRecoveryBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class RepoState {
+
+        @Param({"flat", "2"})
+        public String layout;
+
+        @Param({"100000", "1000000"})
+        public int entryCount;
+
+        @Param({"100"})
+        public int partFiles;
+
+        File dir;
+        // where the crash leaves its part files: next to some of the entries.
+        final List<Path> parts = new ArrayList<Path>();
+        ExecutorService executor;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = Fixtures.createScratchDir("jquickrepo-bench");
+            ByteArrayRepo repo = new ByteArrayRepo.Builder(dir).layout("flat".equals(layout) ? Layout.FLAT : new ShardedLayout(Integer.parseInt(layout))).build();
+            Fixtures.populateFiller(repo, entryCount);
+            repo.close();
+
+            final Set<String> crashed = new HashSet<String>();
+            for (int i = 0; i < partFiles; i++) {
+                crashed.add(Fixtures.fillerId(i * (entryCount / partFiles)));
+            }
+            Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (crashed.contains(file.getFileName().toString())) {
+                        parts.add(file.resolveSibling(file.getFileName() + ".1.part"));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+
+        @Setup(Level.Invocation)
+        public void crash() throws IOException {
+            for (Path part : parts) {
+                Files.write(part, new byte[16]);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            executor.shutdown();
+            Fixtures.deleteRecursively(dir);
+        }
+    }
+
+    @Benchmark
+    public PartFileRecovery.Report recover(RepoState state) {
+        return PartFileRecovery.recover(state.dir, null);
+    }
+
+    @Benchmark
+    public PartFileRecovery.Report recoverParallel(RepoState state) {
+        return PartFileRecovery.recover(state.dir, state.executor);
+    }
+}
@@ -0,0 +1,79 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.repository.ByteArrayRepo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves of new entries, where {@link ByteArrayRepo} relies on a hard link to refuse existing
+ * ids, against the java.io path checking for them first ({@link LegacyByteArrayRepo}); every
+ * invocation saves a new id. The filesystem calls made by each save (payload write excluded) are:
+ * <ul>
+ * <li>legacy: stat(entry), stat(part), open+close(part, O_CREAT|O_EXCL), stat(part),
+ * open(part, O_TRUNC), close, rename: six path lookups;</li>
+ * <li>nio: open(part, O_CREAT|O_EXCL), close, link(part, entry), unlink(part): three.</li>
+ * </ul>
+ * Check them with {@code strace -f -c -e trace=%file java -jar benchmarks.jar SaveBenchmark}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaveBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class RepoState {
+
+        @Param({"legacy", "nio"})
+        public String io;
+
+        @Param({"100", "10240"})
+        public int payloadSize;
+
+        @Param({"10", "10000"})
+        public int entryCount;
+
+        File dir;
+        ByteArrayRepo repo;
+        LegacyByteArrayRepo legacyRepo;
+        byte[] payload;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            dir = Fixtures.createScratchDir("jquickrepo-bench");
+            repo = new ByteArrayRepo(dir);
+            legacyRepo = new LegacyByteArrayRepo(dir);
+            payload = Fixtures.randomBytes(payloadSize, 42);
+            Fixtures.populateFiller(repo, entryCount);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            Fixtures.deleteRecursively(dir);
+        }
+    }
+
+    @Benchmark
+    public void save(RepoState state, ThreadIds ids) {
+        if ("legacy".equals(state.io)) {
+            state.legacyRepo.save(ids.next(), state.payload);
+        } else {
+            state.repo.save(ids.next(), state.payload);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.repository.ByteArrayRepo;
+import eu.franzoni.jquickrepo.repository.Entry;
+import eu.franzoni.jquickrepo.repository.Snapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What keeping superseded versions costs a write: an extra hard link, and the unlink of the
+ * version falling out of the retention window, versus the plain rename with no history (the
+ * default). {@code snapshot} keeps one snapshot open for the whole trial, pinning what the entries
+ * were at its start. {@code loadAll} compares a snapshot scan with a plain one.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class RepoState {
+
+        @Param({"0", "2"})
+        public int retainedVersions;
+
+        @Param({"false", "true"})
+        public boolean snapshot;
+
+        @Param({"1000"})
+        public int entryCount;
+
+        File dir;
+        ByteArrayRepo repo;
+        Snapshot<byte[]> openSnapshot;
+        byte[] payload;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            dir = Fixtures.createScratchDir("jquickrepo-bench");
+            repo = new ByteArrayRepo.Builder(dir).retainedVersions(retainedVersions).build();
+            payload = Fixtures.randomBytes(100, 42);
+            Fixtures.populateFiller(repo, entryCount);
+            if (snapshot) {
+                openSnapshot = repo.snapshot();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            if (openSnapshot != null) {
+                openSnapshot.close();
+            }
+            repo.close();
+            Fixtures.deleteRecursively(dir);
+        }
+    }
+
+    @Benchmark
+    public void update(RepoState state, ThreadIds ids) {
+        state.repo.saveOrUpdate(ids.hot(), state.payload);
+    }
+
+    @Benchmark
+    public Collection<Entry<byte[]>> loadAll(RepoState state) {
+        if (state.openSnapshot != null) {
+            return state.openSnapshot.loadAll();
+        }
+        return state.repo.loadAll();
+    }
+}
@@ -0,0 +1,49 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.serialization.DataSerializer;
+import eu.franzoni.jquickrepo.serialization.JavaSerializer;
+import eu.franzoni.jquickrepo.serialization.Serializer;
+import eu.franzoni.jquickrepo.serialization.XStreamSerializer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hand written binary serializer for the benchmark payload.
+ */
+class StringListSerializer extends DataSerializer<List<String>> {
+
+    static Serializer<List<String>> named(String name) {
+        if ("xstream".equals(name)) {
+            return new XStreamSerializer<List<String>>();
+        }
+        if ("java".equals(name)) {
+            return new JavaSerializer<List<String>>();
+        }
+        if ("data".equals(name)) {
+            return new StringListSerializer();
+        }
+        throw new IllegalArgumentException("unknown serializer " + name);
+    }
+
+    @Override
+    protected void write(List<String> obj, DataOutput out) throws IOException {
+        out.writeInt(obj.size());
+        for (String s : obj) {
+            out.writeUTF(s);
+        }
+    }
+
+    @Override
+    protected List<String> read(DataInput in) throws IOException {
+        int size = in.readInt();
+        List<String> data = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            data.add(in.readUTF());
+        }
+        return data;
+    }
+}
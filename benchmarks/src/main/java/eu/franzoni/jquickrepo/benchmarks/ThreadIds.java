@@ -0,0 +1,27 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives every benchmark thread its own id namespace, so that concurrent writers measure
+ * throughput instead of fighting over a single per-id lock.
+ */
+@State(Scope.Thread)
+public class ThreadIds {
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private final int thread = THREADS.getAndIncrement();
+    private long sequence;
+
+    public String hot() {
+        return "hot-" + thread;
+    }
+
+    public String next() {
+        return "t" + thread + "-" + (sequence++);
+    }
+}
@@ -0,0 +1,93 @@
+package eu.franzoni.jquickrepo.benchmarks;
+
+import eu.franzoni.jquickrepo.repository.ByteArrayRepo;
+import eu.franzoni.jquickrepo.repository.Repository;
+import eu.franzoni.jquickrepo.repository.WriteBehindRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * saveOrUpdate of a few hot ids, straight to a {@link ByteArrayRepo} or buffered by a
+ * {@link WriteBehindRepository} flushing every few milliseconds; the persisted writes per trial
+ * are printed at teardown, to show how many were coalesced.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class WriteBehindBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class RepoState {
+
+        @Param({"direct", "writeBehind"})
+        public String mode;
+
+        @Param({"16"})
+        public int hotIds;
+
+        @Param({"10"})
+        public long flushIntervalMillis;
+
+        File dir;
+        Repository<byte[]> repo;
+        WriteBehindRepository<byte[]> writeBehind;
+        byte[] payload;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            dir = Fixtures.createScratchDir("jquickrepo-bench");
+            ByteArrayRepo diskRepo = new ByteArrayRepo(dir);
+            if ("writeBehind".equals(mode)) {
+                writeBehind = new WriteBehindRepository<byte[]>(diskRepo, 1000, flushIntervalMillis, TimeUnit.MILLISECONDS);
+                repo = writeBehind;
+            } else {
+                repo = diskRepo;
+            }
+            payload = Fixtures.randomBytes(1024, 42);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            if (writeBehind != null) {
+                writeBehind.close();
+                System.out.println(String.format("%n%d writes buffered, %d persisted",
+                        writeBehind.getBufferedWriteCount(), writeBehind.getPersistedWriteCount()));
+            }
+            Fixtures.deleteRecursively(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Turn {
+
+        int next;
+
+        String id(int hotIds) {
+            next = (next + 1) % hotIds;
+            return Fixtures.fillerId(next);
+        }
+    }
+
+    @Benchmark
+    public void saveOrUpdate(RepoState state, Turn turn) {
+        state.repo.saveOrUpdate(turn.id(state.hotIds), state.payload);
+    }
+}
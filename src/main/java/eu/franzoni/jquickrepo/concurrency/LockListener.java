@@ -0,0 +1,9 @@
+package eu.franzoni.jquickrepo.concurrency;
+
+/**
+ * Told how long each lock taken through a {@link ScopedReadWriteLock} was waited for and held.
+ */
+public interface LockListener {
+
+    void released(boolean write, long waitNanos, long holdNanos);
+}
@@ -0,0 +1,24 @@
+package eu.franzoni.jquickrepo.concurrency;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * Hands out the lock guarding each resource id. Different ids may share a lock, and locks need not
+ * be reentrant ({@link StampedLockProvider}'s aren't), so a thread holding a lock from a provider
+ * must not take another one from it: it could be the very lock held, or one a thread waiting on
+ * the held lock holds. Locks for several ids are taken together, through
+ * {@link #provideLocks(Collection)}. Nesting is forbidden for the repositories' callers too: don't
+ * use a repository from inside its modifyWhileLocking.
+ */
+public interface LockProvider {
+
+    ReadWriteLock provideLock(String id);
+
+    /**
+     * Locks guarding all the given ids, each lock once, in a consistent order: callers taking them
+     * in the returned order can't deadlock with each other.
+     */
+    List<ReadWriteLock> provideLocks(Collection<String> ids);
+}
@@ -2,19 +2,48 @@ package eu.franzoni.jquickrepo.concurrency;
 
 import com.google.common.collect.MapMaker;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-
-public class MultipleResourceLock {
+/**
+ * One lock per id, kept as long as someone references it; ids never share a lock, but every call
+ * costs a map lookup and locks get allocated and collected all the time.
+ */
+public class MultipleResourceLock implements LockProvider {
 
     private ConcurrentMap<String, ReentrantReadWriteLock> locks =
             new MapMaker().weakValues().makeMap();
 
+    @Override
     public ReadWriteLock provideLock(final String id) {
-        this.locks.putIfAbsent(id, new ReentrantReadWriteLock());
-        return this.locks.get(id);
+        ReentrantReadWriteLock lock = this.locks.get(id);
+        if (lock == null) {
+            // whatever putIfAbsent returns is strongly referenced from now on, so unlike a
+            // following get() it can't have been collected in the meantime.
+            ReentrantReadWriteLock created = new ReentrantReadWriteLock();
+            lock = this.locks.putIfAbsent(id, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Sorted by id.
+     */
+    @Override
+    public List<ReadWriteLock> provideLocks(final Collection<String> ids) {
+        List<ReadWriteLock> sorted = new ArrayList<ReadWriteLock>(ids.size());
+        for (String id : new TreeSet<String>(ids)) {
+            sorted.add(provideLock(id));
+        }
+        return sorted;
     }
 
 }
@@ -0,0 +1,32 @@
+package eu.franzoni.jquickrepo.concurrency;
+
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * Holds the write locks of several resources at once; locks are taken in list order and released
+ * in reverse, see {@link MultipleResourceLock#provideLocks(java.util.Collection)}.
+ */
+public class ScopedMultipleWriteLock<T> {
+
+    private final List<ReadWriteLock> readWriteLocks;
+
+    public ScopedMultipleWriteLock(List<ReadWriteLock> locks) {
+        this.readWriteLocks = locks;
+    }
+
+    public T executeWithWriteLocks(WhileLocked<T> whileLocked) {
+        int locked = 0;
+        try {
+            for (ReadWriteLock lock : this.readWriteLocks) {
+                lock.writeLock().lock();
+                locked++;
+            }
+            return whileLocked.execute();
+        } finally {
+            for (int i = locked - 1; i >= 0; i--) {
+                this.readWriteLocks.get(i).writeLock().unlock();
+            }
+        }
+    }
+}
@@ -1,36 +1,56 @@
 package eu.franzoni.jquickrepo.concurrency;
 
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 
 public class ScopedReadWriteLock<T> {
 
     private final ReadWriteLock readWriteLock;
+    private final LockListener listener;
 
     public ScopedReadWriteLock(java.util.concurrent.locks.ReadWriteLock lock) {
+        this(lock, null);
+    }
+
+    /**
+     * @param listener told about each lock once released, null for none
+     */
+    public ScopedReadWriteLock(ReadWriteLock lock, LockListener listener) {
         this.readWriteLock = lock;
+        this.listener = listener;
     }
 
+    // unlocking goes through readWriteLock again on purpose: the read and write lock views don't
+    // reference their ReadWriteLock, which could otherwise be collected (and dropped from a
+    // weak valued MultipleResourceLock) while still held.
+
     public T executeWithWriteLock(WhileLocked<T> whileLocked) {
-        final Lock writeLock = this.readWriteLock.writeLock();
-        writeLock.lock();
+        long requested = this.listener != null ? System.nanoTime() : 0;
+        this.readWriteLock.writeLock().lock();
+        long acquired = this.listener != null ? System.nanoTime() : 0;
 
         try {
             return whileLocked.execute();
         } finally {
-            writeLock.unlock();
+            this.readWriteLock.writeLock().unlock();
+            if (this.listener != null) {
+                this.listener.released(true, acquired - requested, System.nanoTime() - acquired);
+            }
         }
 
     }
 
     public T executeWithReadLock(WhileLocked<T> whileLocked) {
-        final Lock readLock = this.readWriteLock.readLock();
-        readLock.lock();
+        long requested = this.listener != null ? System.nanoTime() : 0;
+        this.readWriteLock.readLock().lock();
+        long acquired = this.listener != null ? System.nanoTime() : 0;
 
         try {
             return whileLocked.execute();
         } finally {
-            readLock.unlock();
+            this.readWriteLock.readLock().unlock();
+            if (this.listener != null) {
+                this.listener.released(false, acquired - requested, System.nanoTime() - acquired);
+            }
         }
 
     }
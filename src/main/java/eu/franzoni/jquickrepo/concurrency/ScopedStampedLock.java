@@ -0,0 +1,55 @@
+package eu.franzoni.jquickrepo.concurrency;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * {@link ScopedReadWriteLock} counterpart for a {@link StampedLock}, adding optimistic reads.
+ */
+public class ScopedStampedLock<T> {
+
+    private final StampedLock stampedLock;
+
+    public ScopedStampedLock(StampedLock lock) {
+        this.stampedLock = lock;
+    }
+
+    public T executeWithWriteLock(WhileLocked<T> whileLocked) {
+        long stamp = this.stampedLock.writeLock();
+        try {
+            return whileLocked.execute();
+        } finally {
+            this.stampedLock.unlockWrite(stamp);
+        }
+    }
+
+    public T executeWithReadLock(WhileLocked<T> whileLocked) {
+        long stamp = this.stampedLock.readLock();
+        try {
+            return whileLocked.execute();
+        } finally {
+            this.stampedLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Runs whileLocked without locking; if a write happened meanwhile, whatever it returned or
+     * threw is discarded and it's run again under the read lock. So it may run twice, and it must
+     * not have side effects nor trust what it sees until it returns.
+     */
+    public T executeWithOptimisticRead(WhileLocked<T> whileLocked) {
+        long stamp = this.stampedLock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                T result = whileLocked.execute();
+                if (this.stampedLock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException e) {
+                if (this.stampedLock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        return executeWithReadLock(whileLocked);
+    }
+}
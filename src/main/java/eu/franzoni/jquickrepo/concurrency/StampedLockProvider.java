@@ -0,0 +1,82 @@
+package eu.franzoni.jquickrepo.concurrency;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Striped like {@link StripedLockProvider}, but with {@link StampedLock}s, which allow optimistic
+ * reads through {@link ScopedStampedLock}: a read that isn't overlapped by a write doesn't write
+ * to the lock at all, so readers of a hot id don't contend on it.
+ *
+ * Unlike the other providers, locks are not reentrant: a thread holding the lock of an id must
+ * not try to take it again, nor the lock of any other id, which may share the same stripe (e.g.
+ * don't use the repository from inside modifyWhileLocking).
+ */
+public class StampedLockProvider implements LockProvider {
+
+    private final StampedLock[] stripes;
+    private final ReadWriteLock[] views;
+    private final int mask;
+
+    public StampedLockProvider() {
+        this(StripedLockProvider.DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes number of locks, rounded up to a power of two
+     */
+    public StampedLockProvider(int stripes) {
+        if (stripes < 1 || stripes > 1 << 30) {
+            throw new IllegalArgumentException("stripes must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new StampedLock[size];
+        this.views = new ReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new StampedLock();
+            this.views[i] = this.stripes[i].asReadWriteLock();
+        }
+        this.mask = size - 1;
+    }
+
+    public StampedLock provideStampedLock(String id) {
+        return this.stripes[indexOf(id)];
+    }
+
+    @Override
+    public ReadWriteLock provideLock(String id) {
+        return this.views[indexOf(id)];
+    }
+
+    /**
+     * Sorted by stripe.
+     */
+    @Override
+    public List<ReadWriteLock> provideLocks(Collection<String> ids) {
+        BitSet used = new BitSet(this.stripes.length);
+        for (String id : ids) {
+            used.set(indexOf(id));
+        }
+        List<ReadWriteLock> sorted = new ArrayList<ReadWriteLock>(used.cardinality());
+        for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+            sorted.add(this.views[i]);
+        }
+        return sorted;
+    }
+
+    public int getStripeCount() {
+        return this.stripes.length;
+    }
+
+    private int indexOf(String id) {
+        int hash = id.hashCode();
+        return (hash ^ (hash >>> 16)) & this.mask;
+    }
+}
@@ -0,0 +1,73 @@
+package eu.franzoni.jquickrepo.concurrency;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed array of locks, the lock of an id being picked by its hash: no allocation and no map
+ * lookup per call, at the price of unrelated ids sometimes sharing a lock.
+ */
+public class StripedLockProvider implements LockProvider {
+
+    public static final int DEFAULT_STRIPES = 1024;
+
+    private final ReentrantReadWriteLock[] stripes;
+    private final int mask;
+
+    public StripedLockProvider() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes number of locks, rounded up to a power of two
+     */
+    public StripedLockProvider(int stripes) {
+        if (stripes < 1 || stripes > 1 << 30) {
+            throw new IllegalArgumentException("stripes must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantReadWriteLock();
+        }
+        this.mask = size - 1;
+    }
+
+    @Override
+    public ReadWriteLock provideLock(String id) {
+        return this.stripes[indexOf(id)];
+    }
+
+    /**
+     * Sorted by stripe.
+     */
+    @Override
+    public List<ReadWriteLock> provideLocks(Collection<String> ids) {
+        BitSet used = new BitSet(this.stripes.length);
+        for (String id : ids) {
+            used.set(indexOf(id));
+        }
+        List<ReadWriteLock> sorted = new ArrayList<ReadWriteLock>(used.cardinality());
+        for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+            sorted.add(this.stripes[i]);
+        }
+        return sorted;
+    }
+
+    public int getStripeCount() {
+        return this.stripes.length;
+    }
+
+    private int indexOf(String id) {
+        int hash = id.hashCode();
+        // mixes the high bits in, so ids differing only there still land on different stripes.
+        return (hash ^ (hash >>> 16)) & this.mask;
+    }
+}
@@ -0,0 +1,342 @@
+package eu.franzoni.jquickrepo.metrics;
+
+import eu.franzoni.jquickrepo.concurrency.LockProvider;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Wraps the locks of another provider to find out which ids threads wait for: each acquisition
+ * first tries the lock, and only when it's taken counts and times the wait against the id
+ * requested, along with how many threads are queued on it. Uncontended ids cost a wrapper per
+ * lock and nothing else; at most maxTrackedIds contended ids are tracked individually, those
+ * coming later only show in the totals. A {@link ReentrantReadWriteLock} with threads queued on it
+ * isn't tried first, as that would let readers overtake the writers waiting, which lock() doesn't.
+ *
+ * Pass it to {@link eu.franzoni.jquickrepo.repository.ByteArrayRepo.Builder#lockProvider(LockProvider)}
+ * (or to {@link eu.franzoni.jquickrepo.repository.LogStructuredRepo#LogStructuredRepo(java.io.File, LockProvider)})
+ * wrapping the provider that would be used otherwise. It's never a
+ * {@link eu.franzoni.jquickrepo.concurrency.StampedLockProvider}, so loads take the read lock
+ * instead of reading optimistically, and are tracked as well. With a striped provider, ids sharing
+ * a stripe wait for each other: a hot id may make its stripe neighbours look contended.
+ */
+public class ContentionTrackingLockProvider implements LockProvider, ContentionTrackingLockProviderMXBean {
+
+    public static final int DEFAULT_MAX_TRACKED_IDS = 10000;
+    public static final int DEFAULT_TOP = 10;
+
+    private static final Comparator<LockContention> BY_TOTAL_WAIT = new Comparator<LockContention>() {
+        @Override
+        public int compare(LockContention a, LockContention b) {
+            int byWait = Long.compare(b.getTotalWaitNanos(), a.getTotalWaitNanos());
+            return byWait != 0 ? byWait : Long.compare(b.getWaitCount(), a.getWaitCount());
+        }
+    };
+
+    private final LockProvider delegate;
+    private final int maxTrackedIds;
+    private final ConcurrentMap<String, LockContention> contentions = new ConcurrentHashMap<String, LockContention>();
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private ObjectName registeredAs;
+
+    public ContentionTrackingLockProvider(LockProvider delegate) {
+        this(delegate, DEFAULT_MAX_TRACKED_IDS);
+    }
+
+    public ContentionTrackingLockProvider(LockProvider delegate, int maxTrackedIds) {
+        this.delegate = delegate;
+        this.maxTrackedIds = maxTrackedIds;
+    }
+
+    @Override
+    public ReadWriteLock provideLock(String id) {
+        return new TrackedLock(this.delegate.provideLock(id), id);
+    }
+
+    /**
+     * In the order of the wrapped provider; a lock guarding several of the ids is tracked against
+     * the first of them.
+     */
+    @Override
+    public List<ReadWriteLock> provideLocks(Collection<String> ids) {
+        List<ReadWriteLock> locks = this.delegate.provideLocks(ids);
+        Map<ReadWriteLock, String> labels = new IdentityHashMap<ReadWriteLock, String>();
+        for (String id : ids) {
+            ReadWriteLock lock = this.delegate.provideLock(id);
+            if (!labels.containsKey(lock)) {
+                labels.put(lock, id);
+            }
+        }
+        List<ReadWriteLock> tracked = new ArrayList<ReadWriteLock>(locks.size());
+        for (ReadWriteLock lock : locks) {
+            tracked.add(new TrackedLock(lock, labels.get(lock)));
+        }
+        return tracked;
+    }
+
+    @Override
+    public long getAcquisitionCount() {
+        return this.acquisitions.sum();
+    }
+
+    @Override
+    public long getWaitCount() {
+        return this.waits.sum();
+    }
+
+    /**
+     * @return how many threads are waiting for any of the locks right now.
+     */
+    @Override
+    public int getQueueLength() {
+        return this.waiting.get();
+    }
+
+    @Override
+    public int getTrackedIdCount() {
+        return this.contentions.size();
+    }
+
+    /**
+     * @return null if threads never waited for the id, or it wasn't tracked.
+     */
+    public LockContention getContention(String id) {
+        return this.contentions.get(id);
+    }
+
+    @Override
+    public List<LockContention> getHottest() {
+        return getHottest(DEFAULT_TOP);
+    }
+
+    /**
+     * @return the ids threads waited longest for overall, longest first.
+     */
+    public List<LockContention> getHottest(int top) {
+        List<LockContention> sorted = new ArrayList<LockContention>(this.contentions.values());
+        Collections.sort(sorted, BY_TOTAL_WAIT);
+        return sorted.size() > top ? new ArrayList<LockContention>(sorted.subList(0, top)) : sorted;
+    }
+
+    /**
+     * @return the totals and the hottest ids, a line each.
+     */
+    @Override
+    public String dump(int top) {
+        StringBuilder dump = new StringBuilder();
+        dump.append(String.format("lock contention: %d acquisitions, %d waited, %d waiting now, %d ids tracked%n",
+                getAcquisitionCount(), getWaitCount(), getQueueLength(), getTrackedIdCount()));
+        for (LockContention contention : getHottest(top)) {
+            dump.append("  ").append(contention).append(String.format("%n"));
+        }
+        return dump.toString();
+    }
+
+    /**
+     * Forgets everything tracked so far; waits in progress are counted in the totals only.
+     */
+    @Override
+    public void reset() {
+        this.contentions.clear();
+        this.acquisitions.reset();
+        this.waits.reset();
+    }
+
+    /**
+     * Registers the provider with the platform MBean server, as
+     * {@code eu.franzoni.jquickrepo:type=LockContention,name=<name>}.
+     *
+     * @return the name registered.
+     */
+    public synchronized ObjectName register(String name) {
+        if (this.registeredAs != null) {
+            throw new IllegalStateException("already registered as " + this.registeredAs);
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(RepositoryMetrics.DOMAIN + ":type=LockContention,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+            this.registeredAs = objectName;
+            return objectName;
+        } catch (JMException e) {
+            throw new RuntimeException(String.format("could not register the lock contention of '%s'", name), e);
+        }
+    }
+
+    /**
+     * Undoes {@link #register(String)}, if registered.
+     */
+    public synchronized void unregister() {
+        if (this.registeredAs == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.registeredAs);
+            this.registeredAs = null;
+        } catch (JMException e) {
+            throw new RuntimeException(String.format("could not unregister %s", this.registeredAs), e);
+        }
+    }
+
+    private LockContention contentionOf(String id) {
+        LockContention contention = this.contentions.get(id);
+        if (contention == null) {
+            if (this.contentions.size() >= this.maxTrackedIds) {
+                return null;
+            }
+            LockContention created = new LockContention(id);
+            contention = this.contentions.putIfAbsent(id, created);
+            if (contention == null) {
+                contention = created;
+            }
+        }
+        return contention;
+    }
+
+    private LockContention startWaiting(String id) {
+        this.waiting.incrementAndGet();
+        LockContention contention = contentionOf(id);
+        if (contention != null) {
+            contention.waiting();
+        }
+        return contention;
+    }
+
+    private void stopWaiting(LockContention contention, long started) {
+        long nanos = System.nanoTime() - started;
+        this.waiting.decrementAndGet();
+        this.waits.increment();
+        if (contention != null) {
+            contention.waited(nanos);
+        }
+    }
+
+    private class TrackedLock implements ReadWriteLock {
+
+        // keeps the wrapped lock referenced, see ScopedReadWriteLock.
+        private final ReadWriteLock lock;
+        private final Lock readLock;
+        private final Lock writeLock;
+
+        private TrackedLock(ReadWriteLock lock, String id) {
+            this.lock = lock;
+            this.readLock = new TrackedView(lock, lock.readLock(), id);
+            this.writeLock = new TrackedView(lock, lock.writeLock(), id);
+        }
+
+        @Override
+        public Lock readLock() {
+            return this.readLock;
+        }
+
+        @Override
+        public Lock writeLock() {
+            return this.writeLock;
+        }
+    }
+
+    private class TrackedView implements Lock {
+
+        private final ReadWriteLock owner;
+        private final Lock lock;
+        private final String id;
+
+        private TrackedView(ReadWriteLock owner, Lock lock, String id) {
+            this.owner = owner;
+            this.lock = lock;
+            this.id = id;
+        }
+
+        /**
+         * Takes the lock if that's what lock() would do without waiting: tryLock() ignores the
+         * threads queued, e.g. a reader would overtake a writer queued behind other readers.
+         */
+        private boolean acquiredAtOnce() {
+            if (this.owner instanceof ReentrantReadWriteLock && ((ReentrantReadWriteLock) this.owner).hasQueuedThreads()) {
+                return false;
+            }
+            return this.lock.tryLock();
+        }
+
+        @Override
+        public void lock() {
+            acquisitions.increment();
+            if (acquiredAtOnce()) {
+                return;
+            }
+            long started = System.nanoTime();
+            LockContention contention = startWaiting(this.id);
+            try {
+                this.lock.lock();
+            } finally {
+                stopWaiting(contention, started);
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            acquisitions.increment();
+            if (acquiredAtOnce()) {
+                return;
+            }
+            long started = System.nanoTime();
+            LockContention contention = startWaiting(this.id);
+            try {
+                this.lock.lockInterruptibly();
+            } finally {
+                stopWaiting(contention, started);
+            }
+        }
+
+        @Override
+        public boolean tryLock() {
+            acquisitions.increment();
+            return this.lock.tryLock();
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            acquisitions.increment();
+            if (acquiredAtOnce()) {
+                return true;
+            }
+            long started = System.nanoTime();
+            LockContention contention = startWaiting(this.id);
+            try {
+                return this.lock.tryLock(time, unit);
+            } finally {
+                stopWaiting(contention, started);
+            }
+        }
+
+        @Override
+        public void unlock() {
+            this.lock.unlock();
+        }
+
+        @Override
+        public Condition newCondition() {
+            return this.lock.newCondition();
+        }
+    }
+}
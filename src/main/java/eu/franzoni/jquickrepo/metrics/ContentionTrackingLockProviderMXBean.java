@@ -0,0 +1,26 @@
+package eu.franzoni.jquickrepo.metrics;
+
+import java.util.List;
+
+/**
+ * The JMX view of {@link ContentionTrackingLockProvider}.
+ */
+public interface ContentionTrackingLockProviderMXBean {
+
+    long getAcquisitionCount();
+
+    long getWaitCount();
+
+    int getQueueLength();
+
+    int getTrackedIdCount();
+
+    /**
+     * @return the {@link ContentionTrackingLockProvider#DEFAULT_TOP} ids threads waited longest for.
+     */
+    List<LockContention> getHottest();
+
+    String dump(int top);
+
+    void reset();
+}
@@ -0,0 +1,101 @@
+package eu.franzoni.jquickrepo.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non negative values (e.g. nanoseconds), in the manner of HdrHistogram: values
+ * below 64 are counted exactly, bigger ones in buckets about 3% wide, so that the buckets for the
+ * whole range of longs fit in a fixed array. Recording allocates nothing and takes no lock.
+ *
+ * Reads made while values are being recorded may see some of them only partially, e.g. in the
+ * count but not yet in a bucket.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int EXACT = 1 << SUB_BUCKET_BITS;
+    // each power of two from EXACT on is split in this many buckets.
+    private static final int SUB_BUCKETS = EXACT / 2;
+    // up to the highest bit a positive long can have.
+    private static final int BUCKETS = EXACT + (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value negative values are taken as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.counts.incrementAndGet(bucketOf(value));
+        this.count.increment();
+        this.total.add(value);
+        long currentMax = this.max.get();
+        while (value > currentMax && !this.max.compareAndSet(currentMax, value)) {
+            currentMax = this.max.get();
+        }
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * @return the average of the values, 0 if none was recorded.
+     */
+    public double getMean() {
+        long n = this.count.sum();
+        return n == 0 ? 0 : (double) this.total.sum() / n;
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return a value which at least that percentage of the recorded ones doesn't exceed, within
+     * the width of its bucket; 0 if none was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += this.counts.get(i);
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), getMax());
+            }
+        }
+        return 0;
+    }
+
+    static int bucketOf(long value) {
+        if (value < EXACT) {
+            return (int) value;
+        }
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        // from SUB_BUCKETS to twice that, excluded.
+        int top = (int) (value >>> shift);
+        return EXACT + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < EXACT) {
+            return bucket;
+        }
+        int shift = (bucket - EXACT) / SUB_BUCKETS + 1;
+        long top = (bucket - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+        // for the last bucket, this wraps around to Long.MAX_VALUE.
+        return ((top + 1) << shift) - 1;
+    }
+}
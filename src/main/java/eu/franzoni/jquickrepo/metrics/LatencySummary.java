@@ -0,0 +1,52 @@
+package eu.franzoni.jquickrepo.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a {@link LatencyHistogram} of nanoseconds holds, in microseconds: what JMX clients get.
+ */
+public class LatencySummary {
+
+    private final long count;
+    private final double meanMicros;
+    private final double medianMicros;
+    private final double p99Micros;
+    private final double maxMicros;
+
+    public LatencySummary(LatencyHistogram histogram) {
+        this.count = histogram.getCount();
+        this.meanMicros = histogram.getMean() / TimeUnit.MICROSECONDS.toNanos(1);
+        this.medianMicros = toMicros(histogram.getValueAtPercentile(50));
+        this.p99Micros = toMicros(histogram.getValueAtPercentile(99));
+        this.maxMicros = toMicros(histogram.getMax());
+    }
+
+    private static double toMicros(long nanos) {
+        return (double) nanos / TimeUnit.MICROSECONDS.toNanos(1);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public double getMedianMicros() {
+        return medianMicros;
+    }
+
+    public double getP99Micros() {
+        return p99Micros;
+    }
+
+    public double getMaxMicros() {
+        return maxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1fus median=%.1fus p99=%.1fus max=%.1fus", count, meanMicros, medianMicros, p99Micros, maxMicros);
+    }
+}
@@ -0,0 +1,80 @@
+package eu.franzoni.jquickrepo.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How much the lock of an id made threads wait, as tracked by a
+ * {@link ContentionTrackingLockProvider}; the values are live, not a snapshot.
+ */
+public class LockContention {
+
+    private final String id;
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder totalWait = new LongAdder();
+    private final AtomicLong maxWait = new AtomicLong();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger maxWaiting = new AtomicInteger();
+
+    LockContention(String id) {
+        this.id = id;
+    }
+
+    void waiting() {
+        int now = this.waiting.incrementAndGet();
+        int currentMax = this.maxWaiting.get();
+        while (now > currentMax && !this.maxWaiting.compareAndSet(currentMax, now)) {
+            currentMax = this.maxWaiting.get();
+        }
+    }
+
+    /**
+     * @param nanos how long the thread waited, whether it got the lock in the end or not
+     */
+    void waited(long nanos) {
+        this.waiting.decrementAndGet();
+        this.waits.increment();
+        this.totalWait.add(nanos);
+        long currentMax = this.maxWait.get();
+        while (nanos > currentMax && !this.maxWait.compareAndSet(currentMax, nanos)) {
+            currentMax = this.maxWait.get();
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return how many acquisitions found the lock taken and waited.
+     */
+    public long getWaitCount() {
+        return this.waits.sum();
+    }
+
+    public long getTotalWaitNanos() {
+        return this.totalWait.sum();
+    }
+
+    public long getMaxWaitNanos() {
+        return this.maxWait.get();
+    }
+
+    /**
+     * @return how many threads are waiting for the lock right now.
+     */
+    public int getQueueLength() {
+        return this.waiting.get();
+    }
+
+    public int getMaxQueueLength() {
+        return this.maxWaiting.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s waits=%d total=%.3fms max=%.3fms queue=%d maxQueue=%d", id, getWaitCount(),
+                getTotalWaitNanos() / 1e6, getMaxWaitNanos() / 1e6, getQueueLength(), getMaxQueueLength());
+    }
+}
@@ -0,0 +1,63 @@
+package eu.franzoni.jquickrepo.metrics;
+
+import eu.franzoni.jquickrepo.concurrency.LockListener;
+
+/**
+ * Told what a repository spends its time on, on the threads doing it: implementations must be
+ * thread safe and quick, see {@link RepositoryMetrics}.
+ *
+ * Lock times are those of the id locks; optimistic reads, which take no lock when not
+ * contended, aren't reported. Serializers stream straight from and to the entry files, so
+ * marshalling and unmarshalling times include reading and writing them, but not opening,
+ * syncing or renaming them.
+ */
+public interface MetricsListener extends LockListener {
+
+    static final MetricsListener NONE = new MetricsListener() {
+        @Override
+        public void operation(Operation operation, long nanos, boolean failed) {
+        }
+
+        @Override
+        public void released(boolean write, long waitNanos, long holdNanos) {
+        }
+
+        @Override
+        public void bytesRead(long bytes) {
+        }
+
+        @Override
+        public void bytesWritten(long bytes) {
+        }
+
+        @Override
+        public void marshalled(long nanos) {
+        }
+
+        @Override
+        public void unmarshalled(long nanos) {
+        }
+
+        @Override
+        public void partFileRemoved() {
+        }
+    };
+
+    /**
+     * @param failed whether the operation threw
+     */
+    void operation(Operation operation, long nanos, boolean failed);
+
+    void bytesRead(long bytes);
+
+    void bytesWritten(long bytes);
+
+    void marshalled(long nanos);
+
+    void unmarshalled(long nanos);
+
+    /**
+     * A part file left by a failed write was removed.
+     */
+    void partFileRemoved();
+}
@@ -0,0 +1,8 @@
+package eu.franzoni.jquickrepo.metrics;
+
+/**
+ * The repository operations timed through {@link MetricsListener#operation(Operation, long, boolean)}.
+ */
+public enum Operation {
+    LOAD, LOAD_ALL, SAVE, SAVE_OR_UPDATE, UPDATE, DELETE, MODIFY_WHILE_LOCKING, APPLY
+}
@@ -0,0 +1,212 @@
+package eu.franzoni.jquickrepo.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects what a repository reports into counters and {@link LatencyHistogram}s of
+ * nanoseconds, for the lifetime of the instance; several repositories may share one. Set it with
+ * {@link eu.franzoni.jquickrepo.repository.ByteArrayRepo#setMetricsListener(MetricsListener)} (or
+ * the same method of MarshallingRepository), and see it through JMX with {@link #register(String)}.
+ */
+public class RepositoryMetrics implements MetricsListener, RepositoryMetricsMXBean {
+
+    public static final String DOMAIN = "eu.franzoni.jquickrepo";
+
+    // filled once, only the values change afterwards.
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+    private final Map<Operation, LongAdder> failures = new EnumMap<Operation, LongAdder>(Operation.class);
+    private final LatencyHistogram readLockWait = new LatencyHistogram();
+    private final LatencyHistogram readLockHold = new LatencyHistogram();
+    private final LatencyHistogram writeLockWait = new LatencyHistogram();
+    private final LatencyHistogram writeLockHold = new LatencyHistogram();
+    private final LatencyHistogram marshalling = new LatencyHistogram();
+    private final LatencyHistogram unmarshalling = new LatencyHistogram();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder partFilesRemoved = new LongAdder();
+    private ObjectName registeredAs;
+
+    public RepositoryMetrics() {
+        for (Operation operation : Operation.values()) {
+            this.latencies.put(operation, new LatencyHistogram());
+            this.failures.put(operation, new LongAdder());
+        }
+    }
+
+    @Override
+    public void operation(Operation operation, long nanos, boolean failed) {
+        this.latencies.get(operation).record(nanos);
+        if (failed) {
+            this.failures.get(operation).increment();
+        }
+    }
+
+    @Override
+    public void released(boolean write, long waitNanos, long holdNanos) {
+        if (write) {
+            this.writeLockWait.record(waitNanos);
+            this.writeLockHold.record(holdNanos);
+        } else {
+            this.readLockWait.record(waitNanos);
+            this.readLockHold.record(holdNanos);
+        }
+    }
+
+    @Override
+    public void bytesRead(long bytes) {
+        this.bytesRead.add(bytes);
+    }
+
+    @Override
+    public void bytesWritten(long bytes) {
+        this.bytesWritten.add(bytes);
+    }
+
+    @Override
+    public void marshalled(long nanos) {
+        this.marshalling.record(nanos);
+    }
+
+    @Override
+    public void unmarshalled(long nanos) {
+        this.unmarshalling.record(nanos);
+    }
+
+    @Override
+    public void partFileRemoved() {
+        this.partFilesRemoved.increment();
+    }
+
+    /**
+     * @return the latencies of the operation, failed ones included.
+     */
+    public LatencyHistogram getLatency(Operation operation) {
+        return this.latencies.get(operation);
+    }
+
+    public long getFailureCount(Operation operation) {
+        return this.failures.get(operation).sum();
+    }
+
+    public LatencyHistogram getLockWait(boolean write) {
+        return write ? this.writeLockWait : this.readLockWait;
+    }
+
+    public LatencyHistogram getLockHold(boolean write) {
+        return write ? this.writeLockHold : this.readLockHold;
+    }
+
+    public LatencyHistogram getMarshallingLatency() {
+        return this.marshalling;
+    }
+
+    public LatencyHistogram getUnmarshallingLatency() {
+        return this.unmarshalling;
+    }
+
+    @Override
+    public Map<String, LatencySummary> getOperations() {
+        Map<String, LatencySummary> operations = new LinkedHashMap<String, LatencySummary>();
+        for (Map.Entry<Operation, LatencyHistogram> entry : this.latencies.entrySet()) {
+            operations.put(entry.getKey().name(), new LatencySummary(entry.getValue()));
+        }
+        return operations;
+    }
+
+    @Override
+    public Map<String, Long> getFailures() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Map.Entry<Operation, LongAdder> entry : this.failures.entrySet()) {
+            counts.put(entry.getKey().name(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public LatencySummary getReadLockWait() {
+        return new LatencySummary(this.readLockWait);
+    }
+
+    @Override
+    public LatencySummary getReadLockHold() {
+        return new LatencySummary(this.readLockHold);
+    }
+
+    @Override
+    public LatencySummary getWriteLockWait() {
+        return new LatencySummary(this.writeLockWait);
+    }
+
+    @Override
+    public LatencySummary getWriteLockHold() {
+        return new LatencySummary(this.writeLockHold);
+    }
+
+    @Override
+    public LatencySummary getMarshalling() {
+        return new LatencySummary(this.marshalling);
+    }
+
+    @Override
+    public LatencySummary getUnmarshalling() {
+        return new LatencySummary(this.unmarshalling);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return this.bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return this.bytesWritten.sum();
+    }
+
+    @Override
+    public long getPartFilesRemoved() {
+        return this.partFilesRemoved.sum();
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, as
+     * {@code eu.franzoni.jquickrepo:type=RepositoryMetrics,name=<name>}.
+     *
+     * @return the name registered.
+     */
+    public synchronized ObjectName register(String name) {
+        if (this.registeredAs != null) {
+            throw new IllegalStateException("already registered as " + this.registeredAs);
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=RepositoryMetrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+            this.registeredAs = objectName;
+            return objectName;
+        } catch (JMException e) {
+            throw new RuntimeException(String.format("could not register the metrics of '%s'", name), e);
+        }
+    }
+
+    /**
+     * Undoes {@link #register(String)}, if registered.
+     */
+    public synchronized void unregister() {
+        if (this.registeredAs == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.registeredAs);
+            this.registeredAs = null;
+        } catch (JMException e) {
+            throw new RuntimeException(String.format("could not unregister %s", this.registeredAs), e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package eu.franzoni.jquickrepo.metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link RepositoryMetrics}; latencies are in microseconds.
+ */
+public interface RepositoryMetricsMXBean {
+
+    /**
+     * @return the latencies of each operation, by {@link Operation} name.
+     */
+    Map<String, LatencySummary> getOperations();
+
+    /**
+     * @return how many times each operation threw, by {@link Operation} name.
+     */
+    Map<String, Long> getFailures();
+
+    LatencySummary getReadLockWait();
+
+    LatencySummary getReadLockHold();
+
+    LatencySummary getWriteLockWait();
+
+    LatencySummary getWriteLockHold();
+
+    LatencySummary getMarshalling();
+
+    LatencySummary getUnmarshalling();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getPartFilesRemoved();
+}
@@ -0,0 +1,30 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non blocking counterpart of {@link Repository}: every method returns at once, the future
+ * completing when the operation is done, or exceptionally with the exception {@link Repository}
+ * would have thrown.
+ */
+public interface AsyncRepository<T> {
+
+    CompletableFuture<Collection<Entry<T>>> loadAll();
+
+    CompletableFuture<T> load(String id);
+
+    CompletableFuture<Void> save(String id, T obj);
+
+    CompletableFuture<Void> saveOrUpdate(String id, T obj);
+
+    CompletableFuture<Void> update(String id, T obj);
+
+    CompletableFuture<Void> delete(String id);
+
+    CompletableFuture<Void> modifyWhileLocking(String id, DoWhileLocking<T> whileLocking);
+
+    CompletableFuture<Void> modifyWhileLocking(String id, DoWhileLocking<T> whileLocking, T missing);
+
+    CompletableFuture<Void> apply(Batch<T> batch);
+}
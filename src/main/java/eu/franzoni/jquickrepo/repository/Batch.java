@@ -0,0 +1,111 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A group of writes to be applied at once through {@link Repository#apply(Batch)}; each id may
+ * appear only once.
+ *
+ * Every check (duplicate id on save, missing id on update and delete) is made for the whole batch
+ * before anything is written, so a batch failing a check changes nothing.
+ */
+public class Batch<T> {
+
+    public enum Operation {
+        SAVE, UPDATE, SAVE_OR_UPDATE, DELETE
+    }
+
+    public static class Write<T> {
+
+        private final String id;
+        private final Operation operation;
+        private final T value;
+
+        Write(String id, Operation operation, T value) {
+            this.id = id;
+            this.operation = operation;
+            this.value = value;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return the value to be written, null for deletes.
+         */
+        public T getValue() {
+            return value;
+        }
+    }
+
+    private final Map<String, Write<T>> writes = new LinkedHashMap<String, Write<T>>();
+
+    public Batch<T> save(String id, T obj) {
+        return add(new Write<T>(id, Operation.SAVE, obj));
+    }
+
+    public Batch<T> update(String id, T obj) {
+        return add(new Write<T>(id, Operation.UPDATE, obj));
+    }
+
+    public Batch<T> saveOrUpdate(String id, T obj) {
+        return add(new Write<T>(id, Operation.SAVE_OR_UPDATE, obj));
+    }
+
+    public Batch<T> delete(String id) {
+        return add(new Write<T>(id, Operation.DELETE, null));
+    }
+
+    public Batch<T> saveAll(Map<String, ? extends T> entries) {
+        for (Map.Entry<String, ? extends T> entry : entries.entrySet()) {
+            save(entry.getKey(), entry.getValue());
+        }
+        return this;
+    }
+
+    public Batch<T> saveOrUpdateAll(Map<String, ? extends T> entries) {
+        for (Map.Entry<String, ? extends T> entry : entries.entrySet()) {
+            saveOrUpdate(entry.getKey(), entry.getValue());
+        }
+        return this;
+    }
+
+    /**
+     * @return the writes, in the order they were added.
+     */
+    public Collection<Write<T>> getWrites() {
+        return Collections.unmodifiableCollection(writes.values());
+    }
+
+    public Set<String> getIds() {
+        return Collections.unmodifiableSet(writes.keySet());
+    }
+
+    public int size() {
+        return writes.size();
+    }
+
+    public boolean isEmpty() {
+        return writes.isEmpty();
+    }
+
+    private Batch<T> add(Write<T> write) {
+        if (write.getId() == null) {
+            throw new NullPointerException("id");
+        }
+        if (writes.containsKey(write.getId())) {
+            throw new IllegalArgumentException(String.format("'%s' is already part of the batch", write.getId()));
+        }
+        writes.put(write.getId(), write);
+        return this;
+    }
+}
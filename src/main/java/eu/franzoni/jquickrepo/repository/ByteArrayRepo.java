@@ -1,89 +1,537 @@
 package eu.franzoni.jquickrepo.repository;
 
-import com.google.common.io.Files;
-import eu.franzoni.jquickrepo.concurrency.ScopedReadWriteLock;
+import eu.franzoni.jquickrepo.concurrency.LockListener;
+import eu.franzoni.jquickrepo.concurrency.LockProvider;
 import eu.franzoni.jquickrepo.concurrency.MultipleResourceLock;
+import eu.franzoni.jquickrepo.concurrency.ScopedMultipleWriteLock;
+import eu.franzoni.jquickrepo.concurrency.ScopedReadWriteLock;
+import eu.franzoni.jquickrepo.concurrency.ScopedStampedLock;
+import eu.franzoni.jquickrepo.concurrency.StampedLockProvider;
+import eu.franzoni.jquickrepo.concurrency.StripedLockProvider;
 import eu.franzoni.jquickrepo.concurrency.WhileLocked;
+import eu.franzoni.jquickrepo.metrics.MetricsListener;
+import eu.franzoni.jquickrepo.metrics.Operation;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ByteArrayRepo implements Repository<byte[]>, Closeable {
 
-public class ByteArrayRepo implements Repository<byte[]> {
+    public static final int DEFAULT_GROUP_COMMIT_MAX_WRITES = 256;
 
     @Override
     public Collection<Entry<byte[]>> loadAll() {
-        File[] allFiles = this.persistenceDir.listFiles(new FilenameFilter() {
+        return timed(Operation.LOAD_ALL, new WhileLocked<Collection<Entry<byte[]>>>() {
             @Override
-            public boolean accept(File dir, String name) {
-                return (!name.endsWith(".part") && !name.startsWith("."));
+            public Collection<Entry<byte[]>> execute() {
+                List<Entry<byte[]>> entries = new ArrayList<Entry<byte[]>>();
+                Iterator<Entry<byte[]>> iterator = iterateAll();
+                while (iterator.hasNext()) {
+                    entries.add(iterator.next());
+                }
+                return entries;
             }
         });
+    }
 
-        List<Entry<byte[]>> entries = new ArrayList<Entry<byte[]>>();
+    @Override
+    public Iterator<Entry<byte[]>> iterateAll() {
+        return new LazyEntryIterator<byte[]>(listIds(), contentLoader);
+    }
 
-        for (File f : allFiles) {
-            try {
-                entries.add(new Entry<byte[]>(f.getName(), doLoad(f.getName())));
-            } catch (UnknownResourceIdException e) {
-                // we ignore this error, the item may have been deleted when we fetched
-                // the list, but we don't really care.
+    @Override
+    public Iterator<Entry<byte[]>> iterateAll(ExecutorService executor, int maxInFlight) {
+        return new ParallelEntryIterator<byte[]>(listIds(), contentLoader, executor, maxInFlight);
+    }
+
+    /**
+     * Ids of the entries currently in the repository; entries may vanish before they're loaded.
+     */
+    Iterator<String> listIds() {
+        // names are still collected up front: a lazy listing would keep the directory open for as
+        // long as the caller holds on to the iterator.
+        List<String> names = new ArrayList<String>();
+        for (Path partition : listPartitions()) {
+            listIds(partition, names);
+        }
+        return names.iterator();
+    }
+
+    private List<Path> listPartitions() {
+        try {
+            return this.layout.partitions(this.persistenceDir);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not list %s", this.persistenceDir.toAbsolutePath()), e);
+        }
+    }
+
+    private void listIds(Path partition, Collection<String> names) {
+        try {
+            this.layout.listIds(partition, names);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not list %s", partition.toAbsolutePath()), e);
+        }
+    }
+
+    /**
+     * Like {@link #loadAll()}, but listing and loading each partition of the layout (every top
+     * level directory of a {@link ShardedLayout}) as a separate task on the executor.
+     */
+    public Collection<Entry<byte[]>> loadAll(final ExecutorService executor) {
+        return timed(Operation.LOAD_ALL, new WhileLocked<Collection<Entry<byte[]>>>() {
+            @Override
+            public Collection<Entry<byte[]>> execute() {
+                return doLoadAll(executor);
             }
+        });
+    }
+
+    private Collection<Entry<byte[]>> doLoadAll(ExecutorService executor) {
+        final List<Path> partitions = listPartitions();
+        final List<List<Entry<byte[]>>> loaded = new ArrayList<List<Entry<byte[]>>>(Collections.<List<Entry<byte[]>>>nCopies(partitions.size(), null));
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            final int index = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    List<String> names = new ArrayList<String>();
+                    listIds(partitions.get(index), names);
+                    List<Entry<byte[]>> entries = new ArrayList<Entry<byte[]>>(names.size());
+                    Iterator<Entry<byte[]>> iterator = new LazyEntryIterator<byte[]>(names.iterator(), contentLoader);
+                    while (iterator.hasNext()) {
+                        entries.add(iterator.next());
+                    }
+                    loaded.set(index, entries);
+                    return null;
+                }
+            });
         }
+        BatchTasks.runAll(tasks, executor);
 
+        List<Entry<byte[]>> entries = new ArrayList<Entry<byte[]>>();
+        for (List<Entry<byte[]>> partition : loaded) {
+            entries.addAll(partition);
+        }
         return entries;
     }
 
-    private byte[] doLoad(final String id) {
+    private byte[] doLoad(String id) {
+        return doLoad(id, EntryFormat.RAW);
+    }
+
+    /**
+     * Like {@link #load(String, EntryFormat)}, without timing it as an operation of its own.
+     */
+    <X> X doLoad(final String id, final EntryFormat<X> format) {
+        return executeWithOptimisticRead(id, new WhileLocked<X>() {
+            @Override
+            public X execute() {
+                return getContents(id, format);
+            }
+        });
+    }
+
+    /**
+     * Runs the given code, telling the metrics listener how long it took as the operation.
+     */
+    <X> X timed(Operation operation, WhileLocked<X> whileTimed) {
+        MetricsListener metrics = this.metrics;
+        if (metrics == MetricsListener.NONE) {
+            return whileTimed.execute();
+        }
+        long started = System.nanoTime();
+        boolean failed = true;
+        try {
+            X result = whileTimed.execute();
+            failed = false;
+            return result;
+        } finally {
+            metrics.operation(operation, System.nanoTime() - started, failed);
+        }
+    }
+
+    private LockListener lockListener() {
+        MetricsListener metrics = this.metrics;
+        return metrics == MetricsListener.NONE ? null : metrics;
+    }
+
+    /**
+     * Runs the given code under the read lock of the id, after validating it.
+     */
+    <X> X executeWithReadLock(final String id, final WhileLocked<X> whileLocked) {
         // not required but suggested, as it prevents traversals.
         validateId(id);
 
-        ScopedReadWriteLock<byte[]> scopedLock = new ScopedReadWriteLock<byte[]>(this.lockProvider.provideLock(id));
+        ScopedReadWriteLock<X> scopedLock = new ScopedReadWriteLock<X>(this.lockProvider.provideLock(id), lockListener());
+        return scopedLock.executeWithReadLock(whileLocked);
+    }
+
+    /**
+     * Like {@link #executeWithReadLock(String, WhileLocked)}, but without locking at all when the
+     * lock provider allows optimistic reads; whileLocked may then run twice, see
+     * {@link ScopedStampedLock#executeWithOptimisticRead(WhileLocked)}.
+     */
+    private <X> X executeWithOptimisticRead(final String id, final WhileLocked<X> whileLocked) {
+        if (this.stampedLockProvider == null) {
+            return executeWithReadLock(id, whileLocked);
+        }
+
+        validateId(id);
+        ScopedStampedLock<X> scopedLock = new ScopedStampedLock<X>(this.stampedLockProvider.provideStampedLock(id));
+        return scopedLock.executeWithOptimisticRead(whileLocked);
+    }
+
+    /**
+     * Like {@link #executeWithWriteLock(String, WhileLocked)}, timing it all as the operation.
+     */
+    private <X> X executeWithWriteLock(Operation operation, final String id, final WhileLocked<X> whileLocked) {
+        return timed(operation, new WhileLocked<X>() {
+            @Override
+            public X execute() {
+                return executeWithWriteLock(id, whileLocked);
+            }
+        });
+    }
+
+    private <X> X executeWithWriteLock(final String id, final WhileLocked<X> whileLocked) {
+        ScopedReadWriteLock<X> scopedLock = new ScopedReadWriteLock<X>(lockProvider.provideLock(id), lockListener());
+        return scopedLock.executeWithWriteLock(new WhileLocked<X>() {
+            @Override
+            public X execute() {
+                try {
+                    return whileLocked.execute();
+                } finally {
+                    // even a failed write may have changed something.
+                    written(id);
+                }
+            }
+        });
+    }
 
-        return scopedLock.executeWithReadLock(new WhileLocked<byte[]>() {
+    private void executeWithWriteLocks(Operation operation, final Collection<String> ids, final WhileLocked<Void> whileLocked) {
+        timed(operation, new WhileLocked<Void>() {
             @Override
-            public byte[] execute() {
-                return getContents(id);
+            public Void execute() {
+                ScopedMultipleWriteLock<Void> scopedLock = new ScopedMultipleWriteLock<Void>(lockProvider.provideLocks(ids));
+                return scopedLock.executeWithWriteLocks(new WhileLocked<Void>() {
+                    @Override
+                    public Void execute() {
+                        try {
+                            return whileLocked.execute();
+                        } finally {
+                            for (String id : ids) {
+                                written(id);
+                            }
+                        }
+                    }
+                });
             }
         });
     }
-    final private File persistenceDir;
-    final private MultipleResourceLock lockProvider = new MultipleResourceLock();
+
+    /**
+     * Version of the data currently stored for the id; the caller must hold the id lock.
+     */
+    FileVersion getVersion(String id) throws UnknownResourceIdException {
+        try {
+            // a single stat for both.
+            BasicFileAttributes attributes = Files.readAttributes(entryPath(id), BasicFileAttributes.class);
+            return new FileVersion(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), attributes.size());
+        } catch (NoSuchFileException e) {
+            throw new UnknownResourceIdException(id, e);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not stat '%s'", id), e);
+        }
+    }
+
+    /**
+     * Reads the data stored for the id; the caller must hold the id lock.
+     */
+    <X> X readContents(String id, EntryFormat<X> format) throws UnknownResourceIdException {
+        return getContents(id, format);
+    }
+
+    /**
+     * Adds a listener to those told, while the write lock is still held, about every id written
+     * or deleted through this repository; e.g. each {@link MarshallingRepository} sharing it.
+     */
+    void addWriteListener(WriteListener writeListener) {
+        this.writeListeners.add(writeListener);
+    }
+
+    private void written(String id) {
+        for (WriteListener writeListener : this.writeListeners) {
+            writeListener.written(id);
+        }
+    }
+
+    /**
+     * Sets what to tell about the time spent in each operation, in locks and in I/O, e.g. a
+     * {@link eu.franzoni.jquickrepo.metrics.RepositoryMetrics}; {@link MetricsListener#NONE} by
+     * default, which costs next to nothing.
+     */
+    public void setMetricsListener(MetricsListener metrics) {
+        this.metrics = metrics;
+    }
+
+    final private Path persistenceDir;
+    final private Durability durability;
+    final private Committer committer;
+    final private LockProvider lockProvider;
+    // the same as lockProvider, if it allows optimistic reads.
+    final private StampedLockProvider stampedLockProvider;
+    final private IdValidator idValidator;
+    final private Layout layout;
+    final private IdIndex index;
+    final private VersionSequence sequence;
+    final private VersionHistory history;
+    final private PartFileRecovery.Report recoveryReport;
+    private final List<WriteListener> writeListeners = new CopyOnWriteArrayList<WriteListener>();
+    private volatile MetricsListener metrics = MetricsListener.NONE;
+    // whether the filesystem could link when the repository was opened.
+    final private boolean hardLinks;
+    // numbers the part files, so that one left by a crash doesn't block later writes of its id.
+    private final AtomicLong partFiles = new AtomicLong();
+    private static final Runnable NOTHING_TO_PUBLISH = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+    final private EntryLoader<byte[]> contentLoader = new EntryLoader<byte[]>() {
+        @Override
+        public byte[] load(String id) {
+            return doLoad(id);
+        }
+    };
 
     public ByteArrayRepo(File persistenceDir) {
-        validatePersistenceDir(persistenceDir);
-        this.persistenceDir = persistenceDir;
+        this(new Builder(persistenceDir));
     }
 
-    private void validatePersistenceDir(File persistenceDir) {
-        if (!persistenceDir.isDirectory()) {
+    private ByteArrayRepo(Builder builder) {
+        if (builder.retainedVersions < 0) {
+            throw new IllegalArgumentException("retained versions must not be negative");
+        }
+        this.persistenceDir = builder.persistenceDir.toPath();
+        this.idValidator = builder.idValidator;
+        this.layout = builder.layout;
+        validatePersistenceDir(this.persistenceDir);
+        try {
+            Layout.prepare(this.persistenceDir, this.layout);
+            this.recoveryReport = builder.recoverPartFiles ? PartFileRecovery.recover(builder.persistenceDir, builder.recoveryExecutor) : null;
+            this.sequence = new VersionSequence(this.persistenceDir);
+            this.index = IdIndex.open(this.persistenceDir, this.layout, this.sequence);
+            this.history = VersionHistory.open(this.persistenceDir, builder.retainedVersions, this.sequence, this.index);
+            this.hardLinks = canLink(this.persistenceDir);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not open %s", this.persistenceDir.toAbsolutePath()), e);
+        }
+        this.durability = builder.durability;
+        this.lockProvider = builder.lockProvider != null ? builder.lockProvider : new MultipleResourceLock();
+        this.stampedLockProvider = this.lockProvider instanceof StampedLockProvider ? (StampedLockProvider) this.lockProvider : null;
+        this.committer = Committer.create(this.durability, this.persistenceDir, builder.groupCommitMaxWrites, builder.groupCommitWindowNanos);
+    }
+
+    /**
+     * Opens a {@link ByteArrayRepo} with settings other than the defaults, e.g.
+     * {@code new ByteArrayRepo.Builder(dir).durability(Durability.FSYNC).build()}.
+     */
+    public static class Builder {
+
+        private final File persistenceDir;
+        private Durability durability = Durability.NONE;
+        private int groupCommitMaxWrites = DEFAULT_GROUP_COMMIT_MAX_WRITES;
+        private long groupCommitWindowNanos;
+        private LockProvider lockProvider;
+        private IdValidator idValidator = CharacterTableIdValidator.DEFAULT;
+        private Layout layout = Layout.FLAT;
+        private int retainedVersions;
+        private boolean recoverPartFiles;
+        private ExecutorService recoveryExecutor;
+
+        public Builder(File persistenceDir) {
+            this.persistenceDir = persistenceDir;
+        }
+
+        /**
+         * {@link Durability#NONE} by default. With GROUP_COMMIT, concurrent writes are committed
+         * together as soon as the previous group commit is done, unless told otherwise by
+         * {@link #groupCommit(int, long, TimeUnit)}.
+         */
+        public Builder durability(Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+
+        /**
+         * @param maxWrites at most this many writes are committed together;
+         * {@link #DEFAULT_GROUP_COMMIT_MAX_WRITES} by default
+         * @param window how long a group commit waits for more writes to join it; none by default
+         */
+        public Builder groupCommit(int maxWrites, long window, TimeUnit unit) {
+            this.groupCommitMaxWrites = maxWrites;
+            this.groupCommitWindowNanos = unit.toNanos(window);
+            return this;
+        }
+
+        /**
+         * @param lockProvider guards the entries; a {@link MultipleResourceLock} by default, so
+         * that ids never share a lock; pass a {@link StripedLockProvider} to save the map lookup
+         * and the allocation per call at the price of unrelated ids sometimes waiting for each
+         * other, or a {@link StampedLockProvider} for optimistic loads; wrap any of them in a
+         * {@link eu.franzoni.jquickrepo.metrics.ContentionTrackingLockProvider} to find hot ids.
+         */
+        public Builder lockProvider(LockProvider lockProvider) {
+            this.lockProvider = lockProvider;
+            return this;
+        }
+
+        /**
+         * @param idValidator decides which ids are accepted; {@link CharacterTableIdValidator#DEFAULT}
+         * by default.
+         */
+        public Builder idValidator(IdValidator idValidator) {
+            this.idValidator = idValidator;
+            return this;
+        }
+
+        /**
+         * @param layout where entries go below the directory; it must be the one the directory was
+         * created with, or any for a new directory. {@link Layout#FLAT} by default.
+         */
+        public Builder layout(Layout layout) {
+            this.layout = layout;
+            return this;
+        }
+
+        /**
+         * @param retainedVersions how many superseded versions of each entry are kept, to be
+         * loaded with {@link ByteArrayRepo#load(String, long)}; none by default.
+         */
+        public Builder retainedVersions(int retainedVersions) {
+            this.retainedVersions = retainedVersions;
+            return this;
+        }
+
+        /**
+         * Deletes the part files left by writes which never completed before opening, see
+         * {@link PartFileRecovery}; off by default, as it lists the whole directory. What was found
+         * is told by {@link ByteArrayRepo#getRecoveryReport()}.
+         *
+         * @param executor null to scan on the calling thread
+         */
+        public Builder recoverPartFiles(ExecutorService executor) {
+            this.recoverPartFiles = true;
+            this.recoveryExecutor = executor;
+            return this;
+        }
+
+        public ByteArrayRepo build() {
+            return new ByteArrayRepo(this);
+        }
+    }
+
+    /**
+     * @return what the part file recovery run when opening found, null unless asked for with
+     * {@link Builder#recoverPartFiles(ExecutorService)}.
+     */
+    public PartFileRecovery.Report getRecoveryReport() {
+        return this.recoveryReport;
+    }
+
+    /**
+     * Stops the group commit thread, after committing what's pending, and saves the ids so that
+     * the next repository opened on the directory doesn't have to list it.
+     */
+    @Override
+    public void close() {
+        this.committer.close();
+        try {
+            this.index.close();
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not save the ids of %s", this.persistenceDir.toAbsolutePath()), e);
+        }
+    }
+
+    /**
+     * Like {@link #keys()} and {@link #size()}, answered from the ids in memory: those found when
+     * the repository was opened and those written through it since.
+     */
+    @Override
+    public boolean exists(String id) {
+        validateId(id);
+        return this.index.contains(id);
+    }
+
+    @Override
+    public List<String> keys() {
+        return this.index.ids();
+    }
+
+    @Override
+    public List<String> keys(String prefix) {
+        return this.index.idsStartingWith(prefix);
+    }
+
+    @Override
+    public int size() {
+        return this.index.size();
+    }
+
+    private void validatePersistenceDir(Path persistenceDir) {
+        if (!Files.isDirectory(persistenceDir)) {
             throw new IllegalArgumentException("persistence dir must be a directory");
         }
 
-        if (!persistenceDir.canWrite()) {
+        if (!Files.isWritable(persistenceDir)) {
             throw new IllegalArgumentException("persistence dir must be writeable");
 
         }
 
-        if (!persistenceDir.canRead()) {
+        if (!Files.isReadable(persistenceDir)) {
             throw new IllegalArgumentException("persistence dir must be readable");
         }
     }
 
     public void save(final String id, final byte[] data) {
+        save(id, data, EntryFormat.RAW);
+    }
+
+    <X> void save(final String id, final X obj, final EntryFormat<X> format) {
         validateId(id);
 
-        ScopedReadWriteLock<Void> scopedLock = new ScopedReadWriteLock<Void>(lockProvider.provideLock(id));
-        scopedLock.executeWithWriteLock(new WhileLocked<Void>() {
+        executeWithWriteLock(Operation.SAVE, id, new WhileLocked<Void>() {
             @Override
             public Void execute() {
-                verifyResourceDoesNotExist(id);
-                persistData(id, data);
+                // no existence check up front: publishing the part file fails if the entry exists.
+                persistData(id, obj, format, true);
                 return null;
             }
         });
@@ -92,168 +540,777 @@ public class ByteArrayRepo implements Repository<byte[]> {
     }
 
     private void verifyResourceDoesNotExist(String id) {
-        if (new File(this.persistenceDir, id).exists()) {
+        if (Files.exists(entryPath(id))) {
             throw new DuplicateResourceIdException(id);
         }
     }
 
     private void verifyResourceExists(String id) {
-        if (!new File(this.persistenceDir, id).exists()) {
+        if (!Files.exists(entryPath(id))) {
             throw new MissingIdException(id);
         }
     }
 
     public void update(final String id, final byte[] data) {
+        update(id, data, EntryFormat.RAW);
+    }
+
+    <X> void update(final String id, final X obj, final EntryFormat<X> format) {
         validateId(id);
 
-        ScopedReadWriteLock<Void> scopedLock = new ScopedReadWriteLock<Void>(lockProvider.provideLock(id));
-        scopedLock.executeWithWriteLock(new WhileLocked<Void>() {
+        executeWithWriteLock(Operation.UPDATE, id, new WhileLocked<Void>() {
             @Override
             public Void execute() {
                 verifyResourceExists(id);
-                persistData(id, data);
+                persistData(id, obj, format);
                 return null;
             }
         });
 
     }
 
+    /**
+     * Versions are kept in memory only: each write takes the next number of a sequence which
+     * survives restarts, and entries which weren't written since opening the repository get a
+     * version above all those handed out before.
+     */
+    public long update(final String id, final byte[] data, final long expectedVersion) {
+        return update(id, data, expectedVersion, EntryFormat.RAW);
+    }
+
+    <X> long update(final String id, final X obj, final long expectedVersion, final EntryFormat<X> format) {
+        validateId(id);
+
+        return executeWithWriteLock(Operation.UPDATE, id, new WhileLocked<Long>() {
+            @Override
+            public Long execute() {
+                long actual = currentVersion(id);
+                if (actual == Entry.NO_VERSION) {
+                    throw new MissingIdException(id);
+                }
+                if (actual != expectedVersion) {
+                    throw new VersionConflictException(id, expectedVersion, actual);
+                }
+                persistData(id, obj, format);
+                return index.version(id);
+            }
+        });
+    }
+
+    public boolean compareAndSet(String id, long expectedVersion, byte[] data) {
+        return compareAndSet(id, expectedVersion, data, EntryFormat.RAW);
+    }
+
+    <X> boolean compareAndSet(String id, long expectedVersion, X obj, EntryFormat<X> format) {
+        try {
+            update(id, obj, expectedVersion, format);
+            return true;
+        } catch (VersionConflictException e) {
+            return false;
+        } catch (MissingIdException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the version of the id, {@link Entry#NO_VERSION} if there's no entry; the caller must
+     * hold the id lock.
+     */
+    private long currentVersion(String id) {
+        long version = this.index.version(id);
+        if (version == Entry.NO_VERSION && Files.exists(entryPath(id))) {
+            // not written through us, and not there when the repository was opened.
+            this.index.found(id);
+            version = this.index.version(id);
+        }
+        return version;
+    }
+
     public void saveOrUpdate(final String id, final byte[] data) {
+        saveOrUpdate(id, data, EntryFormat.RAW);
+    }
+
+    <X> void saveOrUpdate(final String id, final X obj, final EntryFormat<X> format) {
         validateId(id);
 
-        ScopedReadWriteLock<Void> scopedLock = new ScopedReadWriteLock<Void>(lockProvider.provideLock(id));
-        scopedLock.executeWithWriteLock(new WhileLocked<Void>() {
+        executeWithWriteLock(Operation.SAVE_OR_UPDATE, id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                persistData(id, obj, format);
+                return null;
+            }
+        });
+    }
+
+    public void saveAll(Map<String, byte[]> entries) {
+        apply(new Batch<byte[]>().saveAll(entries));
+    }
+
+    public void saveOrUpdateAll(Map<String, byte[]> entries) {
+        apply(new Batch<byte[]>().saveOrUpdateAll(entries));
+    }
+
+    public void apply(Batch<byte[]> batch) {
+        apply(batch, EntryFormat.RAW, null);
+    }
+
+    public void apply(Batch<byte[]> batch, ExecutorService executor) {
+        apply(batch, EntryFormat.RAW, executor);
+    }
+
+    /**
+     * Writes every part file of the batch (on the executor, if not null) before renaming any of
+     * them into place, so a batch failing before the renames leaves the repository untouched.
+     */
+    <X> void apply(final Batch<X> batch, final EntryFormat<X> format, final ExecutorService executor) {
+        for (String id : batch.getIds()) {
+            validateId(id);
+        }
+
+        executeWithWriteLocks(Operation.APPLY, batch.getIds(), new WhileLocked<Void>() {
             @Override
             public Void execute() {
-                persistData(id, data);
+                for (Batch.Write<X> write : batch.getWrites()) {
+                    verifyPrecondition(write);
+                }
+
+                final List<Batch.Write<X>> puts = new ArrayList<Batch.Write<X>>();
+                for (Batch.Write<X> write : batch.getWrites()) {
+                    if (write.getOperation() != Batch.Operation.DELETE) {
+                        puts.add(write);
+                    }
+                }
+                // set once created, so that only our own part files get cleaned up.
+                final Path[] datafiles = new Path[puts.size()];
+                final boolean sync = durability != Durability.NONE;
+                try {
+                    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+                    for (int i = 0; i < puts.size(); i++) {
+                        final int index = i;
+                        tasks.add(new Callable<Void>() {
+                            @Override
+                            public Void call() {
+                                Batch.Write<X> write = puts.get(index);
+                                PartFile part = createTemporaryDataFile(write.getId());
+                                FileChannel channel = part.channel;
+                                datafiles[index] = part.path;
+                                try {
+                                    writeData(write.getValue(), format, channel);
+                                    if (sync) {
+                                        // synced here, in parallel, rather than kept open for the committer.
+                                        channel.force(true);
+                                    }
+                                } catch (IOException e) {
+                                    throw new RuntimeException(e);
+                                } finally {
+                                    closeTemporaryDataFile(channel);
+                                }
+                                return null;
+                            }
+                        });
+                    }
+                    BatchTasks.runAll(tasks, executor);
+
+                    Set<Path> directories = new LinkedHashSet<Path>();
+                    for (String id : batch.getIds()) {
+                        directories.add(entryPath(id).getParent());
+                    }
+                    committer.commit(Collections.<FileChannel>emptyList(), directories, new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int i = 0; i < puts.size(); i++) {
+                                renameDataFileToFinalName(puts.get(i).getId(), datafiles[i]);
+                            }
+                            for (Batch.Write<X> write : batch.getWrites()) {
+                                if (write.getOperation() == Batch.Operation.DELETE) {
+                                    deleteEntryFile(write.getId());
+                                }
+                            }
+                        }
+                    });
+                } finally {
+                    // only the ones which weren't renamed are still there.
+                    for (Path datafile : datafiles) {
+                        if (datafile != null) {
+                            removePartFile(datafile);
+                        }
+                    }
+                }
                 return null;
             }
         });
     }
 
-    private void persistData(String id, byte[] data) {
-        File datafile = createTemporaryDataFile(id);
-        writeDataToTemporaryDataFile(data, datafile);
-        renameDataFileToFinalName(id, datafile);
+    private void verifyPrecondition(Batch.Write<?> write) {
+        switch (write.getOperation()) {
+            case SAVE:
+                verifyResourceDoesNotExist(write.getId());
+                break;
+            case UPDATE:
+                verifyResourceExists(write.getId());
+                break;
+            case DELETE:
+                if (!Files.exists(entryPath(write.getId()))) {
+                    throw new UnknownResourceIdException(write.getId());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private <X> void persistData(final String id, X obj, EntryFormat<X> format) {
+        persistData(id, obj, format, false);
+    }
+
+    /**
+     * @param mustNotExist fail with {@link DuplicateResourceIdException}, rather than replacing
+     * the entry, if it exists already.
+     */
+    private <X> void persistData(final String id, X obj, EntryFormat<X> format, final boolean mustNotExist) {
+        final PartFile part = createTemporaryDataFile(id);
+        final Path datafile = part.path;
+        final FileChannel channel = part.channel;
+        try {
+            try {
+                writeData(obj, format, channel);
+                committer.commit(Collections.singletonList(channel), Collections.singletonList(datafile.getParent()), new Runnable() {
+                    @Override
+                    public void run() {
+                        // some platforms can't rename open files.
+                        closeTemporaryDataFile(channel);
+                        if (mustNotExist) {
+                            publishNewDataFile(id, datafile);
+                        } else {
+                            renameDataFileToFinalName(id, datafile);
+                        }
+                    }
+                });
+            } finally {
+                closeTemporaryDataFile(channel);
+            }
+        } catch (RuntimeException e) {
+            // a leftover part file would block any further write of this id.
+            removePartFile(datafile);
+            throw e;
+        }
     }
 
     private void validateId(String id) {
-        if (!id.matches("^[a-zA-Z0-9_\\-]+$")) {
-            throw new BadIdException(id, "contains unsupported characters");
+        this.idValidator.validate(id);
+    }
+
+    private Path entryPath(String id) {
+        return this.layout.directoryOf(this.persistenceDir, id).resolve(id);
+    }
+
+    /**
+     * A name no part file of the id had in this repository yet: {@code <id>.<n>.part}.
+     */
+    private Path partPath(String id) {
+        String attempt = Long.toString(this.partFiles.incrementAndGet(), Character.MAX_RADIX);
+        return this.layout.directoryOf(this.persistenceDir, id).resolve(id + "." + attempt + Layout.PART_SUFFIX);
+    }
+
+    private void renameDataFileToFinalName(String id, Path datafile) {
+        final Path finalFile = entryPath(id);
+        // taken before checking the history: a snapshot opened afterwards doesn't need the old version.
+        long version = this.sequence.next();
+        boolean keepHistory = this.history.enabled();
+        if (keepHistory) {
+            preserveCurrentVersion(id);
         }
+        try {
+            // a plain rename(2), replacing the old version if any.
+            Files.move(datafile, finalFile, StandardCopyOption.ATOMIC_MOVE);
+            this.index.written(id, version);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not rename %s to %s", datafile.toAbsolutePath(), finalFile.toAbsolutePath()), e);
+        }
+        if (keepHistory) {
+            trimHistory(id, version);
+        }
+    }
 
+    private void preserveCurrentVersion(String id) {
+        long current = currentVersion(id);
+        if (current == Entry.NO_VERSION) {
+            return;
+        }
+        try {
+            this.history.preserve(id, current, entryPath(id));
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not keep version %d of '%s'", current, id), e);
+        }
     }
 
-    private void renameDataFileToFinalName(String id, File datafile) {
-        final File finalFile = new File(this.persistenceDir, id);
-        boolean succeeded = datafile.renameTo(finalFile);
+    private void trimHistory(String id, long current) {
+        try {
+            this.history.trim(id, current);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not drop old versions of '%s'", id), e);
+        }
+    }
 
-        if (!succeeded) {
-            boolean existingOld = datafile.exists();
-            boolean existingNew = finalFile.exists();
+    /**
+     * Whether files in the directory can be hard linked: links are tried once, on files of our
+     * own, so that a failure later on (e.g. a full disk) is taken for what it is.
+     */
+    private static boolean canLink(Path dir) throws IOException {
+        Path probe = Files.createTempFile(dir, ".link", null);
+        Path link = probe.resolveSibling(probe.getFileName() + ".probe");
+        try {
+            Files.createLink(link, probe);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (FileSystemException e) {
+            // e.g. EPERM on FAT.
+            return false;
+        } finally {
+            Files.deleteIfExists(link);
+            Files.delete(probe);
+        }
+    }
 
-            throw new RuntimeException(String.format("could not rename (exists: %s) %s to (exists: %s) %s", existingOld, datafile.getAbsolutePath(), existingNew, finalFile.getAbsolutePath()));
+    /**
+     * Gives the part file its final name only if no entry has it already, atomically: a hard link
+     * can't replace an existing file, unlike a rename. Falls back to checking and renaming (under
+     * the id lock, but racing other processes) where the filesystem has no hard links.
+     */
+    private void publishNewDataFile(String id, Path datafile) throws DuplicateResourceIdException {
+        final Path finalFile = entryPath(id);
+        if (!this.hardLinks) {
+            verifyResourceDoesNotExist(id);
+            renameDataFileToFinalName(id, datafile);
+            return;
+        }
+        long version = this.sequence.next();
+        try {
+            Files.createLink(finalFile, datafile);
+        } catch (FileAlreadyExistsException e) {
+            // even if it wasn't written through us.
+            this.index.found(id);
+            throw new DuplicateResourceIdException(id, e);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not link %s to %s", datafile.toAbsolutePath(), finalFile.toAbsolutePath()), e);
+        }
+        this.index.written(id, version);
+        try {
+            Files.delete(datafile);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not remove %s", datafile.toAbsolutePath()), e);
         }
     }
 
-    private void writeDataToTemporaryDataFile(byte[] data, File datafile) {
+    private <X> void writeData(X obj, EntryFormat<X> format, FileChannel channel) {
         try {
-            FileOutputStream fos = new FileOutputStream(datafile);
-            fos.write(data);
-            fos.flush();
-            fos.close();
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
+            format.write(obj, channel, this.metrics);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private File createTemporaryDataFile(String id) {
-        File datafile = new File(this.persistenceDir, id + ".part");
-
-        if (datafile.exists()) {
-            throw new RuntimeException(String.format("Part file exists already: %s", datafile.getAbsolutePath()));
+    private void closeTemporaryDataFile(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
+    }
 
-        // this is required only in order to check whether the name is too long.
+    private void removePartFile(Path file) {
         try {
-            boolean created = datafile.createNewFile();
-            if (datafile.exists() && !created) {
-                throw new RuntimeException(String.format("Part file exists already but was not created: %s", datafile.getAbsolutePath()));
-            }
-            if (!created) {
-                throw new RuntimeException(String.format("Could not create %s", datafile.getAbsolutePath()));
+            if (Files.deleteIfExists(file)) {
+                this.metrics.partFileRemoved();
             }
         } catch (IOException e) {
-            throw new BadIdException(id, "too long for the underlying filesystem", e);
+            // we're already failing, the original problem is what matters.
+        }
+    }
+
+    /**
+     * @return a new, empty part file for the id, open for writing.
+     */
+    private PartFile createTemporaryDataFile(String id) {
+        while (true) {
+            Path datafile = partPath(id);
+            try {
+                try {
+                    // checks that the part file doesn't exist and creates it, in a single call.
+                    return new PartFile(datafile, FileChannel.open(datafile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+                } catch (NoSuchFileException e) {
+                    // the first write to this shard.
+                    createDirectory(datafile.getParent());
+                    return new PartFile(datafile, FileChannel.open(datafile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+                }
+            } catch (FileAlreadyExistsException e) {
+                // left by a previous process which got as far; see PartFileRecovery.
+                continue;
+            } catch (IOException e) {
+                throw new BadIdException(id, "too long for the underlying filesystem", e);
+            }
+        }
+    }
+
+    private static final class PartFile {
+
+        final Path path;
+        final FileChannel channel;
+
+        PartFile(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Creates the directory and any missing parent, making each durable if writes are.
+     */
+    private void createDirectory(Path dir) throws IOException {
+        Path parent = dir.getParent();
+        if (!Files.isDirectory(parent)) {
+            createDirectory(parent);
+        }
+        try {
+            Files.createDirectory(dir);
+        } catch (FileAlreadyExistsException e) {
+            // a writer of another id in the same shard got there first.
+            return;
+        }
+        if (this.durability != Durability.NONE) {
+            Committer.syncDirectory(parent);
         }
-        return datafile;
     }
 
     // TODO: make this method less complex.
     public byte[] load(final String id) throws UnknownResourceIdException {
-        return doLoad(id);
+        return load(id, EntryFormat.RAW);
 
     }
 
+    <X> X load(final String id, final EntryFormat<X> format) throws UnknownResourceIdException {
+        return timed(Operation.LOAD, new WhileLocked<X>() {
+            @Override
+            public X execute() {
+                return doLoad(id, format);
+            }
+        });
+    }
+
+    /**
+     * Loads the entry as it was at the given version, which must be its current one or one of
+     * those kept, see {@link Builder#retainedVersions(int)}.
+     *
+     * @throws UnknownResourceIdException if the entry was never at that version, or it's not kept.
+     */
+    public byte[] load(final String id, final long version) throws UnknownResourceIdException {
+        return load(id, version, EntryFormat.RAW);
+    }
+
+    <X> X load(final String id, final long version, final EntryFormat<X> format) throws UnknownResourceIdException {
+        return timed(Operation.LOAD, new WhileLocked<X>() {
+            @Override
+            public X execute() {
+                return doLoad(id, version, format);
+            }
+        });
+    }
+
+    private <X> X doLoad(final String id, final long version, final EntryFormat<X> format) {
+        return executeWithReadLock(id, new WhileLocked<X>() {
+            @Override
+            public X execute() {
+                if (index.version(id) == version) {
+                    return getContents(id, format);
+                }
+                Path file = history.fileAt(id, version);
+                if (file == null) {
+                    throw new UnknownResourceIdException(id);
+                }
+                return readFile(id, file, format);
+            }
+        });
+    }
+
+    /**
+     * Opens a consistent, read only view of the repository as it is now, which later writes
+     * don't change; it keeps the versions it needs until closed, so close it soon.
+     */
+    public Snapshot<byte[]> snapshot() {
+        return snapshot(EntryFormat.RAW);
+    }
+
+    <X> Snapshot<X> snapshot(EntryFormat<X> format) {
+        return new Snapshot<X>(this, this.history.pin(), format);
+    }
+
+    /**
+     * Loads the entry as it was at the version of a snapshot.
+     */
+    <X> X loadAsOf(final String id, final long snapshot, final EntryFormat<X> format) throws UnknownResourceIdException {
+        return timed(Operation.LOAD, new WhileLocked<X>() {
+            @Override
+            public X execute() {
+                return doLoadAsOf(id, snapshot, format);
+            }
+        });
+    }
+
+    <X> X doLoadAsOf(final String id, final long snapshot, final EntryFormat<X> format) {
+        return executeWithReadLock(id, new WhileLocked<X>() {
+            @Override
+            public X execute() {
+                long current = index.version(id);
+                if (current != Entry.NO_VERSION && current <= snapshot) {
+                    return getContents(id, format);
+                }
+                Path file = history.fileAsOf(id, snapshot);
+                if (file == null) {
+                    throw new UnknownResourceIdException(id);
+                }
+                return readFile(id, file, format);
+            }
+        });
+    }
+
+    /**
+     * @return the sorted ids of the entries which existed at the version of a snapshot, as far as
+     * the writes of this repository tell.
+     */
+    List<String> idsAsOf(final long snapshot) {
+        Set<String> candidates = new TreeSet<String>(this.index.ids());
+        candidates.addAll(this.history.ids());
+        List<String> ids = new ArrayList<String>(candidates.size());
+        for (final String id : candidates) {
+            long current = this.index.version(id);
+            if (current != Entry.NO_VERSION && current <= snapshot) {
+                // versions only grow: it's in the snapshot whatever happens to it now.
+                ids.add(id);
+                continue;
+            }
+            boolean existed = executeWithReadLock(id, new WhileLocked<Boolean>() {
+                @Override
+                public Boolean execute() {
+                    long current = index.version(id);
+                    return (current != Entry.NO_VERSION && current <= snapshot) || history.fileAsOf(id, snapshot) != null;
+                }
+            });
+            if (existed) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Unpins the versions of a closed snapshot, dropping those nothing needs anymore.
+     */
+    void release(long snapshot) {
+        this.history.release(snapshot);
+        for (final String id : this.history.ids()) {
+            ScopedReadWriteLock<Void> scopedLock = new ScopedReadWriteLock<Void>(this.lockProvider.provideLock(id), lockListener());
+            scopedLock.executeWithWriteLock(new WhileLocked<Void>() {
+                @Override
+                public Void execute() {
+                    trimHistory(id, index.version(id));
+                    return null;
+                }
+            });
+        }
+    }
+
+    public Entry<byte[]> loadEntry(final String id) throws UnknownResourceIdException {
+        return loadEntry(id, EntryFormat.RAW);
+    }
+
+    <X> Entry<X> loadEntry(final String id, final EntryFormat<X> format) throws UnknownResourceIdException {
+        return timed(Operation.LOAD, new WhileLocked<Entry<X>>() {
+            @Override
+            public Entry<X> execute() {
+                Entry<X> entry = executeWithOptimisticRead(id, new WhileLocked<Entry<X>>() {
+                    @Override
+                    public Entry<X> execute() {
+                        X contents = getContents(id, format);
+                        long version = index.version(id);
+                        // an entry the index doesn't know yet is added under the lock below.
+                        return version == Entry.NO_VERSION ? null : new Entry<X>(id, contents, version);
+                    }
+                });
+                if (entry != null) {
+                    return entry;
+                }
+                return executeWithReadLock(id, new WhileLocked<Entry<X>>() {
+                    @Override
+                    public Entry<X> execute() {
+                        X contents = getContents(id, format);
+                        return new Entry<X>(id, contents, currentVersion(id));
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Maps the data of the entry in memory, read only, without copying it to the heap.
+     *
+     * The mapping keeps showing the data as it was when mapped, even if the entry is updated or
+     * deleted later; on platforms which don't allow replacing or deleting mapped files (Windows)
+     * writes to the id fail until the buffer is garbage collected.
+     */
+    public ByteBuffer loadMapped(final String id) throws UnknownResourceIdException {
+        return executeWithReadLock(id, new WhileLocked<ByteBuffer>() {
+            @Override
+            public ByteBuffer execute() {
+                try {
+                    FileChannel channel = openContents(id);
+                    try {
+                        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    } finally {
+                        channel.close();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(String.format("could not map '%s'", id), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the data of the entry to the given channel, letting the OS move the bytes directly
+     * (e.g. sendfile) when the channel allows it, without copying them to the heap.
+     *
+     * @return the number of bytes written.
+     * @throws IOException if writing to the target fails.
+     */
+    public long transferTo(final String id, final WritableByteChannel target) throws UnknownResourceIdException, IOException {
+        final IOException[] failure = new IOException[1];
+        long transferred = executeWithReadLock(id, new WhileLocked<Long>() {
+            @Override
+            public Long execute() {
+                try {
+                    FileChannel channel = openContents(id);
+                    try {
+                        long size = channel.size();
+                        long position = 0;
+                        while (position < size) {
+                            position += channel.transferTo(position, size - position, target);
+                        }
+                        return position;
+                    } finally {
+                        channel.close();
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                    return -1L;
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return transferred;
+    }
+
+    private FileChannel openContents(String id) throws UnknownResourceIdException, IOException {
+        try {
+            return FileChannel.open(entryPath(id), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new UnknownResourceIdException(id, e);
+        }
+    }
+
     private byte[] getContents(String id) throws UnknownResourceIdException {
+        return getContents(id, EntryFormat.RAW);
+    }
+
+    private <X> X getContents(String id, EntryFormat<X> format) throws UnknownResourceIdException {
+        return readFile(id, entryPath(id), format);
+    }
+
+    private <X> X readFile(String id, Path file, EntryFormat<X> format) throws UnknownResourceIdException {
         try {
-            return Files.toByteArray(new File(persistenceDir, id));
-        } catch (IOException e) {
+            return format.read(file, this.metrics);
+        } catch (NoSuchFileException e) {
             throw new UnknownResourceIdException(id, e);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not read '%s'", id), e);
         }
     }
 
     public void delete(final String id) throws UnknownResourceIdException {
         validateId(id);
 
-        ScopedReadWriteLock<Void> scopedLock = new ScopedReadWriteLock<Void>(lockProvider.provideLock(id));
-        scopedLock.executeWithWriteLock(new WhileLocked<Void>() {
+        executeWithWriteLock(Operation.DELETE, id, new WhileLocked<Void>() {
             @Override
             public Void execute() {
-                File file = new File(persistenceDir, id);
-                boolean wasDeleted = file.delete();
-                if (!wasDeleted) {
-                    throw new UnknownResourceIdException(id);
-                }
+                deleteEntryFile(id);
+                committer.commit(Collections.<FileChannel>emptyList(), Collections.singletonList(entryPath(id).getParent()), NOTHING_TO_PUBLISH);
                 return null;
             }
         });
 
     }
 
+    private void deleteEntryFile(String id) throws UnknownResourceIdException {
+        long tombstone = this.sequence.next();
+        // the history of deleted entries is only kept for snapshots.
+        boolean keepHistory = this.history.snapshotsOpen();
+        if (keepHistory) {
+            preserveCurrentVersion(id);
+        }
+        try {
+            boolean deleted = Files.deleteIfExists(entryPath(id));
+            this.index.removed(id);
+            if (!deleted) {
+                throw new UnknownResourceIdException(id);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not delete '%s'", id), e);
+        }
+        if (keepHistory) {
+            this.history.deleted(id, tombstone);
+        }
+        trimHistory(id, Entry.NO_VERSION);
+    }
+
     public void modifyWhileLocking(final String id, final DoWhileLocking<byte[]> doWhile) throws UnknownResourceIdException {
+        modifyWhileLocking(id, doWhile, EntryFormat.RAW);
+    }
+
+    <X> void modifyWhileLocking(final String id, final DoWhileLocking<X> doWhile, final EntryFormat<X> format) throws UnknownResourceIdException {
         validateId(id);
 
-        ScopedReadWriteLock<Void> scopedLock = new ScopedReadWriteLock<Void>(lockProvider.provideLock(id));
-        scopedLock.executeWithWriteLock(new WhileLocked<Void>() {
+        executeWithWriteLock(Operation.MODIFY_WHILE_LOCKING, id, new WhileLocked<Void>() {
             @Override
             public Void execute() {
-                byte[] newData = doWhile.execute(getContents(id));
-                persistData(id, newData);
+                X newData = doWhile.execute(getContents(id, format));
+                persistData(id, newData, format);
                 return null;
             }
         });
     }
 
     public void modifyWhileLocking(final String id, final DoWhileLocking<byte[]> doWhile, final byte[] missing) throws UnknownResourceIdException {
+        modifyWhileLocking(id, doWhile, missing, EntryFormat.RAW);
+    }
+
+    <X> void modifyWhileLocking(final String id, final DoWhileLocking<X> doWhile, final X missing, final EntryFormat<X> format) throws UnknownResourceIdException {
         validateId(id);
 
-        ScopedReadWriteLock<Void> scopedLock = new ScopedReadWriteLock<Void>(lockProvider.provideLock(id));
-        scopedLock.executeWithWriteLock(new WhileLocked<Void>() {
+        executeWithWriteLock(Operation.MODIFY_WHILE_LOCKING, id, new WhileLocked<Void>() {
             @Override
             public Void execute() {
-                byte[] data;
+                X data;
                 try {
-                    data = getContents(id);
+                    data = getContents(id, format);
                 } catch (UnknownResourceIdException e) {
                     data = missing;
 
                 }
 
-                byte[] newData = doWhile.execute(data);
-                persistData(id, newData);
+                X newData = doWhile.execute(data);
+                persistData(id, newData, format);
                 return null;
             }
         });
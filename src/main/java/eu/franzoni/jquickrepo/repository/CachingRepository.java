@@ -0,0 +1,286 @@
+package eu.franzoni.jquickrepo.repository;
+
+import eu.franzoni.jquickrepo.concurrency.LockProvider;
+import eu.franzoni.jquickrepo.concurrency.MultipleResourceLock;
+import eu.franzoni.jquickrepo.concurrency.ScopedMultipleWriteLock;
+import eu.franzoni.jquickrepo.concurrency.ScopedReadWriteLock;
+import eu.franzoni.jquickrepo.concurrency.WhileLocked;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache in front of another repository.
+ *
+ * Loads are served from memory when possible; every write goes through the per-id write lock,
+ * which is the same lock loads are served under, and drops the cached value, so a load never
+ * returns data older than the last write made through this instance. Writes made straight to the
+ * wrapped repository (or to the same directory by another instance) aren't seen until the value
+ * is evicted or expires, use {@link #invalidate(String)} in that case.
+ *
+ * Cached values are shared between callers: don't modify what load() returns.
+ */
+public class CachingRepository<T> implements Repository<T> {
+
+    private final Repository<T> delegate;
+    private final LruCache<T> cache;
+    // a lock per id, so that ids never wait for each other here.
+    private final LockProvider lockProvider = new MultipleResourceLock();
+
+    public CachingRepository(Repository<T> delegate, long maximumSize) {
+        this(delegate, maximumSize, 0, TimeUnit.NANOSECONDS);
+    }
+
+    public CachingRepository(Repository<T> delegate, long maximumSize, long expireAfterWrite, TimeUnit unit) {
+        this.delegate = delegate;
+        this.cache = new LruCache<T>(maximumSize, Long.MAX_VALUE, null, unit.toNanos(expireAfterWrite));
+    }
+
+    public CachingRepository(Repository<T> delegate, long maximumWeight, Weigher<? super T> weigher, long expireAfterWrite, TimeUnit unit) {
+        this.delegate = delegate;
+        this.cache = new LruCache<T>(Long.MAX_VALUE, maximumWeight, weigher, unit.toNanos(expireAfterWrite));
+    }
+
+    @Override
+    public T load(final String id) {
+        ScopedReadWriteLock<T> scopedLock = new ScopedReadWriteLock<T>(lockProvider.provideLock(id));
+        return scopedLock.executeWithReadLock(new WhileLocked<T>() {
+            @Override
+            public T execute() {
+                T cached = cache.get(id);
+                if (cached != null) {
+                    return cached;
+                }
+                T loaded = delegate.load(id);
+                cache.put(id, loaded);
+                return loaded;
+            }
+        });
+    }
+
+    /**
+     * Not cached: the version must be the one of what's stored, and values cached by
+     * {@link #load(String)} don't carry one.
+     */
+    @Override
+    public Entry<T> loadEntry(String id) {
+        return this.delegate.loadEntry(id);
+    }
+
+    @Override
+    public Collection<Entry<T>> loadAll() {
+        return this.delegate.loadAll();
+    }
+
+    @Override
+    public Iterator<Entry<T>> iterateAll() {
+        return this.delegate.iterateAll();
+    }
+
+    @Override
+    public Iterator<Entry<T>> iterateAll(ExecutorService executor, int maxInFlight) {
+        return this.delegate.iterateAll(executor, maxInFlight);
+    }
+
+    @Override
+    public void save(final String id, final T obj) {
+        writeAndInvalidate(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                delegate.save(id, obj);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void saveOrUpdate(final String id, final T obj) {
+        writeAndInvalidate(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                delegate.saveOrUpdate(id, obj);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void update(final String id, final T obj) {
+        writeAndInvalidate(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                delegate.update(id, obj);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public long update(final String id, final T obj, final long expectedVersion) {
+        return writeAndInvalidate(id, new WhileLocked<Long>() {
+            @Override
+            public Long execute() {
+                return delegate.update(id, obj, expectedVersion);
+            }
+        });
+    }
+
+    @Override
+    public boolean compareAndSet(final String id, final long expectedVersion, final T obj) {
+        return writeAndInvalidate(id, new WhileLocked<Boolean>() {
+            @Override
+            public Boolean execute() {
+                return delegate.compareAndSet(id, expectedVersion, obj);
+            }
+        });
+    }
+
+    @Override
+    public void delete(final String id) {
+        writeAndInvalidate(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                delegate.delete(id);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public boolean exists(String id) {
+        return this.delegate.exists(id);
+    }
+
+    @Override
+    public List<String> keys() {
+        return this.delegate.keys();
+    }
+
+    @Override
+    public List<String> keys(String prefix) {
+        return this.delegate.keys(prefix);
+    }
+
+    @Override
+    public int size() {
+        return this.delegate.size();
+    }
+
+    @Override
+    public void modifyWhileLocking(final String id, final DoWhileLocking<T> whileLocking) throws UnknownResourceIdException {
+        writeAndInvalidate(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                delegate.modifyWhileLocking(id, whileLocking);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void modifyWhileLocking(final String id, final DoWhileLocking<T> whileLocking, final T missing) throws UnknownResourceIdException {
+        writeAndInvalidate(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                delegate.modifyWhileLocking(id, whileLocking, missing);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void saveAll(Map<String, T> entries) {
+        apply(new Batch<T>().saveAll(entries));
+    }
+
+    @Override
+    public void saveOrUpdateAll(Map<String, T> entries) {
+        apply(new Batch<T>().saveOrUpdateAll(entries));
+    }
+
+    @Override
+    public void apply(final Batch<T> batch) {
+        writeAndInvalidate(batch, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                delegate.apply(batch);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void apply(final Batch<T> batch, final ExecutorService executor) {
+        writeAndInvalidate(batch, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                delegate.apply(batch, executor);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Drops the cached value for the given id, if any; needed only when the wrapped repository is
+     * modified without going through this cache.
+     */
+    public void invalidate(final String id) {
+        writeAndInvalidate(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                return null;
+            }
+        });
+    }
+
+    public void invalidateAll() {
+        this.cache.invalidateAll();
+    }
+
+    public long getHitCount() {
+        return this.cache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return this.cache.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return this.cache.getEvictionCount();
+    }
+
+    private <X> X writeAndInvalidate(final String id, final WhileLocked<X> write) {
+        ScopedReadWriteLock<X> scopedLock = new ScopedReadWriteLock<X>(lockProvider.provideLock(id));
+        return scopedLock.executeWithWriteLock(new WhileLocked<X>() {
+            @Override
+            public X execute() {
+                try {
+                    return write.execute();
+                } finally {
+                    // a failed write may still have changed what's on disk.
+                    cache.invalidate(id);
+                }
+            }
+        });
+    }
+
+    private void writeAndInvalidate(final Batch<T> batch, final WhileLocked<Void> write) {
+        ScopedMultipleWriteLock<Void> scopedLock = new ScopedMultipleWriteLock<Void>(lockProvider.provideLocks(batch.getIds()));
+        scopedLock.executeWithWriteLocks(new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                try {
+                    return write.execute();
+                } finally {
+                    for (String id : batch.getIds()) {
+                        cache.invalidate(id);
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,67 @@
+package eu.franzoni.jquickrepo.repository;
+
+/**
+ * Accepts the non empty ids made only of the given characters, checking them one by one against
+ * a lookup table: no regex, no allocation.
+ *
+ * Path separators and control characters can't be allowed. If the dot is, ids still can't start
+ * with one (they'd be hidden, or mean the directory itself) nor end with the ".part" suffix of
+ * the files being written.
+ */
+public class CharacterTableIdValidator implements IdValidator {
+
+    public static final String DEFAULT_CHARACTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789_-";
+
+    /**
+     * The ids every repository accepted so far: ASCII letters, digits, underscore and hyphen.
+     */
+    public static final CharacterTableIdValidator DEFAULT = new CharacterTableIdValidator(DEFAULT_CHARACTERS);
+
+    private static final String PART_SUFFIX = ".part";
+
+    private final boolean[] allowed;
+    private final boolean dotAllowed;
+
+    public CharacterTableIdValidator(String characters) {
+        if (characters.isEmpty()) {
+            throw new IllegalArgumentException("at least a character must be allowed");
+        }
+        char max = 0;
+        for (int i = 0; i < characters.length(); i++) {
+            char c = characters.charAt(i);
+            if (c < ' ' || c == 0x7f || c == '/' || c == '\\') {
+                throw new IllegalArgumentException(String.format("character U+%04X can't be used in ids", (int) c));
+            }
+            max = (char) Math.max(max, c);
+        }
+
+        this.allowed = new boolean[max + 1];
+        for (int i = 0; i < characters.length(); i++) {
+            this.allowed[characters.charAt(i)] = true;
+        }
+        this.dotAllowed = '.' < this.allowed.length && this.allowed['.'];
+    }
+
+    @Override
+    public void validate(String id) throws BadIdException {
+        final int length = id.length();
+        if (length == 0) {
+            throw new BadIdException(id, "is empty");
+        }
+        for (int i = 0; i < length; i++) {
+            char c = id.charAt(i);
+            if (c >= this.allowed.length || !this.allowed[c]) {
+                throw new BadIdException(id, "contains unsupported characters");
+            }
+        }
+
+        if (this.dotAllowed) {
+            if (id.charAt(0) == '.') {
+                throw new BadIdException(id, "starts with a dot");
+            }
+            if (id.endsWith(PART_SUFFIX)) {
+                throw new BadIdException(id, "ends with " + PART_SUFFIX);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Makes writes to a directory durable, according to a {@link Durability}.
+ */
+abstract class Committer {
+
+    private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
+    static Committer create(Durability durability, Path dir, int groupCommitMaxWrites, long groupCommitWindowNanos) {
+        switch (durability) {
+            case NONE:
+                return new Immediate(dir, false);
+            case FSYNC:
+                return new Immediate(dir, true);
+            case GROUP_COMMIT:
+                return new GroupCommitter(dir, groupCommitMaxWrites, groupCommitWindowNanos);
+            default:
+                throw new IllegalArgumentException("unknown durability " + durability);
+        }
+    }
+
+    /**
+     * Syncs the given files, then runs publish (which renames or deletes entries in the given
+     * directories), then syncs the directories; returns once all of this is done.
+     */
+    abstract void commit(List<FileChannel> written, Collection<Path> directories, Runnable publish);
+
+    /**
+     * Commits anything still pending; further commits fail.
+     */
+    void close() {
+    }
+
+    static void syncDirectory(Path dir) throws IOException {
+        if (WINDOWS) {
+            // directories can't be opened there, and NTFS journals renames anyway.
+            return;
+        }
+        FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static class Immediate extends Committer {
+
+        private final Path dir;
+        private final boolean sync;
+
+        Immediate(Path dir, boolean sync) {
+            this.dir = dir;
+            this.sync = sync;
+        }
+
+        @Override
+        void commit(List<FileChannel> written, Collection<Path> directories, Runnable publish) {
+            if (!sync) {
+                publish.run();
+                return;
+            }
+            try {
+                for (FileChannel channel : written) {
+                    channel.force(true);
+                }
+                publish.run();
+                for (Path directory : directories) {
+                    syncDirectory(directory);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("could not sync %s", dir.toAbsolutePath()), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package eu.franzoni.jquickrepo.repository;
+
+/**
+ * Makes a private copy of a cached object, so that callers can modify what they load without
+ * affecting the cache. A copier returning its argument is fine for objects nobody modifies.
+ */
+public interface Copier<T> {
+    public T copy(T original);
+}
@@ -0,0 +1,56 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Serializes the updates of the files shared by every repository open on a directory (e.g. the
+ * {@link VersionSequence}), across threads and instances with a monitor per directory, across
+ * processes with a lock on the ".lock" file in it.
+ *
+ * The monitor comes first on purpose: file locks are held by the whole JVM, so two channels of
+ * ours locking the file at once would fail, and closing either would release both locks.
+ */
+final class DirectoryLock {
+
+    static final String FILE = ".lock";
+
+    private static final ConcurrentMap<Path, Object> MONITORS = new ConcurrentHashMap<Path, Object>();
+
+    interface Locked<X> {
+        X execute() throws IOException;
+    }
+
+    private DirectoryLock() {
+    }
+
+    static <X> X execute(Path root, Locked<X> locked) throws IOException {
+        Path key = root.toRealPath();
+        Object monitor = MONITORS.get(key);
+        if (monitor == null) {
+            Object created = new Object();
+            monitor = MONITORS.putIfAbsent(key, created);
+            if (monitor == null) {
+                monitor = created;
+            }
+        }
+        synchronized (monitor) {
+            FileChannel channel = FileChannel.open(key.resolve(FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                FileLock lock = channel.lock();
+                try {
+                    return locked.execute();
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package eu.franzoni.jquickrepo.repository;
+
+/**
+ * How hard a write tries to survive a crash of the machine before returning.
+ */
+public enum Durability {
+    /**
+     * Data is left to the OS page cache; a crash may lose recent writes, or expose an empty entry.
+     */
+    NONE,
+    /**
+     * Every write syncs its data, then the directory, before returning.
+     */
+    FSYNC,
+    /**
+     * Like FSYNC, but while each caller syncs its own data, a background thread publishes the
+     * writes of concurrent callers together and syncs the directory once for all of them; each
+     * caller still blocks until its write is durable.
+     */
+    GROUP_COMMIT
+}
@@ -1,12 +1,24 @@
 package eu.franzoni.jquickrepo.repository;
 
 public class Entry<T> {
+
+    /**
+     * The version of entries which weren't loaded with one.
+     */
+    public static final long NO_VERSION = -1;
+
     private final T content;
     private final String id;
+    private final long version;
 
     public Entry(String id, T content) {
+        this(id, content, NO_VERSION);
+    }
+
+    public Entry(String id, T content, long version) {
         this.content = content;
         this.id = id;
+        this.version = version;
     }
 
     public T getContent() {
@@ -17,6 +29,13 @@ public class Entry<T> {
         return id;
     }
 
+    /**
+     * @return what the entry was at when loaded, see {@link Repository#loadEntry(String)}.
+     */
+    public long getVersion() {
+        return version;
+    }
+
 
     @Override
     public boolean equals(Object o) {
@@ -0,0 +1,97 @@
+package eu.franzoni.jquickrepo.repository;
+
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+import eu.franzoni.jquickrepo.metrics.MetricsListener;
+import eu.franzoni.jquickrepo.serialization.Serializer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * How the content of an entry file is read and written. The serializer based format streams
+ * straight from and to the files, without intermediate copies of the whole data.
+ */
+abstract class EntryFormat<X> {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    // writing a heap buffer goes through a temporary direct buffer as big as the write, which the
+    // JDK then keeps cached per thread; slicing big arrays keeps that buffer small.
+    static final int MAX_WRITE_SIZE = 1024 * 1024;
+
+    static final EntryFormat<byte[]> RAW = new EntryFormat<byte[]>() {
+        @Override
+        byte[] read(Path file, MetricsListener metrics) throws IOException {
+            // sized from the file attributes, read with no intermediate copy.
+            byte[] data = Files.readAllBytes(file);
+            metrics.bytesRead(data.length);
+            return data;
+        }
+
+        @Override
+        void write(byte[] data, FileChannel channel, MetricsListener metrics) throws IOException {
+            int offset = 0;
+            while (offset < data.length) {
+                ByteBuffer slice = ByteBuffer.wrap(data, offset, Math.min(MAX_WRITE_SIZE, data.length - offset));
+                while (slice.hasRemaining()) {
+                    channel.write(slice);
+                }
+                offset = slice.position();
+            }
+            metrics.bytesWritten(data.length);
+        }
+    };
+
+    static <X> EntryFormat<X> serializedWith(final Serializer<X> serializer) {
+        return new EntryFormat<X>() {
+            @Override
+            X read(Path file, MetricsListener metrics) throws IOException {
+                // counted below the buffer, once per chunk.
+                CountingInputStream counting = new CountingInputStream(Files.newInputStream(file));
+                InputStream in = new BufferedInputStream(counting, BUFFER_SIZE);
+                try {
+                    long started = System.nanoTime();
+                    X obj = serializer.deserialize(in);
+                    metrics.unmarshalled(System.nanoTime() - started);
+                    return obj;
+                } finally {
+                    in.close();
+                    metrics.bytesRead(counting.getCount());
+                }
+            }
+
+            @Override
+            void write(X obj, FileChannel channel, MetricsListener metrics) throws IOException {
+                CountingOutputStream counting = new CountingOutputStream(Channels.newOutputStream(channel));
+                // not closed, that would close the channel.
+                OutputStream out = new BufferedOutputStream(counting, BUFFER_SIZE);
+                long started = System.nanoTime();
+                serializer.serialize(obj, out);
+                out.flush();
+                metrics.marshalled(System.nanoTime() - started);
+                metrics.bytesWritten(counting.getCount());
+            }
+        };
+    }
+
+    /**
+     * @param metrics told about the bytes read and the time spent unmarshalling
+     * @throws java.nio.file.NoSuchFileException if the file doesn't exist.
+     */
+    abstract X read(Path file, MetricsListener metrics) throws IOException;
+
+    /**
+     * Writes everything to the channel, leaving it open.
+     *
+     * @param metrics told about the bytes written and the time spent marshalling
+     */
+    abstract void write(X obj, FileChannel channel, MetricsListener metrics) throws IOException;
+}
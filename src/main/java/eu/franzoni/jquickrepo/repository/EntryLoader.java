@@ -0,0 +1,5 @@
+package eu.franzoni.jquickrepo.repository;
+
+interface EntryLoader<T> {
+    public T load(String id) throws UnknownResourceIdException;
+}
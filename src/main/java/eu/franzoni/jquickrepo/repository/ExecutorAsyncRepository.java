@@ -0,0 +1,117 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Runs each call to a blocking repository (e.g. {@link ByteArrayRepo} or
+ * {@link MarshallingRepository}) as a task on the given executor. The executor bounds how many
+ * operations are in flight; with {@link eu.franzoni.jquickrepo.concurrency.VirtualThreads} every
+ * operation gets its own cheap thread, so hundreds of them can wait on the disk at once.
+ */
+public class ExecutorAsyncRepository<T> implements AsyncRepository<T> {
+
+    private final Repository<T> repository;
+    private final Executor executor;
+
+    public ExecutorAsyncRepository(Repository<T> repository, Executor executor) {
+        this.repository = repository;
+        this.executor = executor;
+    }
+
+    public Repository<T> getRepository() {
+        return repository;
+    }
+
+    @Override
+    public CompletableFuture<Collection<Entry<T>>> loadAll() {
+        return CompletableFuture.supplyAsync(new Supplier<Collection<Entry<T>>>() {
+            @Override
+            public Collection<Entry<T>> get() {
+                return repository.loadAll();
+            }
+        }, this.executor);
+    }
+
+    @Override
+    public CompletableFuture<T> load(final String id) {
+        return CompletableFuture.supplyAsync(new Supplier<T>() {
+            @Override
+            public T get() {
+                return repository.load(id);
+            }
+        }, this.executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> save(final String id, final T obj) {
+        return CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                repository.save(id, obj);
+            }
+        }, this.executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveOrUpdate(final String id, final T obj) {
+        return CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                repository.saveOrUpdate(id, obj);
+            }
+        }, this.executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> update(final String id, final T obj) {
+        return CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                repository.update(id, obj);
+            }
+        }, this.executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(final String id) {
+        return CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                repository.delete(id);
+            }
+        }, this.executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> modifyWhileLocking(final String id, final DoWhileLocking<T> whileLocking) {
+        return CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                repository.modifyWhileLocking(id, whileLocking);
+            }
+        }, this.executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> modifyWhileLocking(final String id, final DoWhileLocking<T> whileLocking, final T missing) {
+        return CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                repository.modifyWhileLocking(id, whileLocking, missing);
+            }
+        }, this.executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> apply(final Batch<T> batch) {
+        return CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                repository.apply(batch);
+            }
+        }, this.executor);
+    }
+}
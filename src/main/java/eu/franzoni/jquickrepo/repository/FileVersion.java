@@ -0,0 +1,40 @@
+package eu.franzoni.jquickrepo.repository;
+
+/**
+ * Identifies the contents of an entry file through its modification time and size; good enough to
+ * spot changes made outside of the repository, writes made through it are tracked explicitly.
+ */
+class FileVersion {
+
+    private final long lastModified;
+    private final long length;
+
+    FileVersion(long lastModified, long length) {
+        this.lastModified = lastModified;
+        this.length = length;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FileVersion)) return false;
+
+        FileVersion that = (FileVersion) o;
+
+        if (lastModified != that.lastModified) return false;
+        if (length != that.length) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (lastModified ^ (lastModified >>> 32));
+        result = 31 * result + (int) (length ^ (length >>> 32));
+        return result;
+    }
+}
@@ -0,0 +1,204 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commits the writes of concurrent callers together on a background thread. Each caller syncs its
+ * own files, in parallel with the others, and queues its commit; once a commit is queued, the
+ * thread waits up to the window (or until maxWrites commits are queued), publishes every commit
+ * queued meanwhile, and syncs each directory involved once for all of them.
+ */
+class GroupCommitter extends Committer {
+
+    private final int maxWrites;
+    private final long windowNanos;
+    private final List<PendingCommit> queue = new ArrayList<PendingCommit>();
+    private final Thread thread;
+    private boolean closed;
+
+    GroupCommitter(Path dir, int maxWrites, long windowNanos) {
+        if (maxWrites < 1) {
+            throw new IllegalArgumentException("maxWrites must be at least 1");
+        }
+        if (windowNanos < 0) {
+            throw new IllegalArgumentException("window must not be negative");
+        }
+        this.maxWrites = maxWrites;
+        this.windowNanos = windowNanos;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<PendingCommit> batch;
+                while ((batch = nextBatch()) != null) {
+                    commitBatch(batch);
+                }
+            }
+        }, "jquickrepo-group-commit " + dir.getFileName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    void commit(List<FileChannel> written, Collection<Path> directories, Runnable publish) {
+        synchronized (this.queue) {
+            if (this.closed) {
+                throw new IllegalStateException("repository was closed");
+            }
+        }
+        try {
+            // on the caller's thread: a single thread syncing them all would cap throughput.
+            for (FileChannel channel : written) {
+                channel.force(true);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("could not sync the write", e);
+        }
+
+        PendingCommit pending = new PendingCommit(directories, publish);
+        synchronized (this.queue) {
+            if (this.closed) {
+                throw new IllegalStateException("repository was closed");
+            }
+            this.queue.add(pending);
+            this.queue.notifyAll();
+        }
+        pending.await();
+    }
+
+    @Override
+    void close() {
+        synchronized (this.queue) {
+            this.closed = true;
+            this.queue.notifyAll();
+        }
+        boolean interrupted = false;
+        while (this.thread.isAlive()) {
+            try {
+                this.thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the commits to be made together, or null once closed and drained.
+     */
+    private List<PendingCommit> nextBatch() {
+        synchronized (this.queue) {
+            while (this.queue.isEmpty() && !this.closed) {
+                waitOnQueue(0);
+            }
+            if (this.queue.isEmpty()) {
+                return null;
+            }
+
+            long deadline = System.nanoTime() + this.windowNanos;
+            long remaining;
+            while (this.queue.size() < this.maxWrites && !this.closed && (remaining = deadline - System.nanoTime()) > 0) {
+                waitOnQueue(remaining);
+            }
+
+            List<PendingCommit> taken = this.queue.subList(0, Math.min(this.queue.size(), this.maxWrites));
+            List<PendingCommit> batch = new ArrayList<PendingCommit>(taken);
+            taken.clear();
+            return batch;
+        }
+    }
+
+    private void waitOnQueue(long nanos) {
+        try {
+            if (nanos > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this.queue, nanos);
+            } else {
+                this.queue.wait();
+            }
+        } catch (InterruptedException e) {
+            // callers are waiting for us; only close() stops this thread.
+        }
+    }
+
+    private void commitBatch(List<PendingCommit> batch) {
+        List<PendingCommit> published = new ArrayList<PendingCommit>(batch.size());
+        Set<Path> directories = new LinkedHashSet<Path>();
+        for (PendingCommit pending : batch) {
+            try {
+                pending.publish.run();
+                published.add(pending);
+                directories.addAll(pending.directories);
+            } catch (Throwable e) {
+                pending.complete(e);
+            }
+        }
+
+        Throwable failure = null;
+        try {
+            for (Path directory : directories) {
+                syncDirectory(directory);
+            }
+        } catch (Throwable e) {
+            failure = e;
+        }
+        for (PendingCommit pending : published) {
+            pending.complete(failure);
+        }
+    }
+
+    private static class PendingCommit {
+
+        private final Collection<Path> directories;
+        private final Runnable publish;
+        // a latch rather than a monitor: a virtual thread waiting on a monitor pins its carrier.
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Throwable failure;
+
+        PendingCommit(Collection<Path> directories, Runnable publish) {
+            this.directories = directories;
+            this.publish = publish;
+        }
+
+        void complete(Throwable failure) {
+            this.failure = failure;
+            this.done.countDown();
+        }
+
+        /**
+         * Waits until committed, uninterruptibly: the caller's files are in use until then.
+         */
+        void await() {
+            boolean interrupted = false;
+            while (this.done.getCount() > 0) {
+                try {
+                    this.done.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (this.failure instanceof RuntimeException) {
+                throw (RuntimeException) this.failure;
+            }
+            if (this.failure instanceof Error) {
+                throw (Error) this.failure;
+            }
+            if (this.failure != null) {
+                throw new RuntimeException("could not commit the write", this.failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The sorted ids of a {@link ByteArrayRepo}, with the version of each, kept in memory and updated
+ * by every write, so that they can be enumerated without listing the directory.
+ *
+ * The ids are saved to a snapshot file when the repository is closed, and read back when it's
+ * opened again; the snapshot is deleted as soon as it's read, so that after a crash (or a
+ * repository which was never closed) the ids are listed again from the directory instead. Entries
+ * added to the directory by anything but the repository aren't seen until then.
+ *
+ * An index only knows about the writes of its own repository, so the snapshot is written only by
+ * one which had the directory to itself, i.e. none other was open in the JVM at any time between
+ * its opening and closing; otherwise the ids are listed again at the next opening. Repositories of
+ * other processes using the directory at the same time aren't supported.
+ *
+ * Versions aren't saved: entries which weren't written since the repository was opened all have
+ * the base version of the {@link VersionSequence}, which is newer than any version they had before.
+ */
+class IdIndex {
+
+    static final String SNAPSHOT = ".index";
+
+    private static final int MAGIC = 0x4a515249;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final Map<Path, Presence> PRESENCES = new HashMap<Path, Presence>();
+
+    private final NavigableMap<String, Long> versions = new ConcurrentSkipListMap<String, Long>();
+    private final Path snapshot;
+    private final VersionSequence sequence;
+    private final Path key;
+    private final Presence presence;
+    private final boolean shared;
+    private final long opening;
+    private volatile boolean closed;
+
+    private IdIndex(Path root, VersionSequence sequence) throws IOException {
+        this.snapshot = root.resolve(SNAPSHOT);
+        this.sequence = sequence;
+        this.key = root.toRealPath();
+        synchronized (PRESENCES) {
+            Presence present = PRESENCES.get(this.key);
+            if (present == null) {
+                present = new Presence();
+                PRESENCES.put(this.key, present);
+            }
+            this.presence = present;
+            this.shared = present.open > 0;
+            present.open++;
+            this.opening = ++present.openings;
+        }
+    }
+
+    /**
+     * @return the index of the repository in the directory, from its snapshot if it was closed
+     * cleanly, otherwise listing every partition of the layout.
+     */
+    static IdIndex open(Path root, Layout layout, VersionSequence sequence) throws IOException {
+        IdIndex index = new IdIndex(root, sequence);
+        List<String> ids = index.readSnapshot();
+        if (ids == null) {
+            ids = new ArrayList<String>();
+            for (Path partition : layout.partitions(root)) {
+                layout.listIds(partition, ids);
+            }
+        }
+        Long base = sequence.base();
+        for (String id : ids) {
+            index.versions.put(id, base);
+        }
+        return index;
+    }
+
+    /**
+     * Forgets the snapshot of the repository in the directory, which its entries are about to
+     * stop matching.
+     */
+    static void invalidate(Path root) throws IOException {
+        if (Files.deleteIfExists(root.resolve(SNAPSHOT))) {
+            Committer.syncDirectory(root);
+        }
+    }
+
+    /**
+     * Sets the version of the id, taken from the sequence; the caller must hold the id write lock.
+     */
+    void written(String id, long version) {
+        if (this.versions.put(id, version) == null) {
+            changed();
+        }
+    }
+
+    /**
+     * Adds an id found in the directory, if it's not known already.
+     */
+    void found(String id) {
+        if (!this.versions.containsKey(id) && this.versions.putIfAbsent(id, this.sequence.next()) == null) {
+            changed();
+        }
+    }
+
+    void removed(String id) {
+        if (this.versions.remove(id) != null) {
+            changed();
+        }
+    }
+
+    private void changed() {
+        if (this.closed) {
+            // written after closing: the snapshot is out of date.
+            try {
+                invalidate(this.snapshot.getParent());
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("could not delete %s", this.snapshot.toAbsolutePath()), e);
+            }
+        }
+    }
+
+    boolean contains(String id) {
+        return this.versions.containsKey(id);
+    }
+
+    /**
+     * @return the current version of the id, {@link Entry#NO_VERSION} if it's not known.
+     */
+    long version(String id) {
+        Long version = this.versions.get(id);
+        return version == null ? Entry.NO_VERSION : version;
+    }
+
+    int size() {
+        return this.versions.size();
+    }
+
+    List<String> ids() {
+        return new ArrayList<String>(this.versions.keySet());
+    }
+
+    List<String> idsStartingWith(String prefix) {
+        List<String> matching = new ArrayList<String>();
+        for (String id : this.versions.tailMap(prefix, true).keySet()) {
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            matching.add(id);
+        }
+        return matching;
+    }
+
+    /**
+     * Writes the snapshot; nothing may change the index meanwhile.
+     */
+    void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        boolean alone;
+        synchronized (PRESENCES) {
+            alone = !this.shared && this.presence.openings == this.opening;
+            if (--this.presence.open == 0) {
+                PRESENCES.remove(this.key);
+            }
+        }
+        if (!alone) {
+            // the others' writes aren't in here.
+            invalidate(this.snapshot.getParent());
+            return;
+        }
+        Path part = this.snapshot.resolveSibling(SNAPSHOT + ".part");
+        FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(Channels.newOutputStream(channel), crc), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(this.versions.size());
+            for (String id : this.versions.keySet()) {
+                byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+            out.flush();
+            // the checksum of everything before it.
+            new DataOutputStream(Channels.newOutputStream(channel)).writeLong(crc.getValue());
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        Files.move(part, this.snapshot, StandardCopyOption.ATOMIC_MOVE);
+        Committer.syncDirectory(this.snapshot.getParent());
+    }
+
+    /**
+     * @return the ids read from a valid snapshot, which is then deleted, or null.
+     */
+    private List<String> readSnapshot() throws IOException {
+        byte[] contents;
+        try {
+            contents = Files.readAllBytes(this.snapshot);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        invalidate(this.snapshot.getParent());
+
+        if (contents.length < 20) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(contents, 0, contents.length - 8);
+        ByteBuffer buffer = ByteBuffer.wrap(contents);
+        if (buffer.getLong(contents.length - 8) != crc.getValue() || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            return null;
+        }
+        int count = buffer.getInt();
+        List<String> read = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            int length = buffer.getShort() & 0xffff;
+            read.add(new String(contents, buffer.position(), length, StandardCharsets.UTF_8));
+            buffer.position(buffer.position() + length);
+        }
+        return read;
+    }
+
+    /**
+     * The indexes open on a directory; guarded by {@link #PRESENCES}.
+     */
+    private static final class Presence {
+        private int open;
+        private long openings;
+    }
+}
@@ -0,0 +1,9 @@
+package eu.franzoni.jquickrepo.repository;
+
+/**
+ * Decides which ids a repository accepts. {@link ByteArrayRepo} uses ids as file names, so a
+ * validator must never let through anything the filesystem would take for a path.
+ */
+public interface IdValidator {
+    public void validate(String id) throws BadIdException;
+}
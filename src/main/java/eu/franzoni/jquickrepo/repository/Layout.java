@@ -0,0 +1,171 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Where {@link ByteArrayRepo} keeps the file of each entry below its directory: either all in
+ * the directory itself ({@link #FLAT}, the default) or spread over hashed subdirectories
+ * ({@link ShardedLayout}).
+ *
+ * Repositories which aren't flat record their layout in a ".layout" file, so that they can't be
+ * opened with another one by mistake; use {@link LayoutMigration} to change it.
+ */
+public abstract class Layout {
+
+    public static final Layout FLAT = new Layout() {
+        @Override
+        Path directoryOf(Path root, String id) {
+            return root;
+        }
+
+        @Override
+        List<Path> partitions(Path root) {
+            return Collections.singletonList(root);
+        }
+
+        @Override
+        void listIds(Path partition, Collection<String> ids) throws IOException {
+            listEntries(partition, ids);
+        }
+
+        @Override
+        void listDirectories(Path partition, Collection<Path> dirs) {
+            dirs.add(partition);
+        }
+
+        @Override
+        String describe() {
+            return "flat";
+        }
+    };
+
+    static final String MARKER = ".layout";
+
+    /**
+     * Ends the names of the files entries are written to before being renamed into place.
+     */
+    static final String PART_SUFFIX = ".part";
+
+    static final DirectoryStream.Filter<Path> ENTRY_FILTER = new DirectoryStream.Filter<Path>() {
+        @Override
+        public boolean accept(Path entry) {
+            String name = entry.getFileName().toString();
+            return (!name.endsWith(PART_SUFFIX) && !name.startsWith("."));
+        }
+    };
+
+    Layout() {
+    }
+
+    /**
+     * The directory the file of the id goes in; it may not exist yet.
+     */
+    abstract Path directoryOf(Path root, String id);
+
+    /**
+     * Directories which can be listed independently of each other, every entry being in (or
+     * below) exactly one of them.
+     */
+    abstract List<Path> partitions(Path root) throws IOException;
+
+    /**
+     * Adds the ids of the entries in the given partition.
+     */
+    abstract void listIds(Path partition, Collection<String> ids) throws IOException;
+
+    /**
+     * Adds the directories in the given partition which entry files go in.
+     */
+    abstract void listDirectories(Path partition, Collection<Path> dirs) throws IOException;
+
+    /**
+     * What the marker file says.
+     */
+    abstract String describe();
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Layout && describe().equals(((Layout) obj).describe());
+    }
+
+    @Override
+    public int hashCode() {
+        return describe().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return describe();
+    }
+
+    static void listEntries(Path dir, Collection<String> ids) throws IOException {
+        DirectoryStream<Path> entries = Files.newDirectoryStream(dir, ENTRY_FILTER);
+        try {
+            for (Path entry : entries) {
+                ids.add(entry.getFileName().toString());
+            }
+        } finally {
+            entries.close();
+        }
+    }
+
+    /**
+     * @return the layout the marker in the directory names, flat if there's none.
+     */
+    static Layout read(Path root) throws IOException {
+        String description;
+        try {
+            description = new String(Files.readAllBytes(root.resolve(MARKER)), StandardCharsets.UTF_8).trim();
+        } catch (NoSuchFileException e) {
+            return FLAT;
+        }
+        if (description.equals(FLAT.describe())) {
+            return FLAT;
+        }
+        return ShardedLayout.parse(description);
+    }
+
+    /**
+     * Records the layout in the directory, replacing what was recorded before.
+     */
+    static void write(Path root, Layout layout) throws IOException {
+        Path marker = root.resolve(MARKER);
+        if (layout.equals(FLAT)) {
+            Files.deleteIfExists(marker);
+            return;
+        }
+        Path part = root.resolve(MARKER + PART_SUFFIX);
+        Files.write(part, layout.describe().getBytes(StandardCharsets.UTF_8));
+        Files.move(part, marker, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Checks that the directory can be used with the layout: it has to be the recorded one, and a
+     * directory without a marker (flat) can only be given another layout while it's still empty.
+     */
+    static void prepare(Path root, Layout layout) throws IOException {
+        Layout recorded = read(root);
+        if (recorded.equals(layout)) {
+            return;
+        }
+        if (recorded.equals(FLAT)) {
+            List<String> ids = new ArrayList<String>();
+            listEntries(root, ids);
+            if (ids.isEmpty()) {
+                write(root, layout);
+                return;
+            }
+        }
+        throw new IllegalArgumentException(String.format("%s has the %s layout, not %s; see LayoutMigration", root.toAbsolutePath(), recorded, layout));
+    }
+}
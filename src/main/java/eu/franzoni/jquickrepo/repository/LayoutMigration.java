@@ -0,0 +1,229 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves the entries of a {@link ByteArrayRepo} directory to another {@link Layout}, e.g. from the
+ * flat one to a {@link ShardedLayout}. Nothing may use the directory meanwhile.
+ *
+ * The new layout is only recorded once every entry has been moved (and the moves synced): if the
+ * migration is interrupted, the repository can't be used until it's run again, which picks up
+ * where it stopped. Part files left by writes which never completed are deleted.
+ *
+ * Entries named like shard directories (e.g. "3f") can be in the way of the directories of the
+ * target layout, or have an old shard directory where they're headed: they're moved aside to a
+ * hidden staging directory first, and moved from there once everything else is in place.
+ *
+ * From the command line: {@code LayoutMigration <dir> <flat | levels of sharding>}.
+ */
+public final class LayoutMigration {
+
+    static final String STAGING = ".migration";
+
+    private LayoutMigration() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("usage: LayoutMigration <dir> <flat | levels of sharding>");
+            System.exit(1);
+        }
+        Layout target = "flat".equals(args[1]) ? Layout.FLAT : new ShardedLayout(Integer.parseInt(args[1]));
+        int moved = migrate(new File(args[0]), target);
+        System.out.println(String.format("moved %d entries of %s to the %s layout", moved, args[0], target));
+    }
+
+    /**
+     * @return how many entries were moved; 0 if the directory has the target layout already.
+     */
+    public static int migrate(File persistenceDir, Layout target) {
+        final Path root = persistenceDir.toPath();
+        try {
+            Layout source = Layout.read(root);
+            if (source.equals(target)) {
+                return 0;
+            }
+
+            Path staging = root.resolve(STAGING);
+            Set<Path> sourceDirs = new HashSet<Path>();
+            List<Path> files = sourceFiles(root, source, sourceDirs);
+            Set<Path> touched = new LinkedHashSet<Path>();
+            Map<Path, Path> targets = new LinkedHashMap<Path, Path>();
+            // every directory the target layout puts entries in or below.
+            Set<Path> targetDirs = new HashSet<Path>();
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                touched.add(file.getParent());
+                if (!Layout.ENTRY_FILTER.accept(file)) {
+                    // only part files are left, the marker isn't listed.
+                    Files.delete(file);
+                    continue;
+                }
+                Path targetFile = target.directoryOf(root, name).resolve(name);
+                targets.put(file, targetFile);
+                for (Path dir = targetFile.getParent(); !dir.equals(root); dir = dir.getParent()) {
+                    targetDirs.add(dir);
+                }
+            }
+
+            Map<Path, Path> staged = new LinkedHashMap<Path, Path>();
+            for (Iterator<Map.Entry<Path, Path>> it = targets.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Path, Path> move = it.next();
+                Path file = move.getKey();
+                if (file.getParent().equals(staging)) {
+                    // moved aside by an interrupted migration.
+                    staged.put(file, move.getValue());
+                    it.remove();
+                } else if (targetDirs.contains(file) || sourceDirs.contains(move.getValue())) {
+                    Files.createDirectories(staging);
+                    Path aside = staging.resolve(file.getFileName());
+                    Files.move(file, aside, StandardCopyOption.ATOMIC_MOVE);
+                    staged.put(aside, move.getValue());
+                    it.remove();
+                }
+            }
+            if (!staged.isEmpty()) {
+                Committer.syncDirectory(staging);
+            }
+
+            int moved = 0;
+            for (Map.Entry<Path, Path> move : targets.entrySet()) {
+                moveEntry(root, move.getKey(), move.getValue(), touched);
+                moved++;
+            }
+            if (!source.equals(Layout.FLAT)) {
+                removeEmptyShards(root, touched);
+            }
+            for (Map.Entry<Path, Path> move : staged.entrySet()) {
+                moveEntry(root, move.getKey(), move.getValue(), touched);
+                moved++;
+            }
+            if (Files.deleteIfExists(staging)) {
+                touched.add(root);
+            }
+
+            for (Path dir : touched) {
+                if (Files.isDirectory(dir)) {
+                    Committer.syncDirectory(dir);
+                }
+            }
+            Layout.write(root, target);
+            Committer.syncDirectory(root);
+            return moved;
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not migrate %s to the %s layout", root.toAbsolutePath(), target), e);
+        }
+    }
+
+    private static void moveEntry(Path root, Path file, Path targetFile, Set<Path> touched) throws IOException {
+        Path dir = targetFile.getParent();
+        if (!dir.equals(root)) {
+            Files.createDirectories(dir);
+            touched.add(dir.getParent());
+        }
+        Files.move(file, targetFile, StandardCopyOption.ATOMIC_MOVE);
+        touched.add(dir);
+    }
+
+    /**
+     * The entry and part files in the directories of the layout and in the staging directory,
+     * listed before anything moves.
+     *
+     * @param dirs gets the directories found below the root
+     */
+    private static List<Path> sourceFiles(Path root, Layout source, final Set<Path> dirs) throws IOException {
+        final List<Path> files = new ArrayList<Path>();
+        Path staging = root.resolve(STAGING);
+        if (Files.isDirectory(staging)) {
+            collectFiles(staging, "*", files);
+        }
+        if (source.equals(Layout.FLAT)) {
+            List<String> names = new ArrayList<String>();
+            Layout.listEntries(root, names);
+            for (String name : names) {
+                Path file = root.resolve(name);
+                // the shards of an interrupted migration are there too.
+                if (Files.isRegularFile(file)) {
+                    files.add(file);
+                } else if (Files.isDirectory(file)) {
+                    dirs.add(file);
+                }
+            }
+            collectFiles(root, "*.part", files);
+            return files;
+        }
+
+        for (Path partition : source.partitions(root)) {
+            Files.walkFileTree(partition, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    dirs.add(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile()) {
+                        files.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return files;
+    }
+
+    private static void collectFiles(Path dir, String glob, List<Path> files) throws IOException {
+        DirectoryStream<Path> matching = Files.newDirectoryStream(dir, glob);
+        try {
+            for (Path file : matching) {
+                files.add(file);
+            }
+        } finally {
+            matching.close();
+        }
+    }
+
+    private static void removeEmptyShards(Path root, Set<Path> touched) throws IOException {
+        Set<Path> shards = new LinkedHashSet<Path>();
+        for (Path dir : touched) {
+            for (; dir != null && !dir.equals(root); dir = dir.getParent()) {
+                shards.add(dir);
+            }
+        }
+        // deepest first, so that parents are empty by the time they're reached.
+        List<Path> sorted = new ArrayList<Path>(shards);
+        Collections.sort(sorted, new Comparator<Path>() {
+            @Override
+            public int compare(Path first, Path second) {
+                return second.getNameCount() - first.getNameCount();
+            }
+        });
+        for (Path dir : sorted) {
+            try {
+                Files.deleteIfExists(dir);
+            } catch (DirectoryNotEmptyException e) {
+                // still in use, by the target layout or by something else.
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Loads entries one at a time, while iterating. Ids which vanish between the listing and the
+ * load are skipped, just like loadAll() does.
+ */
+class LazyEntryIterator<T> implements Iterator<Entry<T>> {
+
+    private final Iterator<String> ids;
+    private final EntryLoader<T> loader;
+    private Entry<T> next;
+
+    LazyEntryIterator(Iterator<String> ids, EntryLoader<T> loader) {
+        this.ids = ids;
+        this.loader = loader;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && ids.hasNext()) {
+            String id = ids.next();
+            try {
+                next = new Entry<T>(id, loader.load(id));
+            } catch (UnknownResourceIdException e) {
+                // deleted after being listed, skip it.
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Entry<T> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Entry<T> entry = next;
+        next = null;
+        return entry;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("entries can't be removed while iterating");
+    }
+}
@@ -0,0 +1,280 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * One file of a {@link LogStructuredRepo}: a sequence of records, each one being
+ *
+ * <pre>
+ * int    crc32 of everything that follows, up to the end of the record
+ * byte   type, PUT or DELETE
+ * short  length of the id, in bytes
+ * int    length of the data (always 0 for DELETE)
+ * long   version of the entry, kept by compaction
+ * byte[] id, UTF-8
+ * byte[] data
+ * </pre>
+ *
+ * Appends must be serialized by the caller; reads may happen concurrently with appends.
+ */
+class LogSegment {
+
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    static final int HEADER_SIZE = 4 + 1 + 2 + 4 + 8;
+
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final long number;
+    private final Path file;
+    private volatile FileChannel channel;
+    private volatile long size;
+    private boolean closed;
+
+    final AtomicLong garbageBytes = new AtomicLong();
+    final AtomicLong tombstoneBytes = new AtomicLong();
+
+    private LogSegment(long number, Path file) throws IOException {
+        this.number = number;
+        this.file = file;
+        this.channel = openChannel(file);
+        this.size = this.channel.size();
+    }
+
+    static LogSegment open(Path dir, long number) throws IOException {
+        return new LogSegment(number, dir.resolve(String.format("%s%010d%s", PREFIX, number, SUFFIX)));
+    }
+
+    /**
+     * Glob matching the segment file names, see {@link #parseNumber(String)}.
+     */
+    static String glob() {
+        return PREFIX + "*" + SUFFIX;
+    }
+
+    private static FileChannel openChannel(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @return the segment number encoded in the file name, or -1 if it's not a segment file.
+     */
+    static long parseNumber(String fileName) {
+        if (!fileName.startsWith(PREFIX) || !fileName.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fileName.substring(PREFIX.length(), fileName.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static ByteBuffer[] encode(byte type, String id, long version, byte[] data) {
+        byte[] idBytes = id.getBytes(UTF8);
+        if (idBytes.length > Short.MAX_VALUE) {
+            throw new BadIdException(id, "too long");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0);
+        header.put(type);
+        header.putShort((short) idBytes.length);
+        header.putInt(data.length);
+        header.putLong(version);
+
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 4, HEADER_SIZE - 4);
+        crc.update(idBytes);
+        crc.update(data);
+        header.putInt(0, (int) crc.getValue());
+        header.flip();
+
+        return new ByteBuffer[]{header, ByteBuffer.wrap(idBytes), ByteBuffer.wrap(data)};
+    }
+
+    long getNumber() {
+        return number;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Writes the record at the end of the segment; the caller must serialize appends.
+     *
+     * @return the offset of the record.
+     */
+    long append(ByteBuffer[] record) throws IOException {
+        long offset = this.size;
+        long position = offset;
+        for (ByteBuffer buffer : record) {
+            while (buffer.hasRemaining()) {
+                FileChannel current = this.channel;
+                try {
+                    position += current.write(buffer, position);
+                } catch (ClosedByInterruptException e) {
+                    reopen(current);
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    // closed under us because another thread was interrupted while using it.
+                    reopen(current);
+                }
+            }
+        }
+        // only complete records are ever covered by size; a torn one gets overwritten.
+        this.size = position;
+        return offset;
+    }
+
+    byte[] read(long position, int length) throws IOException {
+        while (true) {
+            FileChannel current = this.channel;
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                while (buffer.hasRemaining()) {
+                    if (current.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException(String.format("%s ends before %d", file.toAbsolutePath(), position + length));
+                    }
+                }
+                return buffer.array();
+            } catch (ClosedByInterruptException e) {
+                reopen(current);
+                throw e;
+            } catch (ClosedChannelException e) {
+                reopen(current);
+            }
+        }
+    }
+
+    /**
+     * Reads every record from the start, stopping at the first incomplete or corrupted one,
+     * and truncates the segment there.
+     */
+    List<ScannedRecord> recover() throws IOException {
+        List<ScannedRecord> records = scan();
+        long validSize = records.isEmpty() ? 0 : records.get(records.size() - 1).end();
+        if (validSize < this.channel.size()) {
+            this.channel.truncate(validSize);
+        }
+        this.size = validSize;
+        return records;
+    }
+
+    /**
+     * Reads the records, up to the current size.
+     */
+    List<ScannedRecord> scan() throws IOException {
+        List<ScannedRecord> records = new ArrayList<ScannedRecord>();
+        long limit = Math.min(this.size, this.channel.size());
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.file), SCAN_BUFFER_SIZE));
+        try {
+            long offset = 0;
+            byte[] header = new byte[HEADER_SIZE];
+            while (offset + HEADER_SIZE <= limit) {
+                in.readFully(header);
+                ByteBuffer fields = ByteBuffer.wrap(header);
+                int expectedCrc = fields.getInt();
+                byte type = fields.get();
+                short idLength = fields.getShort();
+                int dataLength = fields.getInt();
+                long version = fields.getLong();
+                if ((type != PUT && type != DELETE) || idLength <= 0 || dataLength < 0
+                        || offset + HEADER_SIZE + idLength + dataLength > limit) {
+                    break;
+                }
+
+                byte[] idBytes = new byte[idLength];
+                in.readFully(idBytes);
+                CRC32 crc = new CRC32();
+                crc.update(header, 4, HEADER_SIZE - 4);
+                crc.update(idBytes);
+                byte[] chunk = new byte[Math.min(dataLength, SCAN_BUFFER_SIZE)];
+                int remaining = dataLength;
+                while (remaining > 0) {
+                    int read = Math.min(remaining, chunk.length);
+                    in.readFully(chunk, 0, read);
+                    crc.update(chunk, 0, read);
+                    remaining -= read;
+                }
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+
+                records.add(new ScannedRecord(type, new String(idBytes, UTF8), version, offset, HEADER_SIZE + idLength, dataLength));
+                offset += HEADER_SIZE + idLength + dataLength;
+            }
+        } catch (EOFException e) {
+            // the file is shorter than the last record says, a torn write.
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    synchronized void close() throws IOException {
+        this.closed = true;
+        this.channel.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.delete(this.file);
+    }
+
+    private synchronized void reopen(FileChannel broken) throws IOException {
+        if (this.closed) {
+            throw new ClosedChannelException();
+        }
+        if (this.channel == broken) {
+            this.channel = openChannel(this.file);
+        }
+    }
+
+    static class ScannedRecord {
+
+        final byte type;
+        final String id;
+        final long version;
+        final long offset;
+        // from the start of the record.
+        final int dataStart;
+        final int dataLength;
+
+        ScannedRecord(byte type, String id, long version, long offset, int dataStart, int dataLength) {
+            this.type = type;
+            this.id = id;
+            this.version = version;
+            this.offset = offset;
+            this.dataStart = dataStart;
+            this.dataLength = dataLength;
+        }
+
+        int size() {
+            return dataStart + dataLength;
+        }
+
+        long end() {
+            return offset + size();
+        }
+    }
+}
@@ -0,0 +1,680 @@
+package eu.franzoni.jquickrepo.repository;
+
+import eu.franzoni.jquickrepo.concurrency.LockProvider;
+import eu.franzoni.jquickrepo.concurrency.MultipleResourceLock;
+import eu.franzoni.jquickrepo.concurrency.ScopedMultipleWriteLock;
+import eu.franzoni.jquickrepo.concurrency.ScopedReadWriteLock;
+import eu.franzoni.jquickrepo.concurrency.WhileLocked;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Byte array repository keeping all of its entries in a few append-only segment files, instead of
+ * one file per entry: every write is a sequential append, and an in-memory index maps each id to
+ * its latest record. Same semantics and exceptions as {@link ByteArrayRepo}.
+ *
+ * Superseded records are reclaimed by compaction, which copies the live records of a sealed
+ * segment to the end of the log and deletes the segment; it runs in background at the given
+ * interval, or on demand through {@link #compact()}.
+ *
+ * On startup every segment is scanned to rebuild the index, and a torn record left behind by a
+ * crash is truncated away. Only one instance may use a directory at a time; call {@link #close()}
+ * when done.
+ *
+ * Versions come from a {@link VersionSequence} kept in the directory, and each record carries the
+ * version of its write, which compaction copies along: an entry changes version only when written.
+ */
+public class LogStructuredRepo implements Repository<byte[]>, Closeable {
+
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    public static final long DEFAULT_COMPACTION_INTERVAL_SECONDS = 60;
+
+    private final Path persistenceDir;
+    private final long maxSegmentSize;
+    private final double compactionThreshold;
+    private final LockProvider lockProvider;
+    private final VersionSequence sequence;
+    private final ConcurrentMap<String, RecordLocation> index = new ConcurrentHashMap<String, RecordLocation>();
+    // oldest first; the last one is the one being appended to.
+    private final NavigableMap<Long, LogSegment> segments = new ConcurrentSkipListMap<Long, LogSegment>();
+    private final Object appendLock = new Object();
+    private final Object compactionLock = new Object();
+    private final ScheduledExecutorService compactor;
+    private LogSegment activeSegment;
+
+    private final EntryLoader<byte[]> contentLoader = new EntryLoader<byte[]>() {
+        @Override
+        public byte[] load(String id) {
+            return LogStructuredRepo.this.load(id);
+        }
+    };
+
+    public LogStructuredRepo(File persistenceDir) {
+        this(persistenceDir, new MultipleResourceLock());
+    }
+
+    /**
+     * @param lockProvider guards the entries, as for {@link ByteArrayRepo}; a
+     * {@link MultipleResourceLock} by default
+     */
+    public LogStructuredRepo(File persistenceDir, LockProvider lockProvider) {
+        this(persistenceDir, DEFAULT_MAX_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD, DEFAULT_COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS, lockProvider);
+    }
+
+    /**
+     * @param maxSegmentSize a new segment is started once the current one grows past this size
+     * @param compactionThreshold fraction of superseded data (0 to 1) a sealed segment needs to be compacted
+     * @param compactionInterval how often background compaction runs; 0 disables it
+     */
+    public LogStructuredRepo(File persistenceDir, long maxSegmentSize, double compactionThreshold, long compactionInterval, TimeUnit unit, LockProvider lockProvider) {
+        if (!persistenceDir.isDirectory() || !persistenceDir.canWrite() || !persistenceDir.canRead()) {
+            throw new IllegalArgumentException("persistence dir must be a readable and writeable directory");
+        }
+        if (maxSegmentSize <= 0) {
+            throw new IllegalArgumentException("maxSegmentSize must be positive");
+        }
+        if (compactionThreshold <= 0 || compactionThreshold > 1) {
+            throw new IllegalArgumentException("compactionThreshold must be in (0, 1]");
+        }
+
+        this.persistenceDir = persistenceDir.toPath();
+        this.maxSegmentSize = maxSegmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.lockProvider = lockProvider;
+
+        try {
+            this.sequence = new VersionSequence(this.persistenceDir);
+            recover();
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not open log in %s", persistenceDir.getAbsolutePath()), e);
+        }
+
+        if (compactionInterval > 0) {
+            this.compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "jquickrepo-compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.compactor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (RuntimeException e) {
+                        // nothing was lost, we'll try again at the next run; explicit compact()
+                        // calls report the failure.
+                    }
+                }
+            }, compactionInterval, compactionInterval, unit);
+        } else {
+            this.compactor = null;
+        }
+    }
+
+    private void recover() throws IOException {
+        DirectoryStream<Path> files = Files.newDirectoryStream(this.persistenceDir, LogSegment.glob());
+        try {
+            for (Path file : files) {
+                long number = LogSegment.parseNumber(file.getFileName().toString());
+                if (number >= 0) {
+                    this.segments.put(number, LogSegment.open(this.persistenceDir, number));
+                }
+            }
+        } finally {
+            files.close();
+        }
+
+        for (LogSegment segment : this.segments.values()) {
+            for (LogSegment.ScannedRecord record : segment.recover()) {
+                if (record.type == LogSegment.PUT) {
+                    indexRecord(record.id, new RecordLocation(segment, record.offset, record.size(), record.dataStart, record.dataLength, record.version));
+                } else {
+                    unindexRecord(record.id);
+                    segment.tombstoneBytes.addAndGet(record.size());
+                }
+            }
+        }
+
+        if (this.segments.isEmpty()) {
+            startSegment();
+        } else {
+            this.activeSegment = this.segments.lastEntry().getValue();
+        }
+    }
+
+    @Override
+    public Collection<Entry<byte[]>> loadAll() {
+        List<Entry<byte[]>> entries = new ArrayList<Entry<byte[]>>();
+        Iterator<Entry<byte[]>> iterator = iterateAll();
+        while (iterator.hasNext()) {
+            entries.add(iterator.next());
+        }
+        return entries;
+    }
+
+    @Override
+    public Iterator<Entry<byte[]>> iterateAll() {
+        return new LazyEntryIterator<byte[]>(listIds(), contentLoader);
+    }
+
+    @Override
+    public Iterator<Entry<byte[]>> iterateAll(ExecutorService executor, int maxInFlight) {
+        return new ParallelEntryIterator<byte[]>(listIds(), contentLoader, executor, maxInFlight);
+    }
+
+    private Iterator<String> listIds() {
+        return new ArrayList<String>(this.index.keySet()).iterator();
+    }
+
+    @Override
+    public boolean exists(String id) {
+        CharacterTableIdValidator.DEFAULT.validate(id);
+        return this.index.containsKey(id);
+    }
+
+    @Override
+    public List<String> keys() {
+        List<String> keys = new ArrayList<String>(this.index.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    @Override
+    public List<String> keys(String prefix) {
+        List<String> keys = new ArrayList<String>();
+        for (String id : this.index.keySet()) {
+            if (id.startsWith(prefix)) {
+                keys.add(id);
+            }
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        return this.index.size();
+    }
+
+    @Override
+    public byte[] load(final String id) throws UnknownResourceIdException {
+        CharacterTableIdValidator.DEFAULT.validate(id);
+
+        ScopedReadWriteLock<byte[]> scopedLock = new ScopedReadWriteLock<byte[]>(this.lockProvider.provideLock(id));
+        return scopedLock.executeWithReadLock(new WhileLocked<byte[]>() {
+            @Override
+            public byte[] execute() {
+                return getContents(id);
+            }
+        });
+    }
+
+    @Override
+    public Entry<byte[]> loadEntry(final String id) throws UnknownResourceIdException {
+        CharacterTableIdValidator.DEFAULT.validate(id);
+
+        ScopedReadWriteLock<Entry<byte[]>> scopedLock = new ScopedReadWriteLock<Entry<byte[]>>(this.lockProvider.provideLock(id));
+        return scopedLock.executeWithReadLock(new WhileLocked<Entry<byte[]>>() {
+            @Override
+            public Entry<byte[]> execute() {
+                RecordLocation location = index.get(id);
+                if (location == null) {
+                    throw new UnknownResourceIdException(id);
+                }
+                return new Entry<byte[]>(id, read(location), location.version);
+            }
+        });
+    }
+
+    @Override
+    public void save(final String id, final byte[] data) {
+        CharacterTableIdValidator.DEFAULT.validate(id);
+
+        executeWithWriteLock(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                if (index.containsKey(id)) {
+                    throw new DuplicateResourceIdException(id);
+                }
+                put(id, data);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void update(final String id, final byte[] data) {
+        CharacterTableIdValidator.DEFAULT.validate(id);
+
+        executeWithWriteLock(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                if (!index.containsKey(id)) {
+                    throw new MissingIdException(id);
+                }
+                put(id, data);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public long update(final String id, final byte[] data, final long expectedVersion) {
+        CharacterTableIdValidator.DEFAULT.validate(id);
+
+        return executeWithWriteLock(id, new WhileLocked<Long>() {
+            @Override
+            public Long execute() {
+                RecordLocation location = index.get(id);
+                if (location == null) {
+                    throw new MissingIdException(id);
+                }
+                if (location.version != expectedVersion) {
+                    throw new VersionConflictException(id, expectedVersion, location.version);
+                }
+                put(id, data);
+                return index.get(id).version;
+            }
+        });
+    }
+
+    @Override
+    public boolean compareAndSet(String id, long expectedVersion, byte[] data) {
+        try {
+            update(id, data, expectedVersion);
+            return true;
+        } catch (VersionConflictException e) {
+            return false;
+        } catch (MissingIdException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void saveOrUpdate(final String id, final byte[] data) {
+        CharacterTableIdValidator.DEFAULT.validate(id);
+
+        executeWithWriteLock(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                put(id, data);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void delete(final String id) throws UnknownResourceIdException {
+        CharacterTableIdValidator.DEFAULT.validate(id);
+
+        executeWithWriteLock(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                if (!index.containsKey(id)) {
+                    throw new UnknownResourceIdException(id);
+                }
+                RecordLocation tombstone = append(LogSegment.DELETE, id, sequence.next(), new byte[0]);
+                tombstone.segment.tombstoneBytes.addAndGet(tombstone.size);
+                unindexRecord(id);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void modifyWhileLocking(final String id, final DoWhileLocking<byte[]> doWhile) throws UnknownResourceIdException {
+        CharacterTableIdValidator.DEFAULT.validate(id);
+
+        executeWithWriteLock(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                put(id, doWhile.execute(getContents(id)));
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void modifyWhileLocking(final String id, final DoWhileLocking<byte[]> doWhile, final byte[] missing) throws UnknownResourceIdException {
+        CharacterTableIdValidator.DEFAULT.validate(id);
+
+        executeWithWriteLock(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                byte[] data;
+                try {
+                    data = getContents(id);
+                } catch (UnknownResourceIdException e) {
+                    data = missing;
+                }
+                put(id, doWhile.execute(data));
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void saveAll(Map<String, byte[]> entries) {
+        apply(new Batch<byte[]>().saveAll(entries));
+    }
+
+    @Override
+    public void saveOrUpdateAll(Map<String, byte[]> entries) {
+        apply(new Batch<byte[]>().saveOrUpdateAll(entries));
+    }
+
+    @Override
+    public void apply(Batch<byte[]> batch) {
+        apply(batch, null);
+    }
+
+    /**
+     * Records are encoded (and checksummed) on the executor, then appended in one go.
+     */
+    @Override
+    public void apply(final Batch<byte[]> batch, final ExecutorService executor) {
+        for (String id : batch.getIds()) {
+            CharacterTableIdValidator.DEFAULT.validate(id);
+        }
+
+        ScopedMultipleWriteLock<Void> scopedLock = new ScopedMultipleWriteLock<Void>(this.lockProvider.provideLocks(batch.getIds()));
+        scopedLock.executeWithWriteLocks(new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                for (Batch.Write<byte[]> write : batch.getWrites()) {
+                    verifyPrecondition(write);
+                }
+
+                final List<Batch.Write<byte[]>> writes = new ArrayList<Batch.Write<byte[]>>(batch.getWrites());
+                final long[] versions = new long[writes.size()];
+                for (int i = 0; i < versions.length; i++) {
+                    versions[i] = sequence.next();
+                }
+                final ByteBuffer[][] records = new ByteBuffer[writes.size()][];
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+                for (int i = 0; i < writes.size(); i++) {
+                    final int index = i;
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            Batch.Write<byte[]> write = writes.get(index);
+                            records[index] = write.getOperation() == Batch.Operation.DELETE
+                                    ? LogSegment.encode(LogSegment.DELETE, write.getId(), versions[index], new byte[0])
+                                    : LogSegment.encode(LogSegment.PUT, write.getId(), versions[index], write.getValue());
+                            return null;
+                        }
+                    });
+                }
+                BatchTasks.runAll(tasks, executor);
+
+                synchronized (appendLock) {
+                    for (int i = 0; i < writes.size(); i++) {
+                        Batch.Write<byte[]> write = writes.get(i);
+                        RecordLocation location = append(records[i], versions[i]);
+                        if (write.getOperation() == Batch.Operation.DELETE) {
+                            location.segment.tombstoneBytes.addAndGet(location.size);
+                            unindexRecord(write.getId());
+                        } else {
+                            indexRecord(write.getId(), location);
+                        }
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    private void verifyPrecondition(Batch.Write<byte[]> write) {
+        boolean exists = this.index.containsKey(write.getId());
+        switch (write.getOperation()) {
+            case SAVE:
+                if (exists) {
+                    throw new DuplicateResourceIdException(write.getId());
+                }
+                break;
+            case UPDATE:
+                if (!exists) {
+                    throw new MissingIdException(write.getId());
+                }
+                break;
+            case DELETE:
+                if (!exists) {
+                    throw new UnknownResourceIdException(write.getId());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Compacts every sealed segment whose share of superseded data is above the threshold.
+     */
+    public void compact() {
+        synchronized (this.compactionLock) {
+            LogSegment candidate;
+            while ((candidate = pickCompactionCandidate()) != null) {
+                try {
+                    compact(candidate);
+                } catch (IOException e) {
+                    throw new RuntimeException(String.format("could not compact segment %d", candidate.getNumber()), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops background compaction and closes the segment files.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.compactor != null) {
+            // no interrupts: they would close the file channels under the compactor's feet.
+            this.compactor.shutdown();
+            try {
+                this.compactor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this.compactionLock) {
+            synchronized (this.appendLock) {
+                for (LogSegment segment : this.segments.values()) {
+                    segment.close();
+                }
+            }
+        }
+    }
+
+    int segmentCount() {
+        return this.segments.size();
+    }
+
+    private LogSegment pickCompactionCandidate() {
+        LogSegment best = null;
+        double bestRatio = 0;
+        Map.Entry<Long, LogSegment> oldest = this.segments.firstEntry();
+        for (LogSegment segment : this.segments.values()) {
+            if (segment == currentSegment()) {
+                continue;
+            }
+            long reclaimable = segment.garbageBytes.get();
+            if (segment == oldest.getValue()) {
+                // nothing older is left for its tombstones to hide.
+                reclaimable += segment.tombstoneBytes.get();
+            }
+            double ratio = segment.size() == 0 ? 1 : (double) reclaimable / segment.size();
+            if (ratio >= this.compactionThreshold && ratio > bestRatio) {
+                best = segment;
+                bestRatio = ratio;
+            }
+        }
+        return best;
+    }
+
+    private void compact(final LogSegment segment) throws IOException {
+        final boolean oldest = this.segments.firstKey() == segment.getNumber();
+
+        for (final LogSegment.ScannedRecord record : segment.scan()) {
+            if (record.type == LogSegment.PUT) {
+                executeWithWriteLock(record.id, new WhileLocked<Void>() {
+                    @Override
+                    public Void execute() {
+                        RecordLocation location = index.get(record.id);
+                        if (location != null && location.segment == segment && location.offset == record.offset) {
+                            // moved, not written: same version.
+                            indexRecord(record.id, append(LogSegment.PUT, record.id, location.version, read(location)));
+                        }
+                        return null;
+                    }
+                });
+            } else if (!oldest) {
+                // an older segment may still have a record this tombstone hides; it's not needed
+                // if the id was saved again, since that record is newer anyway.
+                executeWithWriteLock(record.id, new WhileLocked<Void>() {
+                    @Override
+                    public Void execute() {
+                        if (!index.containsKey(record.id)) {
+                            RecordLocation tombstone = append(LogSegment.DELETE, record.id, record.version, new byte[0]);
+                            tombstone.segment.tombstoneBytes.addAndGet(tombstone.size);
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+
+        synchronized (this.appendLock) {
+            this.segments.remove(segment.getNumber());
+        }
+        segment.delete();
+    }
+
+    private <X> X executeWithWriteLock(final String id, final WhileLocked<X> whileLocked) {
+        ScopedReadWriteLock<X> scopedLock = new ScopedReadWriteLock<X>(lockProvider.provideLock(id));
+        return scopedLock.executeWithWriteLock(whileLocked);
+    }
+
+    private byte[] getContents(String id) throws UnknownResourceIdException {
+        RecordLocation location = this.index.get(id);
+        if (location == null) {
+            throw new UnknownResourceIdException(id);
+        }
+        return read(location);
+    }
+
+    private byte[] read(RecordLocation location) {
+        try {
+            return location.segment.read(location.offset + location.dataStart, location.dataLength);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not read segment %d", location.segment.getNumber()), e);
+        }
+    }
+
+    /**
+     * Appends the data and points the id to it; the caller must hold the id write lock.
+     */
+    private void put(String id, byte[] data) {
+        indexRecord(id, append(LogSegment.PUT, id, this.sequence.next(), data));
+    }
+
+    private void indexRecord(String id, RecordLocation location) {
+        RecordLocation previous = this.index.put(id, location);
+        if (previous != null) {
+            previous.segment.garbageBytes.addAndGet(previous.size);
+        }
+    }
+
+    private void unindexRecord(String id) {
+        RecordLocation previous = this.index.remove(id);
+        if (previous != null) {
+            previous.segment.garbageBytes.addAndGet(previous.size);
+        }
+    }
+
+    private RecordLocation append(byte type, String id, long version, byte[] data) {
+        return append(LogSegment.encode(type, id, version, data), version);
+    }
+
+    private RecordLocation append(ByteBuffer[] record, long version) {
+        int dataStart = record[0].remaining() + record[1].remaining();
+        int dataLength = record[2].remaining();
+
+        synchronized (this.appendLock) {
+            try {
+                if (this.activeSegment.size() >= this.maxSegmentSize) {
+                    startSegment();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("could not start a new segment", e);
+            }
+            LogSegment segment = this.activeSegment;
+            try {
+                long offset = segment.append(record);
+                return new RecordLocation(segment, offset, dataStart + dataLength, dataStart, dataLength, version);
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("could not append to segment %d", segment.getNumber()), e);
+            }
+        }
+    }
+
+    private LogSegment currentSegment() {
+        synchronized (this.appendLock) {
+            return this.activeSegment;
+        }
+    }
+
+    private void startSegment() throws IOException {
+        synchronized (this.appendLock) {
+            long number = this.segments.isEmpty() ? 1 : this.segments.lastKey() + 1;
+            LogSegment segment = LogSegment.open(this.persistenceDir, number);
+            this.segments.put(number, segment);
+            this.activeSegment = segment;
+        }
+    }
+
+    private static class RecordLocation {
+
+        final LogSegment segment;
+        final long offset;
+        final int size;
+        final int dataStart;
+        final int dataLength;
+        final long version;
+
+        RecordLocation(LogSegment segment, long offset, int size, int dataStart, int dataLength, long version) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+            this.dataStart = dataStart;
+            this.dataLength = dataLength;
+            this.version = version;
+        }
+    }
+}
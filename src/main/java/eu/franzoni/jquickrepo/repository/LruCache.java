@@ -0,0 +1,144 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size and weight bounded, least recently used cache with optional expiry after write.
+ *
+ * Each operation takes the cache monitor; values are kept as they are, callers sharing them must
+ * not modify them.
+ */
+class LruCache<V> {
+
+    private final LinkedHashMap<String, CachedValue<V>> values = new LinkedHashMap<String, CachedValue<V>>(16, 0.75f, true);
+    private final long maximumSize;
+    private final long maximumWeight;
+    private final Weigher<? super V> weigher;
+    private final long expireAfterWriteNanos;
+    private long totalWeight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maximumSize max number of values, or Long.MAX_VALUE
+     * @param maximumWeight max total weight of values, or Long.MAX_VALUE
+     * @param weigher weigher for values, every value weighs 1 when null
+     * @param expireAfterWriteNanos values older than this are dropped; 0 means never
+     */
+    LruCache(long maximumSize, long maximumWeight, Weigher<? super V> weigher, long expireAfterWriteNanos) {
+        if (maximumSize < 0 || maximumWeight < 0 || expireAfterWriteNanos < 0) {
+            throw new IllegalArgumentException("cache bounds must not be negative");
+        }
+        this.maximumSize = maximumSize;
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.expireAfterWriteNanos = expireAfterWriteNanos;
+    }
+
+    /**
+     * @return the cached value, or null if missing or expired.
+     */
+    synchronized V get(String id) {
+        CachedValue<V> cached = this.values.get(id);
+        if (cached != null && isExpired(cached, System.nanoTime())) {
+            remove(id);
+            this.evictions.incrementAndGet();
+            cached = null;
+        }
+
+        if (cached == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return cached.value;
+    }
+
+    synchronized void put(String id, V value) {
+        remove(id);
+
+        long weight = weigh(id, value);
+        if (weight > this.maximumWeight || this.maximumSize == 0) {
+            // would evict everything else and still not fit.
+            return;
+        }
+
+        this.values.put(id, new CachedValue<V>(value, weight, System.nanoTime()));
+        this.totalWeight += weight;
+        evictIfNeeded();
+    }
+
+    synchronized void invalidate(String id) {
+        remove(id);
+    }
+
+    synchronized void invalidateAll() {
+        this.values.clear();
+        this.totalWeight = 0;
+    }
+
+    synchronized int size() {
+        return this.values.size();
+    }
+
+    long getHitCount() {
+        return this.hits.get();
+    }
+
+    long getMissCount() {
+        return this.misses.get();
+    }
+
+    long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    private void remove(String id) {
+        CachedValue<V> removed = this.values.remove(id);
+        if (removed != null) {
+            this.totalWeight -= removed.weight;
+        }
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<String, CachedValue<V>>> eldest = this.values.entrySet().iterator();
+        while (eldest.hasNext() && (this.values.size() > this.maximumSize || this.totalWeight > this.maximumWeight)) {
+            this.totalWeight -= eldest.next().getValue().weight;
+            eldest.remove();
+            this.evictions.incrementAndGet();
+        }
+    }
+
+    private long weigh(String id, V value) {
+        if (this.weigher == null) {
+            return 1;
+        }
+        long weight = this.weigher.weigh(id, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException(String.format("negative weight for '%s'", id));
+        }
+        return weight;
+    }
+
+    private boolean isExpired(CachedValue<V> cached, long now) {
+        return this.expireAfterWriteNanos > 0 && now - cached.writtenAt >= this.expireAfterWriteNanos;
+    }
+
+    private static class CachedValue<V> {
+
+        private final V value;
+        private final long weight;
+        private final long writtenAt;
+
+        CachedValue(V value, long weight, long writtenAt) {
+            this.value = value;
+            this.weight = weight;
+            this.writtenAt = writtenAt;
+        }
+    }
+}
@@ -1,53 +1,187 @@
 package eu.franzoni.jquickrepo.repository;
 
-import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.io.xml.StaxDriver;
+import eu.franzoni.jquickrepo.concurrency.WhileLocked;
+import eu.franzoni.jquickrepo.metrics.MetricsListener;
+import eu.franzoni.jquickrepo.metrics.Operation;
+import eu.franzoni.jquickrepo.serialization.Serializer;
+import eu.franzoni.jquickrepo.serialization.XStreamSerializer;
 
+import java.io.Closeable;
 import java.io.File;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
-public class MarshallingRepository<T> implements Repository<T> {
+public class MarshallingRepository<T> implements Repository<T>, Closeable {
     
 
     private final ByteArrayRepo diskRepo;
-    private final XStreamByteArrayMarshaller<T> marshaller;
+    private final EntryFormat<T> format;
+    private final EntryLoader<T> unmarshallingLoader = new EntryLoader<T>() {
+        @Override
+        public T load(String id) {
+            // a full scan would just push every hot object out of the cache.
+            return doLoad(id, false);
+        }
+    };
+
+    private final LruCache<CachedObject<T>> objectCache;
+    private final Copier<T> copier;
 
     public MarshallingRepository(File persistenceDir) {
-        this.diskRepo = new ByteArrayRepo(persistenceDir);
-        this.marshaller = new XStreamByteArrayMarshaller<T>(Charset.forName("UTF-8"), new XStream(new StaxDriver()));
+        this(persistenceDir, new XStreamSerializer<T>());
+    }
+
+    public MarshallingRepository(File persistenceDir, Serializer<T> serializer) {
+        this(new ByteArrayRepo(persistenceDir), serializer);
+    }
+
+    /**
+     * Stores entries through the given repository, which should not be used directly anymore;
+     * use a {@link ByteArrayRepo.Builder} for a durability, lock provider or layout other than
+     * the default.
+     */
+    public MarshallingRepository(ByteArrayRepo diskRepo, Serializer<T> serializer) {
+        this.diskRepo = diskRepo;
+        this.format = EntryFormat.serializedWith(serializer);
+        this.objectCache = null;
+        this.copier = null;
+    }
+
+    /**
+     * Keeps unmarshalled objects in memory, so that loading an entry which didn't change since its
+     * last load costs a file stat instead of a read and a parse.
+     *
+     * @param maxCachedBytes bound for the cache, measured as the stored size of the objects: with
+     * a compressing serializer that's the compressed size, and the objects take several times more
+     * heap than the bound; use {@link #MarshallingRepository(ByteArrayRepo, Serializer, long, Copier, Weigher)}
+     * to weigh them otherwise
+     * @param copier gives each load its own copy of the cached object
+     */
+    public MarshallingRepository(File persistenceDir, long maxCachedBytes, Copier<T> copier) {
+        this(persistenceDir, new XStreamSerializer<T>(), maxCachedBytes, copier);
+    }
+
+    public MarshallingRepository(File persistenceDir, Serializer<T> serializer, long maxCachedBytes, Copier<T> copier) {
+        this(new ByteArrayRepo(persistenceDir), serializer, maxCachedBytes, copier);
+    }
+
+    public MarshallingRepository(ByteArrayRepo diskRepo, Serializer<T> serializer, long maxCachedBytes, Copier<T> copier) {
+        this(diskRepo, serializer, maxCachedBytes, copier, null);
+    }
+
+    /**
+     * @param weigher how much each cached object counts against maxCachedBytes, e.g. an estimate
+     * of its heap size; null to count the stored size
+     */
+    public MarshallingRepository(ByteArrayRepo diskRepo, Serializer<T> serializer, long maxCachedBytes, Copier<T> copier, final Weigher<? super T> weigher) {
+        this.diskRepo = diskRepo;
+        this.format = EntryFormat.serializedWith(serializer);
+        this.objectCache = new LruCache<CachedObject<T>>(Long.MAX_VALUE, maxCachedBytes, new Weigher<CachedObject<T>>() {
+            @Override
+            public long weigh(String id, CachedObject<T> cached) {
+                return weigher != null ? weigher.weigh(id, cached.object) : cached.version.getLength();
+            }
+        }, 0);
+        this.copier = copier;
+        this.diskRepo.addWriteListener(new WriteListener() {
+            @Override
+            public void written(String id) {
+                objectCache.invalidate(id);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        this.diskRepo.close();
+    }
+
+    /**
+     * @see ByteArrayRepo#setMetricsListener(MetricsListener)
+     */
+    public void setMetricsListener(MetricsListener metrics) {
+        this.diskRepo.setMetricsListener(metrics);
     }
 
     @Override
     public Collection<Entry<T>> loadAll() {
-        final Collection<Entry<byte[]>> marshaledEntries = this.diskRepo.loadAll();
-        final List<Entry<T>> typedEntries = new ArrayList<Entry<T>>(marshaledEntries.size());
-        for (Entry<byte[]> marshaledEntry: marshaledEntries) {
-            typedEntries.add(new Entry<T>(marshaledEntry.getId(), marshaller.unmarshal(marshaledEntry.getContent())));
-        }
-        return typedEntries;
+        return this.diskRepo.timed(Operation.LOAD_ALL, new WhileLocked<Collection<Entry<T>>>() {
+            @Override
+            public Collection<Entry<T>> execute() {
+                final List<Entry<T>> typedEntries = new ArrayList<Entry<T>>();
+                final Iterator<Entry<T>> iterator = iterateAll();
+                while (iterator.hasNext()) {
+                    typedEntries.add(iterator.next());
+                }
+                return typedEntries;
+            }
+        });
+    }
+
+    @Override
+    public Iterator<Entry<T>> iterateAll() {
+        return new LazyEntryIterator<T>(this.diskRepo.listIds(), this.unmarshallingLoader);
+    }
+
+    @Override
+    public Iterator<Entry<T>> iterateAll(ExecutorService executor, int maxInFlight) {
+        // unmarshalling happens on the executor as well, that's where most of the time goes.
+        return new ParallelEntryIterator<T>(this.diskRepo.listIds(), this.unmarshallingLoader, executor, maxInFlight);
     }
-    
-    
 
     @Override
     public void save(String id, T obj) {
-        this.diskRepo.save(id, marshaller.marshal(obj));
+        this.diskRepo.save(id, obj, this.format);
 
     }
 
     @Override
     public void saveOrUpdate(String id, T obj) {
-        this.diskRepo.saveOrUpdate(id, marshaller.marshal(obj));
+        this.diskRepo.saveOrUpdate(id, obj, this.format);
 
     }
 
     @Override
     public void update(String id, T obj) {
-        this.diskRepo.update(id, marshaller.marshal(obj));
+        this.diskRepo.update(id, obj, this.format);
+
+    }
+
+    @Override
+    public long update(String id, T obj, long expectedVersion) {
+        return this.diskRepo.update(id, obj, expectedVersion, this.format);
+    }
+
+    @Override
+    public boolean compareAndSet(String id, long expectedVersion, T obj) {
+        return this.diskRepo.compareAndSet(id, expectedVersion, obj, this.format);
+    }
+
+    @Override
+    public void saveAll(Map<String, T> entries) {
+        apply(new Batch<T>().saveAll(entries));
+    }
 
+    @Override
+    public void saveOrUpdateAll(Map<String, T> entries) {
+        apply(new Batch<T>().saveOrUpdateAll(entries));
+    }
+
+    @Override
+    public void apply(Batch<T> batch) {
+        this.diskRepo.apply(batch, this.format, null);
+    }
+
+    /**
+     * Marshalling happens on the executor as well, so big batches are serialized in parallel.
+     */
+    @Override
+    public void apply(Batch<T> batch, ExecutorService executor) {
+        this.diskRepo.apply(batch, this.format, executor);
     }
 
     @Override
@@ -57,56 +191,104 @@ public class MarshallingRepository<T> implements Repository<T> {
     }
 
     @Override
-    public T load(String id) {
-        return (T) this.marshaller.unmarshal(this.diskRepo.load(id));
+    public boolean exists(String id) {
+        return this.diskRepo.exists(id);
     }
 
     @Override
-    public void modifyWhileLocking(final String id, final DoWhileLocking<T> whileLocking) throws UnknownResourceIdException {
-        this.diskRepo.modifyWhileLocking(id, new DoWhileLocking<byte[]>() {
-            @Override
-            public byte[] execute(byte[] data) {
-                return marshaller.marshal(
-                        whileLocking.execute(marshaller.unmarshal(data)                        )
-                        
-                        );
+    public List<String> keys() {
+        return this.diskRepo.keys();
+    }
 
-            }
-        });
+    @Override
+    public List<String> keys(String prefix) {
+        return this.diskRepo.keys(prefix);
     }
 
     @Override
-    public void modifyWhileLocking(final String id, final DoWhileLocking<T> whileLocking, final T missing) throws UnknownResourceIdException {
-        this.diskRepo.modifyWhileLocking(id, new DoWhileLocking<byte[]>() {
-            @Override
-            public byte[] execute(byte[] data) {
-                return marshaller.marshal(whileLocking.execute(
-                        marshaller.unmarshal(data)));
+    public int size() {
+        return this.diskRepo.size();
+    }
 
+    @Override
+    public T load(final String id) {
+        return this.diskRepo.timed(Operation.LOAD, new WhileLocked<T>() {
+            @Override
+            public T execute() {
+                return doLoad(id, true);
             }
-        }, marshaller.marshal(missing));
+        });
+    }
 
+    /**
+     * Always read from disk, so the object is never shared with the cache.
+     */
+    @Override
+    public Entry<T> loadEntry(String id) {
+        return this.diskRepo.loadEntry(id, this.format);
     }
 
-    private static class XStreamByteArrayMarshaller<T> {
+    /**
+     * @see ByteArrayRepo#load(String, long)
+     */
+    public T load(String id, long version) {
+        return this.diskRepo.load(id, version, this.format);
+    }
 
-        final private Charset charset;
-        final private XStream marshaller;
+    /**
+     * @see ByteArrayRepo#snapshot()
+     */
+    public Snapshot<T> snapshot() {
+        return this.diskRepo.snapshot(this.format);
+    }
 
-        public XStreamByteArrayMarshaller(Charset charset, XStream marshaller) {
-            this.charset = charset;
-            this.marshaller = marshaller;
+    private T doLoad(final String id, final boolean populateCache) {
+        if (this.objectCache == null) {
+            return this.diskRepo.doLoad(id, this.format);
         }
 
-        public byte[] marshal(T obj) {
-            return this.marshaller.toXML(obj).getBytes(this.charset);
+        // the cache is only ever filled and invalidated while holding the id lock, so it can't
+        // get an object older than the last write; an optimistic read couldn't guarantee that.
+        return this.diskRepo.executeWithReadLock(id, new WhileLocked<T>() {
+            @Override
+            public T execute() {
+                final FileVersion version = diskRepo.getVersion(id);
+                final CachedObject<T> cached = objectCache.get(id);
+                if (cached != null && cached.version.equals(version)) {
+                    return copier.copy(cached.object);
+                }
 
-        }
+                final T loaded = diskRepo.readContents(id, format);
+                if (!populateCache) {
+                    return loaded;
+                }
+                objectCache.put(id, new CachedObject<T>(version, loaded));
+                return copier.copy(loaded);
+            }
+        });
+    }
+
+    @Override
+    public void modifyWhileLocking(final String id, final DoWhileLocking<T> whileLocking) throws UnknownResourceIdException {
+        this.diskRepo.modifyWhileLocking(id, whileLocking, this.format);
+    }
+
+    /**
+     * Note that, when the id is missing, whileLocking gets the missing object itself, not a copy.
+     */
+    @Override
+    public void modifyWhileLocking(final String id, final DoWhileLocking<T> whileLocking, final T missing) throws UnknownResourceIdException {
+        this.diskRepo.modifyWhileLocking(id, whileLocking, missing, this.format);
+    }
+
+    private static class CachedObject<T> {
 
-        @SuppressWarnings("unchecked")
-        public T unmarshal(byte[] bytes) {
-            return (T) this.marshaller.fromXML(new String(bytes, this.charset));
+        private final FileVersion version;
+        private final T object;
 
+        CachedObject(FileVersion version, T object) {
+            this.version = version;
+            this.object = object;
         }
     }
 }
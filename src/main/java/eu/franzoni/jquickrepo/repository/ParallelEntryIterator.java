@@ -0,0 +1,138 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Loads entries on an executor, keeping at most maxInFlight loads submitted ahead of the consumer.
+ * Entries are returned in listing order; memory is bounded by maxInFlight entries, no matter how
+ * big the repository is.
+ *
+ * Loads submitted ahead are cancelled when a load fails or the iterator is closed; callers which
+ * stop iterating early should close it, otherwise those loads still run and hold their entries.
+ */
+class ParallelEntryIterator<T> implements Iterator<Entry<T>>, Closeable {
+
+    private final Iterator<String> ids;
+    private final EntryLoader<T> loader;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final Queue<PendingEntry<T>> inFlight = new ArrayDeque<PendingEntry<T>>();
+    private Entry<T> next;
+    private boolean closed;
+
+    ParallelEntryIterator(Iterator<String> ids, EntryLoader<T> loader, ExecutorService executor, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.ids = ids;
+        this.loader = loader;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            fill();
+            PendingEntry<T> pending = inFlight.poll();
+            if (pending == null) {
+                return false;
+            }
+            try {
+                next = pending.await();
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            } catch (Error e) {
+                close();
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Entry<T> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Entry<T> entry = next;
+        next = null;
+        return entry;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("entries can't be removed while iterating");
+    }
+
+    /**
+     * Cancels the loads submitted ahead, those not started yet don't run at all; iterating
+     * afterwards finds no more entries.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        next = null;
+        for (PendingEntry<T> pending = inFlight.poll(); pending != null; pending = inFlight.poll()) {
+            // running loads are left to finish: interrupting file I/O would close the channel.
+            pending.future.cancel(false);
+        }
+    }
+
+    private void fill() {
+        while (!closed && inFlight.size() < maxInFlight && ids.hasNext()) {
+            final String id = ids.next();
+            Future<T> future = executor.submit(new Callable<T>() {
+                @Override
+                public T call() {
+                    return loader.load(id);
+                }
+            });
+            inFlight.add(new PendingEntry<T>(id, future));
+        }
+    }
+
+    private static class PendingEntry<T> {
+
+        private final String id;
+        private final Future<T> future;
+
+        PendingEntry(String id, Future<T> future) {
+            this.id = id;
+            this.future = future;
+        }
+
+        /**
+         * @return the loaded entry, or null if it was deleted after being listed.
+         */
+        Entry<T> await() {
+            try {
+                return new Entry<T>(id, future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while loading " + id, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UnknownResourceIdException) {
+                    return null;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+}
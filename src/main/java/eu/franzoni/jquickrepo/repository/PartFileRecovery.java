@@ -0,0 +1,217 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes, or moves to a quarantine directory, the part files left in a {@link ByteArrayRepo}
+ * directory by writes which never completed, e.g. because the process died. Each write has a part
+ * file of its own, so leftovers block nothing, but they take space and every listing has to skip
+ * them. Nothing may write to the directory meanwhile: run it before opening the repository, or
+ * let {@link ByteArrayRepo.Builder#recoverPartFiles(ExecutorService)} run it while opening.
+ *
+ * Each partition of the layout (every top level shard) is a task of its own, run on the executor
+ * if one is given; a flat directory is a single partition. Only names are listed, so the time
+ * taken is that of listing the directory, plus a stat and an unlink for each part file.
+ *
+ * From the command line: {@code PartFileRecovery <dir> [quarantine dir]}.
+ */
+public final class PartFileRecovery {
+
+    private PartFileRecovery() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: PartFileRecovery <dir> [quarantine dir]");
+            System.exit(1);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            Report report = recover(new File(args[0]), args.length == 2 ? new File(args[1]) : null, executor);
+            System.out.println(String.format("%s: %s", args[0], report));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Deletes the part files.
+     *
+     * @param executor null to scan on the calling thread
+     */
+    public static Report recover(File persistenceDir, ExecutorService executor) {
+        return recover(persistenceDir, null, executor);
+    }
+
+    /**
+     * @param quarantineDir where to move the part files rather than deleting them, null to delete
+     * them; created if missing. Inside the repository directory, its name has to start with a dot.
+     * @param executor null to scan on the calling thread
+     */
+    public static Report recover(File persistenceDir, File quarantineDir, ExecutorService executor) {
+        final Path root = persistenceDir.toPath();
+        final Path quarantine = quarantineDir != null ? quarantineDir.toPath() : null;
+        long started = System.nanoTime();
+        try {
+            if (quarantine != null) {
+                checkQuarantine(root, quarantine);
+                Files.createDirectories(quarantine);
+            }
+            final Layout layout = Layout.read(root);
+            final List<Path> partitions = layout.partitions(root);
+            final AtomicLong scanned = new AtomicLong();
+            final AtomicLong recovered = new AtomicLong();
+            final AtomicLong bytes = new AtomicLong();
+
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(partitions.size());
+            for (final Path partition : partitions) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        List<Path> dirs = new ArrayList<Path>();
+                        layout.listDirectories(partition, dirs);
+                        for (Path dir : dirs) {
+                            recoverDirectory(dir, quarantine, scanned, recovered, bytes);
+                        }
+                        return null;
+                    }
+                });
+            }
+            BatchTasks.runAll(tasks, executor);
+            return new Report(partitions.size(), scanned.get(), recovered.get(), bytes.get(), quarantine != null, System.nanoTime() - started);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("could not recover the part files of %s", root.toAbsolutePath()), e);
+        }
+    }
+
+    private static void checkQuarantine(Path root, Path quarantine) {
+        Path absoluteRoot = root.toAbsolutePath().normalize();
+        Path absoluteQuarantine = quarantine.toAbsolutePath().normalize();
+        if (absoluteQuarantine.equals(absoluteRoot)) {
+            throw new IllegalArgumentException("the quarantine directory can't be the repository itself");
+        }
+        // anything else in there would be taken for an entry or a shard.
+        if (absoluteQuarantine.startsWith(absoluteRoot)
+                && !absoluteRoot.relativize(absoluteQuarantine).getName(0).toString().startsWith(".")) {
+            throw new IllegalArgumentException(String.format("%s is in the repository, its name must start with a dot", quarantine));
+        }
+    }
+
+    private static void recoverDirectory(Path dir, Path quarantine, AtomicLong scanned, AtomicLong recovered, AtomicLong bytes) throws IOException {
+        List<Path> parts = new ArrayList<Path>();
+        long names = 0;
+        DirectoryStream<Path> children = Files.newDirectoryStream(dir);
+        try {
+            for (Path child : children) {
+                names++;
+                String name = child.getFileName().toString();
+                // hidden files have part files of their own, e.g. the id index snapshot.
+                if (name.endsWith(Layout.PART_SUFFIX) && !name.startsWith(".")) {
+                    parts.add(child);
+                }
+            }
+        } finally {
+            children.close();
+        }
+        scanned.addAndGet(names);
+
+        for (Path part : parts) {
+            bytes.addAndGet(Files.size(part));
+            if (quarantine == null) {
+                Files.delete(part);
+            } else {
+                moveToQuarantine(part, quarantine);
+            }
+            recovered.incrementAndGet();
+        }
+    }
+
+    /**
+     * Keeps whatever was quarantined before under the same name, adding a number to the new one.
+     */
+    private static void moveToQuarantine(Path part, Path quarantine) throws IOException {
+        String name = part.getFileName().toString();
+        Path target = quarantine.resolve(name);
+        for (int copy = 1; ; copy++) {
+            try {
+                Files.move(part, target);
+                return;
+            } catch (FileAlreadyExistsException e) {
+                target = quarantine.resolve(name + "." + copy);
+            }
+        }
+    }
+
+    /**
+     * What a recovery found and did.
+     */
+    public static final class Report {
+
+        private final int partitions;
+        private final long scanned;
+        private final long recovered;
+        private final long bytes;
+        private final boolean quarantined;
+        private final long elapsedNanos;
+
+        Report(int partitions, long scanned, long recovered, long bytes, boolean quarantined, long elapsedNanos) {
+            this.partitions = partitions;
+            this.scanned = scanned;
+            this.recovered = recovered;
+            this.bytes = bytes;
+            this.quarantined = quarantined;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getPartitions() {
+            return partitions;
+        }
+
+        /**
+         * @return how many names were listed in the directories entries go in, part files included.
+         */
+        public long getScanned() {
+            return scanned;
+        }
+
+        /**
+         * @return how many part files were deleted or quarantined.
+         */
+        public long getRecovered() {
+            return recovered;
+        }
+
+        /**
+         * @return the size of the part files recovered.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public boolean isQuarantined() {
+            return quarantined;
+        }
+
+        public long getElapsed(TimeUnit unit) {
+            return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %d part files (%d bytes) out of %d files in %d partitions, in %d ms",
+                    quarantined ? "quarantined" : "deleted", recovered, bytes, scanned, partitions, getElapsed(TimeUnit.MILLISECONDS));
+        }
+    }
+}
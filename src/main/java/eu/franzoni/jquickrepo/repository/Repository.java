@@ -1,15 +1,63 @@
 package eu.franzoni.jquickrepo.repository;
 
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 public interface Repository<T> {
     
     Collection<Entry<T>> loadAll();
 
+    /**
+     * Lazy counterpart of {@link #loadAll()}: entries are loaded while iterating, so only the
+     * current one needs to be kept in memory. Entries deleted while iterating are skipped.
+     */
+    Iterator<Entry<T>> iterateAll();
+
+    /**
+     * Like {@link #iterateAll()}, but entries are loaded on the given executor, keeping at most
+     * maxInFlight of them loaded or being loaded ahead of the caller. The iterator is
+     * {@link java.io.Closeable}: close it when stopping early, to cancel the loads submitted ahead;
+     * they're cancelled anyway when a load fails.
+     */
+    Iterator<Entry<T>> iterateAll(ExecutorService executor, int maxInFlight);
+
     void delete(String id);
 
+    /**
+     * Whether there's an entry with the id.
+     */
+    boolean exists(String id);
+
+    /**
+     * @return the ids of all the entries, sorted; unlike {@link #loadAll()}, no entry is read.
+     */
+    List<String> keys();
+
+    /**
+     * @return the ids starting with the prefix, sorted.
+     */
+    List<String> keys(String prefix);
+
+    /**
+     * @return the number of entries.
+     */
+    int size();
+
     T load(String id);
 
+    /**
+     * Like {@link #load(String)}, but together with the version the entry is at, to be passed to
+     * {@link #update(String, Object, long)} or {@link #compareAndSet(String, long, Object)}.
+     */
+    Entry<T> loadEntry(String id);
+
+    /**
+     * Runs whileLocking holding the write lock of the id; it must not use the repository, which
+     * may deadlock, see {@link eu.franzoni.jquickrepo.concurrency.LockProvider}.
+     */
     void modifyWhileLocking(final String id, final DoWhileLocking<T> whileLocking) throws UnknownResourceIdException;
 
     void modifyWhileLocking(final String id, final DoWhileLocking<T> whileLocking, final T missing) throws UnknownResourceIdException;
@@ -20,4 +68,42 @@ public interface Repository<T> {
 
     void update(String id, T obj);
 
+    /**
+     * Updates the entry only if it's still at the expected version, i.e. it wasn't written since
+     * it was loaded with {@link #loadEntry(String)}.
+     *
+     * @return the version the entry is at after the update.
+     * @throws VersionConflictException if the entry is at another version.
+     * @throws MissingIdException if there's no entry.
+     */
+    long update(String id, T obj, long expectedVersion);
+
+    /**
+     * Like {@link #update(String, Object, long)}, but tells about conflicts (and missing entries)
+     * by returning false; loading the entry again and retrying is then up to the caller.
+     */
+    boolean compareAndSet(String id, long expectedVersion, T obj);
+
+    /**
+     * Saves all the entries as a single batch, see {@link #apply(Batch)}.
+     */
+    void saveAll(Map<String, T> entries);
+
+    /**
+     * Saves or updates all the entries as a single batch, see {@link #apply(Batch)}.
+     */
+    void saveOrUpdateAll(Map<String, T> entries);
+
+    /**
+     * Applies all the writes of the batch while holding the locks of all its ids, which are taken
+     * in a deadlock-free order. If a check fails nothing is written; a failure while writing may
+     * leave only part of the batch applied.
+     */
+    void apply(Batch<T> batch);
+
+    /**
+     * Like {@link #apply(Batch)}, but entries are written (and serialized) on the given executor.
+     */
+    void apply(Batch<T> batch, ExecutorService executor);
+
 }
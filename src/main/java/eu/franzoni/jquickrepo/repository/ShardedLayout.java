@@ -0,0 +1,138 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Spreads the entries over {@code levels} levels of subdirectories named after bytes of the hash
+ * of the id ("3f/a0/some-id" with two levels), so that no directory gets more than 256
+ * subdirectories or about {@code entries / 256^levels} entries. Subdirectories are created when
+ * first written to.
+ *
+ * The hash only depends on the id, so that a repository can be moved between machines and JVMs.
+ */
+public class ShardedLayout extends Layout {
+
+    public static final int MAX_LEVELS = 4;
+
+    private static final String PREFIX = "sharded ";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int levels;
+
+    /**
+     * @param levels how many levels of subdirectories, 1 to {@link #MAX_LEVELS}; 2 keeps
+     * directories below a thousand entries up to about 50 million of them.
+     */
+    public ShardedLayout(int levels) {
+        if (levels < 1 || levels > MAX_LEVELS) {
+            throw new IllegalArgumentException("levels must be between 1 and " + MAX_LEVELS);
+        }
+        this.levels = levels;
+    }
+
+    public int getLevels() {
+        return this.levels;
+    }
+
+    static ShardedLayout parse(String description) {
+        if (!description.startsWith(PREFIX)) {
+            throw new IllegalArgumentException("unknown layout " + description);
+        }
+        try {
+            return new ShardedLayout(Integer.parseInt(description.substring(PREFIX.length())));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("unknown layout " + description, e);
+        }
+    }
+
+    @Override
+    Path directoryOf(Path root, String id) {
+        int hash = hash(id);
+        Path dir = root;
+        char[] name = new char[2];
+        for (int level = 0; level < this.levels; level++) {
+            int shard = (hash >>> (24 - 8 * level)) & 0xff;
+            name[0] = HEX[shard >>> 4];
+            name[1] = HEX[shard & 0xf];
+            dir = dir.resolve(new String(name));
+        }
+        return dir;
+    }
+
+    @Override
+    List<Path> partitions(Path root) throws IOException {
+        return shards(root);
+    }
+
+    @Override
+    void listIds(Path partition, Collection<String> ids) throws IOException {
+        List<Path> dirs = new ArrayList<Path>();
+        listDirectories(partition, dirs);
+        for (Path dir : dirs) {
+            Layout.listEntries(dir, ids);
+        }
+    }
+
+    @Override
+    void listDirectories(Path partition, Collection<Path> dirs) throws IOException {
+        listDirectories(partition, 1, dirs);
+    }
+
+    private void listDirectories(Path dir, int level, Collection<Path> dirs) throws IOException {
+        if (level == this.levels) {
+            dirs.add(dir);
+            return;
+        }
+        for (Path shard : shards(dir)) {
+            listDirectories(shard, level + 1, dirs);
+        }
+    }
+
+    private static List<Path> shards(Path dir) throws IOException {
+        List<Path> shards = new ArrayList<Path>();
+        DirectoryStream<Path> children = Files.newDirectoryStream(dir);
+        try {
+            for (Path child : children) {
+                if (isShardName(child.getFileName().toString()) && Files.isDirectory(child)) {
+                    shards.add(child);
+                }
+            }
+        } finally {
+            children.close();
+        }
+        return shards;
+    }
+
+    private static boolean isShardName(String name) {
+        return name.length() == 2 && isHexDigit(name.charAt(0)) && isHexDigit(name.charAt(1));
+    }
+
+    private static boolean isHexDigit(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+    }
+
+    /**
+     * String.hashCode (whose value is specified), with its bits mixed so that similar ids land
+     * in different shards.
+     */
+    private static int hash(String id) {
+        int h = id.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    @Override
+    String describe() {
+        return PREFIX + this.levels;
+    }
+}
@@ -0,0 +1,96 @@
+package eu.franzoni.jquickrepo.repository;
+
+import eu.franzoni.jquickrepo.concurrency.WhileLocked;
+import eu.franzoni.jquickrepo.metrics.Operation;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The entries of a repository as they were when the snapshot was opened: writes made afterwards
+ * aren't seen, and entries deleted afterwards are still there, so iterating gives a consistent
+ * picture of all the ids at once (but for a batch being applied while the snapshot was opened,
+ * which may be seen in part). Reads take the read lock of one id at a time, like any load.
+ *
+ * Superseded versions are kept for as long as an open snapshot may need them; close it when done.
+ *
+ * Only the writes of the repository the snapshot was opened from are tracked: entries written
+ * meanwhile through another repository on the same directory, or by another process, aren't.
+ */
+public class Snapshot<T> implements Closeable {
+
+    private final ByteArrayRepo repo;
+    private final long version;
+    private final EntryFormat<T> format;
+    private volatile boolean closed;
+    private final EntryLoader<T> loader = new EntryLoader<T>() {
+        @Override
+        public T load(String id) {
+            verifyOpen();
+            // timed as a whole by loadAll, like the repository's own.
+            return repo.doLoadAsOf(id, version, format);
+        }
+    };
+
+    Snapshot(ByteArrayRepo repo, long version, EntryFormat<T> format) {
+        this.repo = repo;
+        this.version = version;
+        this.format = format;
+    }
+
+    /**
+     * @return the version the snapshot shows the repository at: every entry written at or before it.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public T load(String id) throws UnknownResourceIdException {
+        verifyOpen();
+        return this.repo.loadAsOf(id, this.version, this.format);
+    }
+
+    /**
+     * @return the ids of the entries in the snapshot, sorted.
+     */
+    public List<String> keys() {
+        verifyOpen();
+        return this.repo.idsAsOf(this.version);
+    }
+
+    public Iterator<Entry<T>> iterateAll() {
+        return new LazyEntryIterator<T>(keys().iterator(), this.loader);
+    }
+
+    public Collection<Entry<T>> loadAll() {
+        return this.repo.timed(Operation.LOAD_ALL, new WhileLocked<Collection<Entry<T>>>() {
+            @Override
+            public Collection<Entry<T>> execute() {
+                List<Entry<T>> entries = new ArrayList<Entry<T>>();
+                Iterator<Entry<T>> iterator = iterateAll();
+                while (iterator.hasNext()) {
+                    entries.add(iterator.next());
+                }
+                return entries;
+            }
+        });
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.repo.release(this.version);
+    }
+
+    private void verifyOpen() {
+        if (this.closed) {
+            throw new IllegalStateException("the snapshot is closed");
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package eu.franzoni.jquickrepo.repository;
+
+/**
+ * An entry was written by someone else since the version the caller expected was loaded.
+ */
+public class VersionConflictException extends RuntimeException {
+
+    private final long expectedVersion;
+    private final long actualVersion;
+
+    public VersionConflictException(String id, long expectedVersion, long actualVersion) {
+        super("Resource with id '" + id + "' is at version " + actualVersion + ", not " + expectedVersion + ".");
+        this.expectedVersion = expectedVersion;
+        this.actualVersion = actualVersion;
+    }
+
+    public long getExpectedVersion() {
+        return expectedVersion;
+    }
+
+    public long getActualVersion() {
+        return actualVersion;
+    }
+}
@@ -0,0 +1,265 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The superseded versions of the entries of a {@link ByteArrayRepo}: before an entry is replaced
+ * its file is hard linked to {@code .versions/<version>.<id>}, which costs no copy, and a delete
+ * leaves a tombstone in memory.
+ *
+ * For each id the newest {@code retained} versions are kept, plus those which an open snapshot
+ * still needs (the newest one not newer than the snapshot); the history of a deleted entry is
+ * kept only as long as a snapshot needs it. With no retention and no open snapshot nothing is
+ * linked at all. The history isn't made durable: a crash may lose some of it.
+ *
+ * Every change to the history of an id must happen while holding the id write lock, reads while
+ * holding at least the read lock.
+ */
+class VersionHistory {
+
+    static final String DIRECTORY = ".versions";
+
+    private static final Boolean FILE = Boolean.TRUE;
+    private static final Boolean TOMBSTONE = Boolean.FALSE;
+
+    private final Path dir;
+    private final int retained;
+    private final VersionSequence sequence;
+    // for each id, whether each of its superseded versions has a file or is a tombstone.
+    private final ConcurrentMap<String, NavigableMap<Long, Boolean>> versions = new ConcurrentHashMap<String, NavigableMap<Long, Boolean>>();
+    // the versions of the open snapshots, with how many are open at each; guarded by this.
+    private final NavigableMap<Long, Integer> snapshots = new TreeMap<Long, Integer>();
+    private volatile boolean hardLinks = true;
+
+    private VersionHistory(Path root, int retained, VersionSequence sequence) {
+        this.dir = root.resolve(DIRECTORY);
+        this.retained = retained;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return the history left in the directory, trimmed to the given retention; the versions of
+     * entries which are gone end with a tombstone at the base of the sequence.
+     */
+    static VersionHistory open(Path root, int retained, VersionSequence sequence, IdIndex index) throws IOException {
+        VersionHistory history = new VersionHistory(root, retained, sequence);
+        DirectoryStream<Path> files;
+        try {
+            files = Files.newDirectoryStream(history.dir);
+        } catch (NoSuchFileException e) {
+            return history;
+        }
+        try {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int dot = name.indexOf('.');
+                long version;
+                try {
+                    version = Long.parseLong(name.substring(0, Math.max(dot, 0)));
+                } catch (NumberFormatException e) {
+                    // not a version.
+                    continue;
+                }
+                history.versionsOf(name.substring(dot + 1)).put(version, FILE);
+            }
+        } finally {
+            files.close();
+        }
+        for (Map.Entry<String, NavigableMap<Long, Boolean>> entry : history.versions.entrySet()) {
+            long current = index.version(entry.getKey());
+            if (current == Entry.NO_VERSION) {
+                entry.getValue().put(sequence.base(), TOMBSTONE);
+            }
+            history.trim(entry.getKey(), current);
+        }
+        return history;
+    }
+
+    /**
+     * Whether superseded versions must be kept; a snapshot opened after this returned false is
+     * newer than any version handed out before.
+     */
+    synchronized boolean enabled() {
+        return this.retained > 0 || !this.snapshots.isEmpty();
+    }
+
+    synchronized boolean snapshotsOpen() {
+        return !this.snapshots.isEmpty();
+    }
+
+    /**
+     * @return the version of the new snapshot, which stays pinned until {@link #release(long)}.
+     */
+    synchronized long pin() {
+        long version = this.sequence.current();
+        Integer open = this.snapshots.get(version);
+        this.snapshots.put(version, open == null ? 1 : open + 1);
+        return version;
+    }
+
+    synchronized void release(long version) {
+        Integer open = this.snapshots.get(version);
+        if (open == null) {
+            return;
+        }
+        if (open == 1) {
+            this.snapshots.remove(version);
+        } else {
+            this.snapshots.put(version, open - 1);
+        }
+    }
+
+    private synchronized List<Long> pinned() {
+        return new ArrayList<Long>(this.snapshots.keySet());
+    }
+
+    /**
+     * Keeps the file of the entry as the given version, before it's replaced or deleted.
+     */
+    void preserve(String id, long version, Path entry) throws IOException {
+        Path file = fileOf(id, version);
+        try {
+            link(file, entry);
+        } catch (NoSuchFileException e) {
+            if (!Files.exists(entry)) {
+                // nothing to keep.
+                return;
+            }
+            Files.createDirectories(this.dir);
+            link(file, entry);
+        } catch (FileAlreadyExistsException e) {
+            // kept by a write which failed afterwards.
+        }
+        versionsOf(id).put(version, FILE);
+    }
+
+    private void link(Path file, Path entry) throws IOException {
+        if (this.hardLinks) {
+            try {
+                Files.createLink(file, entry);
+                return;
+            } catch (UnsupportedOperationException e) {
+                this.hardLinks = false;
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (NoSuchFileException e) {
+                throw e;
+            } catch (FileSystemException e) {
+                this.hardLinks = false;
+            }
+        }
+        Files.copy(entry, file);
+    }
+
+    void deleted(String id, long version) {
+        versionsOf(id).put(version, TOMBSTONE);
+    }
+
+    /**
+     * @return the file of the id at exactly the given version, null if it's not kept.
+     */
+    Path fileAt(String id, long version) {
+        NavigableMap<Long, Boolean> kept = this.versions.get(id);
+        return kept != null && FILE.equals(kept.get(version)) ? fileOf(id, version) : null;
+    }
+
+    /**
+     * @return the file of the id as it was at the given version, null if it didn't exist then (or
+     * if that's not kept).
+     */
+    Path fileAsOf(String id, long version) {
+        NavigableMap<Long, Boolean> kept = this.versions.get(id);
+        if (kept == null) {
+            return null;
+        }
+        Map.Entry<Long, Boolean> floor = kept.floorEntry(version);
+        return floor != null && FILE.equals(floor.getValue()) ? fileOf(id, floor.getKey()) : null;
+    }
+
+    Set<String> ids() {
+        return new HashSet<String>(this.versions.keySet());
+    }
+
+    /**
+     * Drops the versions of the id which are neither retained nor needed by a snapshot.
+     *
+     * @param current the version of the entry, {@link Entry#NO_VERSION} if it's gone.
+     */
+    void trim(String id, long current) throws IOException {
+        NavigableMap<Long, Boolean> kept = this.versions.get(id);
+        if (kept == null) {
+            return;
+        }
+        Set<Long> needed = new HashSet<Long>();
+        if (current != Entry.NO_VERSION) {
+            int files = 0;
+            for (Map.Entry<Long, Boolean> version : kept.descendingMap().entrySet()) {
+                if (files == this.retained) {
+                    break;
+                }
+                if (FILE.equals(version.getValue())) {
+                    needed.add(version.getKey());
+                    files++;
+                }
+            }
+        }
+        for (long snapshot : pinned()) {
+            if (current != Entry.NO_VERSION && current <= snapshot) {
+                // reads the entry itself.
+                continue;
+            }
+            Long floor = kept.floorKey(snapshot);
+            if (floor != null) {
+                needed.add(floor);
+            }
+        }
+
+        Iterator<Map.Entry<Long, Boolean>> versions = kept.entrySet().iterator();
+        while (versions.hasNext()) {
+            Map.Entry<Long, Boolean> version = versions.next();
+            if (needed.contains(version.getKey())) {
+                continue;
+            }
+            if (FILE.equals(version.getValue())) {
+                Files.deleteIfExists(fileOf(id, version.getKey()));
+            }
+            versions.remove();
+        }
+        if (kept.isEmpty()) {
+            this.versions.remove(id);
+        }
+    }
+
+    private NavigableMap<Long, Boolean> versionsOf(String id) {
+        NavigableMap<Long, Boolean> kept = this.versions.get(id);
+        if (kept == null) {
+            kept = new ConcurrentSkipListMap<Long, Boolean>();
+            NavigableMap<Long, Boolean> existing = this.versions.putIfAbsent(id, kept);
+            if (existing != null) {
+                kept = existing;
+            }
+        }
+        return kept;
+    }
+
+    private Path fileOf(String id, long version) {
+        return this.dir.resolve(version + "." + id);
+    }
+}
@@ -0,0 +1,109 @@
+package eu.franzoni.jquickrepo.repository;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Hands out the versions of the entries of a repository: increasing numbers, never given twice,
+ * not even across restarts or crashes.
+ *
+ * The numbers are reserved in blocks, recording the end of the block in a file (synced) before
+ * handing out any number of it; after a restart numbering starts again from the end of the last
+ * block, which is above anything given before. Blocks are reserved under the {@link DirectoryLock},
+ * starting from the end of the last block anyone reserved: sequences of repositories open on the
+ * same directory at once never hand out the same number either.
+ */
+class VersionSequence {
+
+    static final String FILE = ".sequence";
+
+    private static final long BLOCK = 1 << 16;
+
+    private final Path root;
+    private final Path file;
+    private final long base;
+    private long next;
+    private long limit;
+
+    VersionSequence(Path root) throws IOException {
+        this.root = root;
+        this.file = root.resolve(FILE);
+        this.base = reserved();
+        this.next = this.base + 1;
+        this.limit = this.next;
+    }
+
+    /**
+     * @return a version below every version handed out since opening, and above every one handed
+     * out before.
+     */
+    long base() {
+        return this.base;
+    }
+
+    /**
+     * @return the last version handed out, or the base if none was.
+     */
+    synchronized long current() {
+        return this.next - 1;
+    }
+
+    synchronized long next() {
+        if (this.next == this.limit) {
+            try {
+                reserve();
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("could not update %s", this.file.toAbsolutePath()), e);
+            }
+        }
+        return this.next++;
+    }
+
+    /**
+     * @return the end of the last block reserved.
+     */
+    private long reserved() throws IOException {
+        try {
+            return ByteBuffer.wrap(Files.readAllBytes(this.file)).getLong();
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    private void reserve() throws IOException {
+        DirectoryLock.execute(this.root, new DirectoryLock.Locked<Void>() {
+            @Override
+            public Void execute() throws IOException {
+                // at or above our own last block, which nobody can have taken back.
+                long start = reserved();
+                write(start + BLOCK);
+                next = start + 1;
+                limit = start + BLOCK + 1;
+                return null;
+            }
+        });
+    }
+
+    private void write(long reserved) throws IOException {
+        Path part = this.file.resolveSibling(FILE + ".part");
+        FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            buffer.putLong(0, reserved);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        Files.move(part, this.file, StandardCopyOption.ATOMIC_MOVE);
+        Committer.syncDirectory(this.file.getParent());
+    }
+}
@@ -0,0 +1,8 @@
+package eu.franzoni.jquickrepo.repository;
+
+/**
+ * Tells how much room a cached value takes, in whatever unit the cache bound is expressed in.
+ */
+public interface Weigher<T> {
+    public long weigh(String id, T value);
+}
@@ -0,0 +1,622 @@
+package eu.franzoni.jquickrepo.repository;
+
+import eu.franzoni.jquickrepo.concurrency.LockProvider;
+import eu.franzoni.jquickrepo.concurrency.ScopedMultipleWriteLock;
+import eu.franzoni.jquickrepo.concurrency.ScopedReadWriteLock;
+import eu.franzoni.jquickrepo.concurrency.StripedLockProvider;
+import eu.franzoni.jquickrepo.concurrency.WhileLocked;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers writes in memory and persists them to another repository on a background thread, so
+ * that an id written many times in a row costs a single write: each flush persists only the last
+ * value buffered for each id.
+ *
+ * Dirty ids are persisted once the oldest of them has waited for the flush interval, or earlier
+ * when half of maxDirty ids are dirty; writers of further ids wait while maxDirty ids are dirty.
+ * After a flush which failed to persist some ids, the next one waits for a delay doubling with
+ * each failure, up to the flush interval, however many ids are dirty.
+ * Writes made since the last flush are lost if the process dies, and ids aren't necessarily
+ * persisted in the order they were written: use {@link #flush()} for a point after which all the
+ * writes made before it are persisted, and {@link #close()} before dropping the repository.
+ *
+ * Loads see buffered values, and write checks (e.g. duplicate ids on save) take them into
+ * account; {@link #loadEntry(String)} and versioned updates, which need versions of what's
+ * stored, persist the id first, while {@link #loadAll()} and {@link #iterateAll()} flush
+ * everything. Writes made straight to the wrapped repository aren't seen while the id is dirty,
+ * and are then overwritten.
+ *
+ * Without a {@link Copier}, buffered values are shared with loads until written: don't modify
+ * what is saved or loaded, and {@link #modifyWhileLocking(String, DoWhileLocking)} persists the id
+ * before loading it, as it hands what it loads over to be modified. With one, loads get copies of
+ * the buffered values, as does modifyWhileLocking, which then keeps the id buffered.
+ */
+public class WriteBehindRepository<T> implements Repository<T>, Closeable {
+
+    private static final long MIN_RETRY_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Repository<T> delegate;
+    private final Copier<T> copier;
+    private final int maxDirty;
+    private final long flushIntervalNanos;
+    private final LockProvider lockProvider = new StripedLockProvider();
+    // held while persisting an id, so that concurrent flushes can't persist an older write after a
+    // newer one; writers don't take it, or they could keep a hot id from ever being flushed.
+    private final LockProvider flushLockProvider = new StripedLockProvider();
+    // the last buffered write of each dirty id; replaced only under the id lock.
+    private final ConcurrentMap<String, Pending<T>> dirty = new ConcurrentHashMap<String, Pending<T>>();
+    // what the flusher and the writers waiting for room wait on; guards firstDirtyNanos and the
+    // retry fields.
+    private final Object signal = new Object();
+    // when the oldest write not yet being flushed was buffered, 0 for none.
+    private long firstDirtyNanos;
+    // how long to wait after the last flush, which failed; 0 if it didn't.
+    private long retryDelayNanos;
+    private long retryNanos;
+    private volatile boolean closed;
+    private final AtomicLong bufferedWrites = new AtomicLong();
+    private final AtomicLong persistedWrites = new AtomicLong();
+    private final Thread thread;
+
+    public WriteBehindRepository(Repository<T> delegate, int maxDirty, long flushInterval, TimeUnit unit) {
+        this(delegate, maxDirty, flushInterval, unit, null);
+    }
+
+    /**
+     * @param copier gives each load its own copy of a buffered value, null to share it
+     */
+    public WriteBehindRepository(Repository<T> delegate, int maxDirty, long flushInterval, TimeUnit unit, Copier<T> copier) {
+        if (maxDirty < 1) {
+            throw new IllegalArgumentException("maxDirty must be at least 1");
+        }
+        if (flushInterval < 0) {
+            throw new IllegalArgumentException("flush interval must not be negative");
+        }
+        this.delegate = delegate;
+        this.copier = copier;
+        this.maxDirty = maxDirty;
+        this.flushIntervalNanos = unit.toNanos(flushInterval);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (awaitFlushDue()) {
+                    flushDirty(false);
+                }
+            }
+        }, "jquickrepo-write-behind");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public T load(String id) {
+        Pending<T> pending = this.dirty.get(id);
+        if (pending == null) {
+            // a flushed write is removed only once persisted.
+            return this.delegate.load(id);
+        }
+        if (pending.deleted) {
+            throw new UnknownResourceIdException(id);
+        }
+        return this.copier != null ? this.copier.copy(pending.value) : pending.value;
+    }
+
+    /**
+     * Loads what whileLocking may modify: never the buffered value itself, which loads may be
+     * sharing; the caller must hold the id lock.
+     */
+    private T loadToModify(String id) {
+        if (this.copier == null) {
+            // clean afterwards, as we hold the id lock.
+            persist(id);
+        }
+        return load(id);
+    }
+
+    @Override
+    public Entry<T> loadEntry(final String id) {
+        return executeWithWriteLock(id, new WhileLocked<Entry<T>>() {
+            @Override
+            public Entry<T> execute() {
+                persist(id);
+                return delegate.loadEntry(id);
+            }
+        });
+    }
+
+    @Override
+    public Collection<Entry<T>> loadAll() {
+        flush();
+        return this.delegate.loadAll();
+    }
+
+    @Override
+    public Iterator<Entry<T>> iterateAll() {
+        flush();
+        return this.delegate.iterateAll();
+    }
+
+    @Override
+    public Iterator<Entry<T>> iterateAll(ExecutorService executor, int maxInFlight) {
+        flush();
+        return this.delegate.iterateAll(executor, maxInFlight);
+    }
+
+    @Override
+    public boolean exists(String id) {
+        Pending<T> pending = this.dirty.get(id);
+        if (pending == null) {
+            return this.delegate.exists(id);
+        }
+        return !pending.deleted;
+    }
+
+    @Override
+    public List<String> keys() {
+        return merge(new HashMap<String, Pending<T>>(this.dirty), this.delegate.keys());
+    }
+
+    @Override
+    public List<String> keys(String prefix) {
+        Map<String, Pending<T>> buffered = new HashMap<String, Pending<T>>();
+        for (Map.Entry<String, Pending<T>> entry : this.dirty.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                buffered.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return merge(buffered, this.delegate.keys(prefix));
+    }
+
+    /**
+     * @param buffered taken before the stored ids: an id flushed meanwhile is then in both.
+     */
+    private static <T> List<String> merge(Map<String, Pending<T>> buffered, List<String> stored) {
+        TreeSet<String> ids = new TreeSet<String>(stored);
+        for (Map.Entry<String, Pending<T>> entry : buffered.entrySet()) {
+            if (entry.getValue().deleted) {
+                ids.remove(entry.getKey());
+            } else {
+                ids.add(entry.getKey());
+            }
+        }
+        return new ArrayList<String>(ids);
+    }
+
+    @Override
+    public int size() {
+        if (this.dirty.isEmpty()) {
+            return this.delegate.size();
+        }
+        return keys().size();
+    }
+
+    @Override
+    public void save(final String id, final T obj) {
+        write(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                if (existsNow(id)) {
+                    throw new DuplicateResourceIdException(id);
+                }
+                buffer(id, new Pending<T>(obj, false));
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void saveOrUpdate(final String id, final T obj) {
+        write(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                // validates the id now rather than when flushing.
+                existsNow(id);
+                buffer(id, new Pending<T>(obj, false));
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void update(final String id, final T obj) {
+        write(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                if (!existsNow(id)) {
+                    throw new MissingIdException(id);
+                }
+                buffer(id, new Pending<T>(obj, false));
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void delete(final String id) {
+        write(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                if (!existsNow(id)) {
+                    throw new UnknownResourceIdException(id);
+                }
+                buffer(id, new Pending<T>(null, true));
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public long update(final String id, final T obj, final long expectedVersion) {
+        return executeWithWriteLock(id, new WhileLocked<Long>() {
+            @Override
+            public Long execute() {
+                persist(id);
+                return delegate.update(id, obj, expectedVersion);
+            }
+        });
+    }
+
+    @Override
+    public boolean compareAndSet(final String id, final long expectedVersion, final T obj) {
+        return executeWithWriteLock(id, new WhileLocked<Boolean>() {
+            @Override
+            public Boolean execute() {
+                persist(id);
+                return delegate.compareAndSet(id, expectedVersion, obj);
+            }
+        });
+    }
+
+    @Override
+    public void modifyWhileLocking(final String id, final DoWhileLocking<T> whileLocking) throws UnknownResourceIdException {
+        write(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                buffer(id, new Pending<T>(whileLocking.execute(loadToModify(id)), false));
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Note that, when the id is missing, whileLocking gets the missing object itself, not a copy.
+     */
+    @Override
+    public void modifyWhileLocking(final String id, final DoWhileLocking<T> whileLocking, final T missing) throws UnknownResourceIdException {
+        write(id, new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                T data;
+                try {
+                    data = loadToModify(id);
+                } catch (UnknownResourceIdException e) {
+                    data = missing;
+                }
+                buffer(id, new Pending<T>(whileLocking.execute(data), false));
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void saveAll(Map<String, T> entries) {
+        apply(new Batch<T>().saveAll(entries));
+    }
+
+    @Override
+    public void saveOrUpdateAll(Map<String, T> entries) {
+        apply(new Batch<T>().saveOrUpdateAll(entries));
+    }
+
+    /**
+     * Checks the whole batch and buffers it; once buffered, its writes are persisted like any
+     * other, not as a batch.
+     */
+    @Override
+    public void apply(final Batch<T> batch) {
+        awaitRoom(null);
+        ScopedMultipleWriteLock<Void> scopedLock = new ScopedMultipleWriteLock<Void>(lockProvider.provideLocks(batch.getIds()));
+        scopedLock.executeWithWriteLocks(new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                for (Batch.Write<T> write : batch.getWrites()) {
+                    verifyPrecondition(write);
+                }
+                for (Batch.Write<T> write : batch.getWrites()) {
+                    buffer(write.getId(), new Pending<T>(write.getValue(), write.getOperation() == Batch.Operation.DELETE));
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * The same as {@link #apply(Batch)}: buffering needs no executor.
+     */
+    @Override
+    public void apply(Batch<T> batch, ExecutorService executor) {
+        apply(batch);
+    }
+
+    private void verifyPrecondition(Batch.Write<T> write) {
+        boolean exists = existsNow(write.getId());
+        switch (write.getOperation()) {
+            case SAVE:
+                if (exists) {
+                    throw new DuplicateResourceIdException(write.getId());
+                }
+                break;
+            case UPDATE:
+                if (!exists) {
+                    throw new MissingIdException(write.getId());
+                }
+                break;
+            case DELETE:
+                if (!exists) {
+                    throw new UnknownResourceIdException(write.getId());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Persists every write buffered before the call, on the calling thread.
+     *
+     * @throws RuntimeException the first failure persisting a write, after trying all of them;
+     * the writes which failed stay buffered.
+     */
+    public void flush() {
+        flushDirty(true);
+    }
+
+    /**
+     * Stops the background flusher and persists what's still buffered; the wrapped repository is
+     * left open. Later writes fail, loads keep working.
+     */
+    @Override
+    public void close() {
+        synchronized (this.signal) {
+            this.closed = true;
+            this.signal.notifyAll();
+        }
+        boolean interrupted = false;
+        while (this.thread.isAlive()) {
+            try {
+                this.thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * @return the number of ids with buffered writes not yet persisted.
+     */
+    public int getDirtyCount() {
+        return this.dirty.size();
+    }
+
+    /**
+     * @return the number of writes buffered so far; those not persisted were overwritten by later
+     * writes to the same id, see {@link #getPersistedWriteCount()}.
+     */
+    public long getBufferedWriteCount() {
+        return this.bufferedWrites.get();
+    }
+
+    public long getPersistedWriteCount() {
+        return this.persistedWrites.get();
+    }
+
+    private boolean existsNow(String id) {
+        Pending<T> pending = this.dirty.get(id);
+        if (pending == null) {
+            return this.delegate.exists(id);
+        }
+        return !pending.deleted;
+    }
+
+    /**
+     * Runs a write under the id lock, once there's room for the id in the buffer.
+     */
+    private void write(String id, WhileLocked<Void> write) {
+        awaitRoom(id);
+        executeWithWriteLock(id, write);
+    }
+
+    private <X> X executeWithWriteLock(String id, WhileLocked<X> whileLocked) {
+        ScopedReadWriteLock<X> scopedLock = new ScopedReadWriteLock<X>(lockProvider.provideLock(id));
+        return scopedLock.executeWithWriteLock(whileLocked);
+    }
+
+    /**
+     * Waits, without holding any id lock, while the buffer is full, unless id is dirty already
+     * and needs no more room. Writers waiting together may then overfill it a bit.
+     */
+    private void awaitRoom(String id) {
+        if (this.dirty.size() < this.maxDirty || (id != null && this.dirty.containsKey(id))) {
+            return;
+        }
+        boolean interrupted = false;
+        synchronized (this.signal) {
+            // no need to wake the flusher: a full buffer is past the flush threshold already.
+            while (!this.closed && this.dirty.size() >= this.maxDirty && (id == null || !this.dirty.containsKey(id))) {
+                try {
+                    this.signal.wait();
+                } catch (InterruptedException e) {
+                    // the write would be lost otherwise.
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replaces what's buffered for the id; the caller must hold the id lock.
+     */
+    private void buffer(String id, Pending<T> pending) {
+        Pending<T> replaced = this.dirty.put(id, pending);
+        if (this.closed) {
+            // close() may be done flushing already: the write fails instead of being lost.
+            if (replaced == null) {
+                this.dirty.remove(id, pending);
+            } else {
+                this.dirty.replace(id, pending, replaced);
+            }
+            throw new IllegalStateException("repository was closed");
+        }
+        this.bufferedWrites.incrementAndGet();
+        if (replaced != null) {
+            // coalesced: the flusher knows about the id already.
+            return;
+        }
+        synchronized (this.signal) {
+            if (this.firstDirtyNanos == 0) {
+                this.firstDirtyNanos = System.nanoTime();
+                // the flusher may be waiting with no deadline.
+                this.signal.notifyAll();
+            } else if (this.dirty.size() >= flushThreshold()) {
+                this.signal.notifyAll();
+            }
+        }
+    }
+
+    private int flushThreshold() {
+        return Math.max(1, this.maxDirty / 2);
+    }
+
+    /**
+     * Writes what's buffered for the id to the wrapped repository. Writers aren't held up
+     * meanwhile: if one buffers a newer write, the id stays dirty; callers holding the id lock
+     * know it's clean afterwards.
+     */
+    private void persist(final String id) {
+        ScopedReadWriteLock<Void> scopedLock = new ScopedReadWriteLock<Void>(flushLockProvider.provideLock(id));
+        scopedLock.executeWithWriteLock(new WhileLocked<Void>() {
+            @Override
+            public Void execute() {
+                Pending<T> pending = dirty.get(id);
+                if (pending == null) {
+                    return null;
+                }
+                if (!pending.deleted) {
+                    delegate.saveOrUpdate(id, pending.value);
+                } else if (delegate.exists(id)) {
+                    // unless saved and deleted before ever being persisted.
+                    delegate.delete(id);
+                }
+                persistedWrites.incrementAndGet();
+                // only now: until then, loads must be served the buffered value.
+                if (dirty.remove(id, pending)) {
+                    synchronized (signal) {
+                        // there's room now.
+                        signal.notifyAll();
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    private void flushDirty(boolean rethrow) {
+        long started = System.nanoTime();
+        synchronized (this.signal) {
+            this.firstDirtyNanos = 0;
+        }
+
+        RuntimeException failure = null;
+        for (String id : new ArrayList<String>(this.dirty.keySet())) {
+            try {
+                persist(id);
+            } catch (RuntimeException e) {
+                // stays dirty, to be retried by the next flush.
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        synchronized (this.signal) {
+            if (!this.dirty.isEmpty() && this.firstDirtyNanos == 0) {
+                // what failed waited since before we started, at least.
+                this.firstDirtyNanos = started;
+            }
+            if (failure == null) {
+                this.retryDelayNanos = 0;
+            } else {
+                // else a buffer kept full by what fails would be flushed again at once, forever.
+                long maxDelay = Math.max(MIN_RETRY_DELAY_NANOS, this.flushIntervalNanos);
+                this.retryDelayNanos = this.retryDelayNanos == 0 ? MIN_RETRY_DELAY_NANOS : Math.min(2 * this.retryDelayNanos, maxDelay);
+                this.retryNanos = System.nanoTime() + this.retryDelayNanos;
+            }
+        }
+        if (rethrow && failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return whether to flush, false once closed.
+     */
+    private boolean awaitFlushDue() {
+        synchronized (this.signal) {
+            while (!this.closed) {
+                long now = System.nanoTime();
+                long remaining = 0;
+                if (this.retryDelayNanos != 0 && this.retryNanos - now > 0) {
+                    remaining = this.retryNanos - now;
+                } else if (this.dirty.size() >= flushThreshold()) {
+                    return true;
+                } else if (this.firstDirtyNanos != 0) {
+                    remaining = this.firstDirtyNanos + this.flushIntervalNanos - now;
+                    if (remaining <= 0) {
+                        return true;
+                    }
+                }
+                try {
+                    if (remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this.signal, remaining);
+                    } else {
+                        this.signal.wait();
+                    }
+                } catch (InterruptedException e) {
+                    // only close() stops this thread.
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Pending<T> {
+
+        private final T value;
+        private final boolean deleted;
+
+        Pending(T value, boolean deleted) {
+            this.value = value;
+            this.deleted = deleted;
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package eu.franzoni.jquickrepo.repository;
+
+interface WriteListener {
+
+    public void written(String id);
+}
@@ -0,0 +1,33 @@
+package eu.franzoni.jquickrepo.serialization;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Implements the byte array variants on top of the stream ones.
+ */
+public abstract class AbstractSerializer<T> implements Serializer<T> {
+
+    @Override
+    public byte[] serialize(T obj) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            serialize(obj, out);
+        } catch (IOException e) {
+            // can't happen writing to memory.
+            throw new SerializationException("could not serialize", e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public T deserialize(byte[] data) {
+        try {
+            return deserialize(new ByteArrayInputStream(data));
+        } catch (IOException e) {
+            // truncated data, most likely.
+            throw new SerializationException("could not deserialize", e);
+        }
+    }
+}
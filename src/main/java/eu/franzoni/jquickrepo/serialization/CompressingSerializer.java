@@ -0,0 +1,172 @@
+package eu.franzoni.jquickrepo.serialization;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+
+/**
+ * Compresses what another serializer produces, e.g. to store XML entries in a fraction of the
+ * space (and read them with a fraction of the I/O), at some CPU cost.
+ *
+ * Data smaller than the threshold, or which doesn't get smaller, is written as it is. Compressed
+ * data starts with a header naming the codec, so that reading doesn't depend on how it was
+ * written: entries written before compression was enabled, or with another codec, stay readable.
+ * Entries compressed with a deflate dictionary can only be read with the same dictionary.
+ */
+public class CompressingSerializer<T> extends AbstractSerializer<T> {
+
+    public static final int DEFAULT_THRESHOLD = 256;
+    public static final int DEFAULT_MAX_LENGTH = 256 << 20;
+
+    // neither valid UTF-8 nor the start of a Java serialization stream: XML and Java serialized
+    // entries written before compression was enabled can't be taken for compressed ones.
+    private static final byte[] MAGIC = {(byte) 0x8f, 'J', 'Q', 'Z'};
+    private static final byte STORED = 0;
+
+    private final Serializer<T> serializer;
+    private final CompressionCodec codec;
+    private final int threshold;
+    private final int maxLength;
+
+    /**
+     * Deflate, for data of at least {@link #DEFAULT_THRESHOLD} bytes.
+     */
+    public CompressingSerializer(Serializer<T> serializer) {
+        this(serializer, CompressionCodec.deflate(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold data smaller than this many bytes isn't compressed
+     */
+    public CompressingSerializer(Serializer<T> serializer, CompressionCodec codec, int threshold) {
+        this(serializer, codec, threshold, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param maxLength data longer than this many bytes isn't compressed, and headers claiming
+     * more are refused as corrupt rather than trusted with an allocation;
+     * {@link #DEFAULT_MAX_LENGTH} by default.
+     */
+    public CompressingSerializer(Serializer<T> serializer, CompressionCodec codec, int threshold, int maxLength) {
+        if (maxLength < 0) {
+            throw new IllegalArgumentException("max length must not be negative");
+        }
+        this.serializer = serializer;
+        this.codec = codec;
+        this.threshold = threshold;
+        this.maxLength = maxLength;
+    }
+
+    @Override
+    public void serialize(T obj, OutputStream out) throws IOException {
+        ExposedByteArrayOutputStream serialized = new ExposedByteArrayOutputStream();
+        this.serializer.serialize(obj, serialized);
+        byte[] data = serialized.buffer();
+        int length = serialized.size();
+
+        byte[] compressed = length >= this.threshold && length <= this.maxLength ? this.codec.compress(data, length) : null;
+        if (compressed != null) {
+            writeHeader(out, this.codec.id(), length, compressed.length);
+            out.write(compressed);
+        } else if (startsWithMagic(data, length)) {
+            // would be taken for a header.
+            if (length > this.maxLength) {
+                throw new SerializationException(String.format("%d bytes starting like a compression header, more than the %d allowed", length, this.maxLength));
+            }
+            writeHeader(out, STORED, length, length);
+            out.write(data, 0, length);
+        } else {
+            out.write(data, 0, length);
+        }
+    }
+
+    @Override
+    public T deserialize(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, MAGIC.length);
+        byte[] magic = new byte[MAGIC.length];
+        int read = 0;
+        while (read < magic.length) {
+            int n = pushback.read(magic, read, magic.length - read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        if (!startsWithMagic(magic, read)) {
+            pushback.unread(magic, 0, read);
+            return this.serializer.deserialize(pushback);
+        }
+
+        DataInputStream header = new DataInputStream(pushback);
+        byte codecId;
+        int length;
+        byte[] compressed;
+        try {
+            codecId = header.readByte();
+            length = header.readInt();
+            int compressedLength = header.readInt();
+            // compressed data is never longer than the uncompressed one.
+            if (length < 0 || length > this.maxLength || compressedLength < 0 || compressedLength > length) {
+                throw new SerializationException(String.format("corrupt compression header: length %d, compressed length %d", length, compressedLength));
+            }
+            compressed = new byte[compressedLength];
+            header.readFully(compressed);
+        } catch (EOFException e) {
+            throw new SerializationException("truncated compressed data", e);
+        }
+        byte[] data = codecId == STORED ? compressed : codecFor(codecId).decompress(compressed, 0, compressed.length, length);
+        return this.serializer.deserialize(new ByteArrayInputStream(data));
+    }
+
+    private CompressionCodec codecFor(byte id) {
+        if (id == this.codec.id()) {
+            // it may have a dictionary.
+            return this.codec;
+        }
+        switch (id) {
+            case DeflateCodec.ID:
+                return CompressionCodec.deflate();
+            case LzfCodec.ID:
+                return CompressionCodec.lzf();
+            default:
+                throw new SerializationException("unknown compression codec " + id);
+        }
+    }
+
+    private static void writeHeader(OutputStream out, byte codecId, int length, int compressedLength) throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+        header.write(MAGIC);
+        header.writeByte(codecId);
+        header.writeInt(length);
+        header.writeInt(compressedLength);
+        // not flushed: DataOutputStream doesn't buffer.
+    }
+
+    private static boolean startsWithMagic(byte[] data, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives access to the buffer, saving the copy toByteArray() makes.
+     */
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        byte[] buffer() {
+            return this.buf;
+        }
+    }
+}
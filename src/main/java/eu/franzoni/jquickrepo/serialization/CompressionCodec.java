@@ -0,0 +1,56 @@
+package eu.franzoni.jquickrepo.serialization;
+
+import java.util.zip.Deflater;
+
+/**
+ * A compression algorithm for {@link CompressingSerializer}. Each codec has an id, written in
+ * front of the data it compressed, so that entries written with different codecs can be read
+ * back by the same serializer.
+ */
+public abstract class CompressionCodec {
+
+    /**
+     * Deflate (zlib) at the default level: the better ratio, at a few times the CPU cost of
+     * {@link #lzf()}.
+     */
+    public static CompressionCodec deflate() {
+        return new DeflateCodec(Deflater.DEFAULT_COMPRESSION, null);
+    }
+
+    /**
+     * @param level from 1 (fastest) to 9 (smallest)
+     * @param dictionary strings which are likely to appear in the data, the most common last;
+     * small entries compress far better with one (e.g. a typical XML entry), but it must never
+     * change for as long as entries compressed with it exist. Null for none.
+     */
+    public static CompressionCodec deflate(int level, byte[] dictionary) {
+        return new DeflateCodec(level, dictionary == null ? null : dictionary.clone());
+    }
+
+    /**
+     * LZF, a byte oriented LZ77 variant: a lower ratio than deflate, but compressing and
+     * decompressing run close to memory speed.
+     */
+    public static CompressionCodec lzf() {
+        return new LzfCodec();
+    }
+
+    CompressionCodec() {
+    }
+
+    /**
+     * The id written in the header, unique among the codecs.
+     */
+    abstract byte id();
+
+    /**
+     * @return the compressed data, or null if it's not smaller than the input.
+     */
+    abstract byte[] compress(byte[] data, int length);
+
+    /**
+     * @throws SerializationException if the data is corrupt, or doesn't decompress to the given
+     * length.
+     */
+    abstract byte[] decompress(byte[] compressed, int offset, int length, int uncompressedLength);
+}
@@ -0,0 +1,34 @@
+package eu.franzoni.jquickrepo.serialization;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compact binary serialization: subclasses write and read the fields themselves, through
+ * DataOutput and DataInput. No reflection and no type information are involved, which makes it
+ * the smallest and fastest option, at the price of handling format changes by hand (writing a
+ * format version first is a good idea).
+ */
+public abstract class DataSerializer<T> extends AbstractSerializer<T> {
+
+    protected abstract void write(T obj, DataOutput out) throws IOException;
+
+    protected abstract T read(DataInput in) throws IOException;
+
+    @Override
+    public void serialize(T obj, OutputStream out) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(out);
+        write(obj, dataOut);
+        dataOut.flush();
+    }
+
+    @Override
+    public T deserialize(InputStream in) throws IOException {
+        return read(new DataInputStream(in));
+    }
+}
@@ -0,0 +1,94 @@
+package eu.franzoni.jquickrepo.serialization;
+
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Zlib streams, which carry the checksum of the preset dictionary they need, if any: data
+ * compressed with another dictionary is refused instead of decompressing to garbage.
+ */
+class DeflateCodec extends CompressionCodec {
+
+    static final byte ID = 1;
+
+    private final int level;
+    private final byte[] dictionary;
+    private final int dictionaryId;
+
+    DeflateCodec(int level, byte[] dictionary) {
+        this.level = level;
+        this.dictionary = dictionary;
+        if (dictionary != null) {
+            Adler32 adler = new Adler32();
+            adler.update(dictionary);
+            this.dictionaryId = (int) adler.getValue();
+        } else {
+            this.dictionaryId = 0;
+        }
+    }
+
+    @Override
+    byte id() {
+        return ID;
+    }
+
+    @Override
+    byte[] compress(byte[] data, int length) {
+        Deflater deflater = new Deflater(this.level);
+        try {
+            if (this.dictionary != null) {
+                deflater.setDictionary(this.dictionary);
+            }
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            // anything as big as the input is no use.
+            byte[] out = new byte[length];
+            int written = 0;
+            while (!deflater.finished()) {
+                if (written == out.length) {
+                    return null;
+                }
+                written += deflater.deflate(out, written, out.length - written);
+            }
+            return Arrays.copyOf(out, written);
+        } finally {
+            // frees the native memory now, rather than when finalized.
+            deflater.end();
+        }
+    }
+
+    @Override
+    byte[] decompress(byte[] compressed, int offset, int length, int uncompressedLength) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed, offset, length);
+            byte[] out = new byte[uncompressedLength];
+            int read = 0;
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(out, read, out.length - read);
+                read += inflated;
+                if (inflated == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (this.dictionary == null || inflater.getAdler() != this.dictionaryId) {
+                            throw new SerializationException("compressed with another dictionary");
+                        }
+                        inflater.setDictionary(this.dictionary);
+                    } else if (inflater.needsInput() || read == out.length) {
+                        break;
+                    }
+                }
+            }
+            if (!inflater.finished() || read != uncompressedLength) {
+                throw new SerializationException("truncated compressed data");
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new SerializationException("corrupt compressed data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
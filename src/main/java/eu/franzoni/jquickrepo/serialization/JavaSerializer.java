@@ -0,0 +1,35 @@
+package eu.franzoni.jquickrepo.serialization;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Built-in java serialization; binary and needs no code for Serializable classes, though
+ * noticeably bigger and slower than {@link DataSerializer}.
+ *
+ * Don't use it on data coming from untrusted sources: deserialization can instantiate any
+ * Serializable class on the classpath.
+ */
+public class JavaSerializer<T> extends AbstractSerializer<T> {
+
+    @Override
+    public void serialize(T obj, OutputStream out) throws IOException {
+        ObjectOutputStream objectOut = new ObjectOutputStream(out);
+        objectOut.writeObject(obj);
+        objectOut.flush();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T deserialize(InputStream in) throws IOException {
+        ObjectInputStream objectIn = new ObjectInputStream(in);
+        try {
+            return (T) objectIn.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new SerializationException("unknown class in serialized data", e);
+        }
+    }
+}
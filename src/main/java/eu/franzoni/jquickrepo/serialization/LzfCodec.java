@@ -0,0 +1,129 @@
+package eu.franzoni.jquickrepo.serialization;
+
+/**
+ * The LZF format of liblzf: a control byte below 32 is followed by that many literal bytes plus
+ * one; otherwise its top 3 bits are the length of a back reference (minus 2, with 7 meaning that
+ * a byte with more length follows) and the low 5 bits, with the next byte, its distance (minus 1)
+ * within the last 8 KiB of output.
+ *
+ * Matches are found through a hash table of the last position of each 3 byte sequence, without
+ * ever searching: a single lookup per input byte.
+ */
+class LzfCodec extends CompressionCodec {
+
+    static final byte ID = 2;
+
+    private static final int HASH_BITS = 14;
+    private static final int MAX_LITERAL = 32;
+    private static final int MAX_DISTANCE = 1 << 13;
+    private static final int MAX_MATCH = 2 + 7 + 255;
+
+    @Override
+    byte id() {
+        return ID;
+    }
+
+    @Override
+    byte[] compress(byte[] data, int length) {
+        // positions plus one, so that zero means none.
+        int[] table = new int[1 << HASH_BITS];
+        // room for the worst case, literals only; the output is then discarded anyway.
+        byte[] out = new byte[length + length / MAX_LITERAL + 1];
+        int op = 0;
+        int literals = 0;
+        int ip = 0;
+        while (ip + 2 < length) {
+            int sequence = ((data[ip] & 0xff) << 16) | ((data[ip + 1] & 0xff) << 8) | (data[ip + 2] & 0xff);
+            int slot = (sequence * 0x9e3779b1) >>> (32 - HASH_BITS);
+            int ref = table[slot] - 1;
+            table[slot] = ip + 1;
+            int distance = ip - ref - 1;
+            if (ref >= 0 && distance < MAX_DISTANCE
+                    && data[ref] == data[ip] && data[ref + 1] == data[ip + 1] && data[ref + 2] == data[ip + 2]) {
+                int max = Math.min(MAX_MATCH, length - ip);
+                int match = 3;
+                while (match < max && data[ref + match] == data[ip + match]) {
+                    match++;
+                }
+                op = writeLiterals(data, ip - literals, literals, out, op);
+                literals = 0;
+                int encoded = match - 2;
+                if (encoded < 7) {
+                    out[op++] = (byte) ((encoded << 5) | (distance >>> 8));
+                } else {
+                    out[op++] = (byte) ((7 << 5) | (distance >>> 8));
+                    out[op++] = (byte) (encoded - 7);
+                }
+                out[op++] = (byte) distance;
+                ip += match;
+            } else {
+                literals++;
+                ip++;
+            }
+            if (op >= length) {
+                return null;
+            }
+        }
+        op = writeLiterals(data, ip - literals, literals + length - ip, out, op);
+        if (op >= length) {
+            return null;
+        }
+        byte[] compressed = new byte[op];
+        System.arraycopy(out, 0, compressed, 0, op);
+        return compressed;
+    }
+
+    private static int writeLiterals(byte[] data, int from, int count, byte[] out, int op) {
+        while (count > 0) {
+            int run = Math.min(count, MAX_LITERAL);
+            out[op++] = (byte) (run - 1);
+            System.arraycopy(data, from, out, op, run);
+            op += run;
+            from += run;
+            count -= run;
+        }
+        return op;
+    }
+
+    @Override
+    byte[] decompress(byte[] compressed, int offset, int length, int uncompressedLength) {
+        byte[] out = new byte[uncompressedLength];
+        int ip = offset;
+        int end = offset + length;
+        int op = 0;
+        try {
+            while (ip < end) {
+                int control = compressed[ip++] & 0xff;
+                if (control < MAX_LITERAL) {
+                    int run = control + 1;
+                    if (ip + run > end) {
+                        throw new SerializationException("truncated compressed data");
+                    }
+                    System.arraycopy(compressed, ip, out, op, run);
+                    ip += run;
+                    op += run;
+                } else {
+                    int match = control >>> 5;
+                    if (match == 7) {
+                        match += compressed[ip++] & 0xff;
+                    }
+                    int ref = op - ((control & 0x1f) << 8) - (compressed[ip++] & 0xff) - 1;
+                    match += 2;
+                    if (ref < 0 || op + match > out.length) {
+                        throw new SerializationException("corrupt compressed data");
+                    }
+                    // may overlap what it's writing: a run.
+                    for (int i = 0; i < match; i++) {
+                        out[op++] = out[ref++];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new SerializationException("corrupt compressed data", e);
+        }
+        if (op != uncompressedLength) {
+            throw new SerializationException("truncated compressed data");
+        }
+        return out;
+    }
+}
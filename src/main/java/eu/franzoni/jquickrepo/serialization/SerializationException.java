@@ -0,0 +1,11 @@
+package eu.franzoni.jquickrepo.serialization;
+
+public class SerializationException extends RuntimeException {
+    public SerializationException(String message) {
+        super(message);
+    }
+
+    public SerializationException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
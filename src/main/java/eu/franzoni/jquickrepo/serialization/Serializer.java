@@ -0,0 +1,22 @@
+package eu.franzoni.jquickrepo.serialization;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Turns objects into bytes and back. Implementations must be thread safe.
+ *
+ * The stream variants neither buffer nor close the given streams; {@link SerializationException}
+ * is thrown when the data can't be (un)marshalled, IOException only for failures of the stream.
+ */
+public interface Serializer<T> {
+
+    public byte[] serialize(T obj);
+
+    public T deserialize(byte[] data);
+
+    public void serialize(T obj, OutputStream out) throws IOException;
+
+    public T deserialize(InputStream in) throws IOException;
+}
@@ -0,0 +1,72 @@
+package eu.franzoni.jquickrepo.serialization;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.XStreamException;
+import com.thoughtworks.xstream.io.xml.StaxDriver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * XML serialization through XStream; readable and schema-less, but big and slow compared to the
+ * binary serializers.
+ */
+public class XStreamSerializer<T> implements Serializer<T> {
+
+    final private Charset charset;
+    final private XStream xstream;
+
+    public XStreamSerializer() {
+        this(Charset.forName("UTF-8"), new XStream(new StaxDriver()));
+    }
+
+    public XStreamSerializer(Charset charset, XStream xstream) {
+        this.charset = charset;
+        this.xstream = xstream;
+    }
+
+    @Override
+    public byte[] serialize(T obj) {
+        try {
+            return this.xstream.toXML(obj).getBytes(this.charset);
+        } catch (XStreamException e) {
+            throw new SerializationException("could not marshal", e);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T deserialize(byte[] data) {
+        try {
+            return (T) this.xstream.fromXML(new String(data, this.charset));
+        } catch (XStreamException e) {
+            throw new SerializationException("could not unmarshal", e);
+        }
+    }
+
+    @Override
+    public void serialize(T obj, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, this.charset);
+        try {
+            this.xstream.toXML(obj, writer);
+        } catch (XStreamException e) {
+            throw new SerializationException("could not marshal", e);
+        }
+        writer.flush();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T deserialize(InputStream in) throws IOException {
+        try {
+            return (T) this.xstream.fromXML(new InputStreamReader(in, this.charset));
+        } catch (XStreamException e) {
+            throw new SerializationException("could not unmarshal", e);
+        }
+    }
+}
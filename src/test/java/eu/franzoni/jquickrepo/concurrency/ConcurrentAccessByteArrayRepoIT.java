@@ -2,11 +2,13 @@ package eu.franzoni.jquickrepo.concurrency;
 
 import eu.franzoni.jquickrepo.repository.ByteArrayRepo;
 import eu.franzoni.jquickrepo.repository.DoWhileLocking;
+import eu.franzoni.jquickrepo.repository.Durability;
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -26,6 +28,61 @@ public class ConcurrentAccessByteArrayRepoIT {
         test(1000, byteArrayRepo);
     }
 
+    @Test
+    public void runModifyWhileLockingWithLockPerId() throws Exception {
+        ByteArrayRepo byteArrayRepo = new ByteArrayRepo.Builder(tempFolder.getRoot()).lockProvider(new MultipleResourceLock()).build();
+        test(1000, byteArrayRepo);
+    }
+
+    @Test
+    public void runModifyWhileLockingWithStampedLocks() throws Exception {
+        ByteArrayRepo byteArrayRepo = new ByteArrayRepo.Builder(tempFolder.getRoot()).lockProvider(new StampedLockProvider()).build();
+        test(1000, byteArrayRepo);
+    }
+
+    @Test
+    public void optimisticLoadsNeverSeeAMissingOrPartialEntry() throws Exception {
+        final ByteArrayRepo repo = new ByteArrayRepo.Builder(tempFolder.getRoot()).lockProvider(new StampedLockProvider(1)).build();
+        repo.save("hot", new byte[1024]);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(9);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        futures.add(executorService.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (int i = 0; i < 500; i++) {
+                    repo.update("hot", new byte[1024 * (1 + i % 4)]);
+                }
+                return null;
+            }
+        }));
+        for (int reader = 0; reader < 8; reader++) {
+            futures.add(executorService.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = 0; i < 2000; i++) {
+                        Assert.assertEquals(0, repo.load("hot").length % 1024);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executorService.shutdown();
+    }
+
+    @Test
+    public void runModifyWhileLockingWithGroupCommit() throws Exception {
+        ByteArrayRepo byteArrayRepo = new ByteArrayRepo.Builder(tempFolder.getRoot()).durability(Durability.GROUP_COMMIT).build();
+        try {
+            test(200, byteArrayRepo);
+        } finally {
+            byteArrayRepo.close();
+        }
+    }
+
     private void test(final int threadCount, final ByteArrayRepo repo) throws Exception {
 
         Callable<Void> task = new Callable<Void>() {
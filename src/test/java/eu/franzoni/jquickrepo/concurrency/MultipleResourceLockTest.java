@@ -155,4 +155,16 @@ public class MultipleResourceLockTest {
 
 
     }
+
+    @Test
+    public void testLocksAreProvidedOncePerIdInIdOrder() {
+        MultipleResourceLock bigLock = new MultipleResourceLock();
+        ReadWriteLock a = bigLock.provideLock("a");
+        ReadWriteLock b = bigLock.provideLock("b");
+        ReadWriteLock c = bigLock.provideLock("c");
+
+        List<ReadWriteLock> locks = bigLock.provideLocks(Arrays.asList("c", "a", "b", "a"));
+
+        assertEquals(Arrays.asList(a, b, c), locks);
+    }
 }
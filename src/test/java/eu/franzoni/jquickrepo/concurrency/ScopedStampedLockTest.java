@@ -0,0 +1,71 @@
+package eu.franzoni.jquickrepo.concurrency;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ScopedStampedLockTest {
+
+    @Test
+    public void testUncontendedOptimisticReadRunsOnceWithoutLocking() {
+        final StampedLock lock = new StampedLock();
+        final AtomicInteger runs = new AtomicInteger();
+
+        String result = new ScopedStampedLock<String>(lock).executeWithOptimisticRead(new WhileLocked<String>() {
+            @Override
+            public String execute() {
+                runs.incrementAndGet();
+                assertFalse(lock.isReadLocked());
+                return "read";
+            }
+        });
+
+        assertEquals("read", result);
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void testOptimisticReadOverlappedByAWriteIsRetriedUnderTheReadLock() throws Exception {
+        final StampedLock lock = new StampedLock();
+        final AtomicInteger runs = new AtomicInteger();
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                lock.unlockWrite(lock.writeLock());
+            }
+        });
+
+        String result = new ScopedStampedLock<String>(lock).executeWithOptimisticRead(new WhileLocked<String>() {
+            @Override
+            public String execute() {
+                if (runs.incrementAndGet() == 1) {
+                    writer.start();
+                    try {
+                        writer.join();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    throw new IllegalStateException("saw a half written state");
+                }
+                return lock.isReadLocked() ? "locked" : "unlocked";
+            }
+        });
+
+        assertEquals("locked", result);
+        assertEquals(2, runs.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFailureOfAValidOptimisticReadIsRethrown() {
+        new ScopedStampedLock<String>(new StampedLock()).executeWithOptimisticRead(new WhileLocked<String>() {
+            @Override
+            public String execute() {
+                throw new IllegalStateException("really failed");
+            }
+        });
+    }
+}
@@ -0,0 +1,47 @@
+package eu.franzoni.jquickrepo.concurrency;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class StripedLockProviderTest {
+
+    @Test
+    public void testSameIdAlwaysGetsTheSameLock() {
+        StripedLockProvider provider = new StripedLockProvider(16);
+        assertSame(provider.provideLock("asd"), provider.provideLock("asd"));
+    }
+
+    @Test
+    public void testStripeCountIsRoundedUpToAPowerOfTwo() {
+        assertEquals(16, new StripedLockProvider(9).getStripeCount());
+        assertEquals(16, new StripedLockProvider(16).getStripeCount());
+        assertEquals(1, new StripedLockProvider(1).getStripeCount());
+    }
+
+    @Test
+    public void testSharedStripesAreProvidedOnceInTheSameOrder() {
+        StripedLockProvider provider = new StripedLockProvider(4);
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            ids.add("id" + i);
+        }
+
+        List<ReadWriteLock> locks = provider.provideLocks(ids);
+        assertEquals(4, locks.size());
+        assertEquals(4, new HashSet<ReadWriteLock>(locks).size());
+
+        List<String> reversed = new ArrayList<String>(ids);
+        Collections.reverse(reversed);
+        assertEquals(locks, provider.provideLocks(reversed));
+        assertEquals(Arrays.asList(provider.provideLock("id7")), provider.provideLocks(Arrays.asList("id7", "id7")));
+    }
+}
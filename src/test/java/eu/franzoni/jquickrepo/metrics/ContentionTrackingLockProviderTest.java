@@ -0,0 +1,230 @@
+package eu.franzoni.jquickrepo.metrics;
+
+import eu.franzoni.jquickrepo.concurrency.MultipleResourceLock;
+import eu.franzoni.jquickrepo.concurrency.ScopedReadWriteLock;
+import eu.franzoni.jquickrepo.concurrency.StripedLockProvider;
+import eu.franzoni.jquickrepo.concurrency.WhileLocked;
+import eu.franzoni.jquickrepo.repository.ByteArrayRepo;
+import eu.franzoni.jquickrepo.repository.DoWhileLocking;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+
+public class ContentionTrackingLockProviderTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static Thread lockInBackground(final ReadWriteLock lock) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                new ScopedReadWriteLock<Void>(lock).executeWithWriteLock(new WhileLocked<Void>() {
+                    @Override
+                    public Void execute() {
+                        return null;
+                    }
+                });
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitQueueLength(ContentionTrackingLockProvider provider, int length) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (provider.getQueueLength() != length) {
+            Assert.assertTrue("nobody queued", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void uncontendedAcquisitionsAreOnlyCounted() {
+        ContentionTrackingLockProvider provider = new ContentionTrackingLockProvider(new MultipleResourceLock());
+        for (int i = 0; i < 100; i++) {
+            ReadWriteLock lock = provider.provideLock("cold");
+            lock.writeLock().lock();
+            lock.writeLock().unlock();
+        }
+        Assert.assertEquals(100, provider.getAcquisitionCount());
+        Assert.assertEquals(0, provider.getWaitCount());
+        Assert.assertEquals(0, provider.getTrackedIdCount());
+        Assert.assertNull(provider.getContention("cold"));
+    }
+
+    @Test
+    public void waitsAreTrackedByIdWithTheirQueue() throws Exception {
+        ContentionTrackingLockProvider provider = new ContentionTrackingLockProvider(new MultipleResourceLock());
+        ReadWriteLock held = provider.provideLock("hot");
+        held.writeLock().lock();
+        Thread first = lockInBackground(provider.provideLock("hot"));
+        awaitQueueLength(provider, 1);
+        Thread second = lockInBackground(provider.provideLock("hot"));
+        awaitQueueLength(provider, 2);
+
+        LockContention contention = provider.getContention("hot");
+        Assert.assertEquals(2, contention.getQueueLength());
+        Thread.sleep(20);
+        held.writeLock().unlock();
+        first.join();
+        second.join();
+
+        Assert.assertEquals(0, contention.getQueueLength());
+        Assert.assertEquals(2, contention.getMaxQueueLength());
+        Assert.assertEquals(2, contention.getWaitCount());
+        Assert.assertTrue(contention.getMaxWaitNanos() >= 20000000);
+        Assert.assertTrue(contention.getTotalWaitNanos() >= contention.getMaxWaitNanos());
+        Assert.assertEquals(3, provider.getAcquisitionCount());
+        Assert.assertEquals(2, provider.getWaitCount());
+        Assert.assertTrue(provider.dump(5).contains("hot waits=2"));
+    }
+
+    @Test
+    public void readersDontOvertakeQueuedWriters() throws Exception {
+        ContentionTrackingLockProvider provider = new ContentionTrackingLockProvider(new MultipleResourceLock());
+        ReadWriteLock held = provider.provideLock("hot");
+        held.readLock().lock();
+        Thread writer = lockInBackground(provider.provideLock("hot"));
+        awaitQueueLength(provider, 1);
+
+        final ReadWriteLock read = provider.provideLock("hot");
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                read.readLock().lock();
+                acquired.countDown();
+                read.readLock().unlock();
+            }
+        };
+        reader.start();
+        Assert.assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(2, provider.getQueueLength());
+
+        held.readLock().unlock();
+        writer.join();
+        reader.join();
+        Assert.assertEquals(2, provider.getContention("hot").getWaitCount());
+    }
+
+    @Test
+    public void hottestIdsComeFirst() throws Exception {
+        ContentionTrackingLockProvider provider = new ContentionTrackingLockProvider(new MultipleResourceLock());
+        for (String id : Arrays.asList("warm", "hot", "hot")) {
+            ReadWriteLock held = provider.provideLock(id);
+            held.writeLock().lock();
+            Thread waiter = lockInBackground(provider.provideLock(id));
+            awaitQueueLength(provider, 1);
+            // hot waits much longer, so that scheduling hiccups can't make warm look hotter.
+            Thread.sleep("hot".equals(id) ? 50 : 1);
+            held.writeLock().unlock();
+            waiter.join();
+        }
+        List<LockContention> hottest = provider.getHottest(1);
+        Assert.assertEquals(1, hottest.size());
+        Assert.assertEquals("hot", hottest.get(0).getId());
+        Assert.assertEquals(2, provider.getHottest().size());
+
+        provider.reset();
+        Assert.assertEquals(0, provider.getTrackedIdCount());
+        Assert.assertEquals(0, provider.getWaitCount());
+    }
+
+    @Test
+    public void trackedIdsAreBounded() throws Exception {
+        ContentionTrackingLockProvider provider = new ContentionTrackingLockProvider(new MultipleResourceLock(), 1);
+        for (String id : Arrays.asList("a", "b")) {
+            ReadWriteLock held = provider.provideLock(id);
+            held.writeLock().lock();
+            Thread waiter = lockInBackground(provider.provideLock(id));
+            awaitQueueLength(provider, 1);
+            held.writeLock().unlock();
+            waiter.join();
+        }
+        Assert.assertEquals(1, provider.getTrackedIdCount());
+        Assert.assertNotNull(provider.getContention("a"));
+        Assert.assertEquals(2, provider.getWaitCount());
+    }
+
+    @Test
+    public void multipleLocksAreTrackedAgainstTheirIds() throws Exception {
+        ContentionTrackingLockProvider provider = new ContentionTrackingLockProvider(new StripedLockProvider(1));
+        List<ReadWriteLock> locks = provider.provideLocks(Arrays.asList("b", "a"));
+        Assert.assertEquals(1, locks.size());
+        ReadWriteLock held = provider.provideLock("c");
+        held.writeLock().lock();
+        Thread waiter = lockInBackground(locks.get(0));
+        awaitQueueLength(provider, 1);
+        held.writeLock().unlock();
+        waiter.join();
+        Assert.assertEquals(1, provider.getContention("b").getWaitCount());
+    }
+
+    @Test
+    public void findsHotIdsOfARepository() throws Exception {
+        final ContentionTrackingLockProvider provider = new ContentionTrackingLockProvider(new StripedLockProvider());
+        final ByteArrayRepo repo = new ByteArrayRepo.Builder(tempFolder.getRoot()).lockProvider(provider).build();
+        repo.save("hot", new byte[]{0});
+        repo.save("cold", new byte[]{0});
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread() {
+            @Override
+            public void run() {
+                repo.modifyWhileLocking("hot", new DoWhileLocking<byte[]>() {
+                    @Override
+                    public byte[] execute(byte[] data) {
+                        locked.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                        return data;
+                    }
+                });
+            }
+        };
+        holder.start();
+        locked.await();
+        Thread loader = new Thread() {
+            @Override
+            public void run() {
+                repo.load("hot");
+            }
+        };
+        loader.start();
+        awaitQueueLength(provider, 1);
+        repo.load("cold");
+        release.countDown();
+        holder.join();
+        loader.join();
+
+        Assert.assertEquals("hot", provider.getHottest(1).get(0).getId());
+        Assert.assertNull(provider.getContention("cold"));
+    }
+
+    @Test
+    public void canBeDumpedThroughJmx() throws Exception {
+        ContentionTrackingLockProvider provider = new ContentionTrackingLockProvider(new MultipleResourceLock());
+        provider.provideLock("1").readLock().lock();
+        ObjectName name = provider.register("test locks");
+        try {
+            Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "AcquisitionCount"));
+            Object dump = ManagementFactory.getPlatformMBeanServer().invoke(name, "dump", new Object[]{3}, new String[]{"int"});
+            Assert.assertTrue(((String) dump).startsWith("lock contention: 1 acquisitions"));
+        } finally {
+            provider.unregister();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package eu.franzoni.jquickrepo.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZeroes() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMean(), 0);
+        Assert.assertEquals(0, histogram.getMax());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 50; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(50, histogram.getCount());
+        Assert.assertEquals(25.5, histogram.getMean(), 0.001);
+        Assert.assertEquals(50, histogram.getMax());
+        Assert.assertEquals(25, histogram.getValueAtPercentile(50));
+        Assert.assertEquals(50, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void percentilesAreWithinThreePercent() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i * 1000);
+        }
+        for (double percentile : new double[]{10, 50, 90, 99, 99.9}) {
+            double expected = percentile * 1000 * 1000;
+            Assert.assertEquals(expected, histogram.getValueAtPercentile(percentile), expected * 0.03);
+            Assert.assertTrue(histogram.getValueAtPercentile(percentile) >= expected);
+        }
+        Assert.assertEquals(100000L * 1000, histogram.getMax());
+    }
+
+    @Test
+    public void everyValueFallsInABucketHoldingIt() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            int bucket = LatencyHistogram.bucketOf(value);
+            Assert.assertTrue(value <= LatencyHistogram.highestValueIn(bucket));
+            Assert.assertTrue(bucket == 0 || value > LatencyHistogram.highestValueIn(bucket - 1));
+        }
+    }
+
+    @Test
+    public void extremesAreRecorded() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals(2, histogram.getCount());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(50));
+        Assert.assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+}
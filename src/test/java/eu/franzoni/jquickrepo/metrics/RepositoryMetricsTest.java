@@ -0,0 +1,145 @@
+package eu.franzoni.jquickrepo.metrics;
+
+import eu.franzoni.jquickrepo.repository.ByteArrayRepo;
+import eu.franzoni.jquickrepo.repository.DuplicateResourceIdException;
+import eu.franzoni.jquickrepo.repository.MarshallingRepository;
+import eu.franzoni.jquickrepo.repository.Snapshot;
+import eu.franzoni.jquickrepo.serialization.JavaSerializer;
+import eu.franzoni.jquickrepo.serialization.SerializationException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+public class RepositoryMetricsTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private RepositoryMetrics metrics;
+
+    @Before
+    public void setUp() {
+        metrics = new RepositoryMetrics();
+    }
+
+    @Test
+    public void operationsAndFailuresAreCounted() {
+        ByteArrayRepo repo = new ByteArrayRepo(tempFolder.getRoot());
+        repo.setMetricsListener(metrics);
+        repo.save("1", new byte[]{1, 2, 3});
+        try {
+            repo.save("1", new byte[]{1});
+            Assert.fail("duplicate saved");
+        } catch (DuplicateResourceIdException e) {
+            // expected
+        }
+        repo.update("1", new byte[]{4, 5});
+        repo.load("1");
+        repo.loadAll();
+        repo.delete("1");
+
+        Assert.assertEquals(2, metrics.getLatency(Operation.SAVE).getCount());
+        Assert.assertEquals(1, metrics.getFailureCount(Operation.SAVE));
+        Assert.assertEquals(1, metrics.getLatency(Operation.UPDATE).getCount());
+        Assert.assertEquals(0, metrics.getFailureCount(Operation.UPDATE));
+        // loadAll doesn't count each entry as a load.
+        Assert.assertEquals(1, metrics.getLatency(Operation.LOAD).getCount());
+        Assert.assertEquals(1, metrics.getLatency(Operation.LOAD_ALL).getCount());
+        Assert.assertEquals(1, metrics.getLatency(Operation.DELETE).getCount());
+        Assert.assertTrue(metrics.getLatency(Operation.SAVE).getMax() > 0);
+    }
+
+    @Test
+    public void versionAndSnapshotLoadsAreTimed() {
+        ByteArrayRepo repo = new ByteArrayRepo.Builder(tempFolder.getRoot()).retainedVersions(1).build();
+        repo.setMetricsListener(metrics);
+        repo.save("1", new byte[]{1});
+        long first = repo.loadEntry("1").getVersion();
+        Snapshot<byte[]> snapshot = repo.snapshot();
+        repo.update("1", new byte[]{2});
+
+        Assert.assertArrayEquals(new byte[]{1}, repo.load("1", first));
+        Assert.assertArrayEquals(new byte[]{1}, snapshot.load("1"));
+        Assert.assertEquals(1, snapshot.loadAll().size());
+        snapshot.close();
+
+        // loadEntry, load at a version and the snapshot load; the snapshot's loadAll counts once.
+        Assert.assertEquals(3, metrics.getLatency(Operation.LOAD).getCount());
+        Assert.assertEquals(1, metrics.getLatency(Operation.LOAD_ALL).getCount());
+    }
+
+    @Test
+    public void bytesAndLocksAreMeasured() {
+        ByteArrayRepo repo = new ByteArrayRepo(tempFolder.getRoot());
+        repo.setMetricsListener(metrics);
+        repo.save("1", new byte[100]);
+        repo.saveOrUpdate("2", new byte[50]);
+        repo.load("1");
+
+        Assert.assertEquals(150, metrics.getBytesWritten());
+        Assert.assertEquals(100, metrics.getBytesRead());
+        Assert.assertEquals(2, metrics.getLockHold(true).getCount());
+        Assert.assertEquals(2, metrics.getLockWait(true).getCount());
+    }
+
+    @Test
+    public void marshallingIsTimed() {
+        MarshallingRepository<String> repo = new MarshallingRepository<String>(tempFolder.getRoot(), new JavaSerializer<String>());
+        repo.setMetricsListener(metrics);
+        repo.save("1", "a");
+        Assert.assertEquals("a", repo.load("1"));
+
+        Assert.assertEquals(1, metrics.getMarshallingLatency().getCount());
+        Assert.assertEquals(1, metrics.getUnmarshallingLatency().getCount());
+        Assert.assertEquals(1, metrics.getLatency(Operation.LOAD).getCount());
+        Assert.assertEquals(metrics.getBytesWritten(), metrics.getBytesRead());
+        Assert.assertTrue(metrics.getBytesWritten() > 0);
+    }
+
+    @Test
+    public void removedPartFilesAreCounted() {
+        MarshallingRepository<String> repo = new MarshallingRepository<String>(tempFolder.getRoot(), new JavaSerializer<String>() {
+            @Override
+            public void serialize(String obj, OutputStream out) throws IOException {
+                out.write(1);
+                throw new SerializationException("can't marshal this");
+            }
+        });
+        repo.setMetricsListener(metrics);
+        try {
+            repo.save("1", "bad");
+            Assert.fail("must not be saved");
+        } catch (SerializationException e) {
+            // expected
+        }
+        Assert.assertEquals(1, metrics.getPartFilesRemoved());
+        Assert.assertEquals(1, metrics.getFailureCount(Operation.SAVE));
+    }
+
+    @Test
+    public void canBeReadThroughJmx() throws Exception {
+        ByteArrayRepo repo = new ByteArrayRepo(tempFolder.getRoot());
+        repo.setMetricsListener(metrics);
+        repo.save("1", new byte[10]);
+
+        ObjectName name = metrics.register("test repo");
+        try {
+            Assert.assertEquals(10L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "BytesWritten"));
+            TabularData operations = (TabularData) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Operations");
+            CompositeData save = (CompositeData) operations.get(new Object[]{"SAVE"}).get("value");
+            Assert.assertEquals(1L, save.get("count"));
+        } finally {
+            metrics.unregister();
+        }
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
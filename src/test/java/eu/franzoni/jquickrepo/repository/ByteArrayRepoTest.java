@@ -3,12 +3,22 @@ package eu.franzoni.jquickrepo.repository;
 
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
+import eu.franzoni.jquickrepo.concurrency.StampedLockProvider;
 import org.junit.*;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class ByteArrayRepoTest {
@@ -26,6 +36,19 @@ public class ByteArrayRepoTest {
 
     }
 
+    /**
+     * The files in the directory, but for the hidden ones the repository keeps for itself.
+     */
+    static Set<String> entryNames(File dir) {
+        Set<String> names = new HashSet<String>();
+        for (String name : dir.list()) {
+            if (!name.startsWith(".")) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
     @Test
     public void testSaveCreatesFileWithNameId() {
         byte[] data = new byte[]{0xa, 0xb};
@@ -122,6 +145,22 @@ public class ByteArrayRepoTest {
         this.repo.save("some", test_data);
     }
 
+    @Test
+    public void saveNeverReplacesAnEntryWrittenBehindItsBack() throws Exception {
+        // as another process would, without taking our locks.
+        Files.write(new byte[]{0x1}, new File(this.myTempDir, "some"));
+
+        try {
+            this.repo.save("some", new byte[]{0x2});
+            Assert.fail("the entry should have been kept");
+        } catch (DuplicateResourceIdException e) {
+            // expected.
+        }
+
+        Assert.assertArrayEquals(new byte[]{0x1}, this.repo.load("some"));
+        Assert.assertEquals(Sets.newHashSet("some"), entryNames(this.myTempDir));
+    }
+
     @Test(expected = MissingIdException.class)
     public void testUpdateWithoutAlreadyExistingIdThrowsDuplicateResourceIdException() throws Exception {
         byte[] test_data = new byte[]{0xc, 0xf};
@@ -205,9 +244,353 @@ public class ByteArrayRepoTest {
         }
 
     }
-    
-    
-    
 
+    @Test
+    public void loadMappedGivesReadOnlyViewOfContent() throws Exception {
+        this.repo.save("some", new byte[]{0xc, 0xf, 0xa});
+
+        final ByteBuffer buffer = this.repo.loadMapped("some");
+        Assert.assertTrue(buffer.isReadOnly());
+        final byte[] content = new byte[buffer.remaining()];
+        buffer.get(content);
+        Assert.assertArrayEquals(new byte[]{0xc, 0xf, 0xa}, content);
+    }
+
+    @Test(expected = UnknownResourceIdException.class)
+    public void loadMappedFailsIfUnknownId() throws Exception {
+        this.repo.loadMapped("unknown");
+    }
+
+    @Test
+    public void transferToWritesContentToChannel() throws Exception {
+        final byte[] data = new byte[100000];
+        new Random(1).nextBytes(data);
+        this.repo.save("some", data);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long transferred = this.repo.transferTo("some", Channels.newChannel(out));
+        Assert.assertEquals(data.length, transferred);
+        Assert.assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test(expected = UnknownResourceIdException.class)
+    public void transferToFailsIfUnknownId() throws Exception {
+        this.repo.transferTo("unknown", Channels.newChannel(new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void iterateAllSkipsEntriesDeletedWhileIterating() throws Exception {
+        this.repo.saveOrUpdate("some", new byte[]{0xc, 0xf});
+        this.repo.saveOrUpdate("else", new byte[]{0xc, 0xe});
+
+        final Iterator<Entry<byte[]>> iterator = this.repo.iterateAll();
+        this.repo.delete("else");
+
+        Assert.assertTrue(iterator.hasNext());
+        final Entry<byte[]> entry = iterator.next();
+        Assert.assertEquals("some", entry.getId());
+        Assert.assertArrayEquals(new byte[]{0xc, 0xf}, entry.getContent());
+        Assert.assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void iterateAllInParallelLoadsEverySavedEntry() throws Exception {
+        final Map<String, byte[]> expectedEntries = new HashMap<String, byte[]>();
+        for (int i = 0; i < 50; i++) {
+            expectedEntries.put("id" + i, new byte[]{(byte) i});
+            this.repo.save("id" + i, new byte[]{(byte) i});
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final Iterator<Entry<byte[]>> iterator = this.repo.iterateAll(executor, 3);
+            int count = 0;
+            while (iterator.hasNext()) {
+                final Entry<byte[]> entry = iterator.next();
+                Assert.assertArrayEquals(expectedEntries.get(entry.getId()), entry.getContent());
+                count++;
+            }
+            Assert.assertEquals(expectedEntries.size(), count);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void failedParallelLoadCancelsTheLoadsAhead() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger started = new AtomicInteger();
+        EntryLoader<byte[]> loader = new EntryLoader<byte[]>() {
+            @Override
+            public byte[] load(String id) {
+                if ("bad".equals(id)) {
+                    throw new IllegalStateException("can't load " + id);
+                }
+                started.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return new byte[0];
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ParallelEntryIterator<byte[]> iterator = new ParallelEntryIterator<byte[]>(
+                    Arrays.asList("bad", "a", "b", "c", "d").iterator(), loader, executor, 5);
+            try {
+                iterator.hasNext();
+                Assert.fail("the failed load must be rethrown");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            Assert.assertFalse(iterator.hasNext());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        // only the one already running when the failure came out.
+        Assert.assertTrue(started.get() <= 1);
+    }
+
+    @Test
+    public void saveAllPersistsEveryEntry() {
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        for (int i = 0; i < 20; i++) {
+            entries.put("id" + i, new byte[]{(byte) i});
+        }
+        this.repo.saveAll(entries);
+
+        for (int i = 0; i < 20; i++) {
+            Assert.assertArrayEquals(new byte[]{(byte) i}, this.repo.load("id" + i));
+        }
+    }
+
+    @Test
+    public void failingBatchCheckWritesNothing() {
+        this.repo.save("existing", new byte[]{0x1});
+        this.repo.save("doomed", new byte[]{0x2});
+
+        Batch<byte[]> batch = new Batch<byte[]>()
+                .saveOrUpdate("new", new byte[]{0x3})
+                .delete("doomed")
+                .save("existing", new byte[]{0x4});
+        try {
+            this.repo.apply(batch);
+            Assert.fail("the batch should have been refused");
+        } catch (DuplicateResourceIdException e) {
+            // expected.
+        }
+
+        Assert.assertEquals(Sets.newHashSet("existing", "doomed"), entryNames(this.myTempDir));
+        Assert.assertArrayEquals(new byte[]{0x1}, this.repo.load("existing"));
+    }
+
+    @Test
+    public void batchAppliesEveryKindOfWrite() throws Exception {
+        this.repo.save("updated", new byte[]{0x1});
+        this.repo.save("deleted", new byte[]{0x2});
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            this.repo.apply(new Batch<byte[]>()
+                    .save("saved", new byte[]{0x3})
+                    .update("updated", new byte[]{0x4})
+                    .delete("deleted"), executor);
+        } finally {
+            executor.shutdown();
+        }
 
+        Assert.assertEquals(Sets.newHashSet("saved", "updated"), entryNames(this.myTempDir));
+        Assert.assertArrayEquals(new byte[]{0x3}, this.repo.load("saved"));
+        Assert.assertArrayEquals(new byte[]{0x4}, this.repo.load("updated"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batchRefusesTheSameIdTwice() {
+        new Batch<byte[]>().save("some", new byte[]{0x1}).delete("some");
+    }
+
+    @Test
+    public void syncedWritesArePersisted() {
+        ByteArrayRepo syncedRepo = new ByteArrayRepo.Builder(this.myTempDir).durability(Durability.FSYNC).build();
+        syncedRepo.save("saved", new byte[]{0x1});
+        syncedRepo.apply(new Batch<byte[]>().save("batched", new byte[]{0x2}).delete("saved"));
+
+        Assert.assertEquals(Sets.newHashSet("batched"), entryNames(this.myTempDir));
+        Assert.assertArrayEquals(new byte[]{0x2}, syncedRepo.load("batched"));
+    }
+
+    @Test
+    public void groupCommitPersistsConcurrentWrites() throws Exception {
+        // else the ids wouldn't be saved on closing, as it wouldn't have the directory to itself.
+        this.repo.close();
+        final ByteArrayRepo groupRepo = new ByteArrayRepo.Builder(this.myTempDir).durability(Durability.GROUP_COMMIT).groupCommit(16, 1, TimeUnit.MILLISECONDS).build();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 100; i++) {
+                final int index = i;
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        groupRepo.save("id" + index, new byte[]{(byte) index});
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            groupRepo.delete("id0");
+        } finally {
+            executor.shutdown();
+            groupRepo.close();
+        }
+
+        Assert.assertEquals(99, entryNames(this.myTempDir).size());
+        // the ids were saved on closing, next to the entries.
+        Assert.assertTrue(new File(this.myTempDir, IdIndex.SNAPSHOT).isFile());
+        ByteArrayRepo reopened = new ByteArrayRepo(this.myTempDir);
+        for (int i = 1; i < 100; i++) {
+            Assert.assertArrayEquals(new byte[]{(byte) i}, reopened.load("id" + i));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void groupCommitRefusesWritesOnceClosed() {
+        ByteArrayRepo groupRepo = new ByteArrayRepo.Builder(this.myTempDir).durability(Durability.GROUP_COMMIT).build();
+        groupRepo.close();
+        groupRepo.save("late", new byte[]{0x1});
+    }
+    @Test
+    public void everyWriteListenerIsTold() {
+        final List<String> first = new ArrayList<String>();
+        final List<String> second = new ArrayList<String>();
+        this.repo.addWriteListener(new WriteListener() {
+            @Override
+            public void written(String id) {
+                first.add(id);
+            }
+        });
+        this.repo.addWriteListener(new WriteListener() {
+            @Override
+            public void written(String id) {
+                second.add(id);
+            }
+        });
+
+        this.repo.save("some", new byte[]{0x1});
+        this.repo.apply(new Batch<byte[]>().delete("some"));
+
+        Assert.assertEquals(Arrays.asList("some", "some"), first);
+        Assert.assertEquals(first, second);
+    }
+
+    @Test
+    public void versionedUpdateSucceedsOnlyFromTheLatestVersion() {
+        this.repo.save("some", new byte[]{0x1});
+        Entry<byte[]> loaded = this.repo.loadEntry("some");
+
+        long updated = this.repo.update("some", new byte[]{0x2}, loaded.getVersion());
+        Assert.assertTrue(updated > loaded.getVersion());
+        Assert.assertEquals(updated, this.repo.loadEntry("some").getVersion());
+
+        try {
+            this.repo.update("some", new byte[]{0x3}, loaded.getVersion());
+            Assert.fail("the entry was written since it was loaded");
+        } catch (VersionConflictException e) {
+            Assert.assertEquals(updated, e.getActualVersion());
+        }
+        Assert.assertArrayEquals(new byte[]{0x2}, this.repo.load("some"));
+    }
+
+    @Test(expected = MissingIdException.class)
+    public void versionedUpdateOfAMissingEntryFails() {
+        this.repo.update("missing", new byte[]{0x1}, 1);
+    }
+
+    @Test
+    public void compareAndSetTellsAboutConflicts() {
+        this.repo.save("some", new byte[]{0x1});
+        long version = this.repo.loadEntry("some").getVersion();
+        this.repo.saveOrUpdate("some", new byte[]{0x2});
+
+        Assert.assertFalse(this.repo.compareAndSet("some", version, new byte[]{0x3}));
+        Assert.assertFalse(this.repo.compareAndSet("missing", version, new byte[]{0x3}));
+        Assert.assertTrue(this.repo.compareAndSet("some", this.repo.loadEntry("some").getVersion(), new byte[]{0x3}));
+        Assert.assertArrayEquals(new byte[]{0x3}, this.repo.load("some"));
+    }
+
+    @Test
+    public void versionsKeepGrowingAcrossReopens() {
+        this.repo.save("some", new byte[]{0x1});
+        long before = this.repo.loadEntry("some").getVersion();
+        this.repo.close();
+
+        ByteArrayRepo reopened = new ByteArrayRepo(this.myTempDir);
+        long after = reopened.loadEntry("some").getVersion();
+        Assert.assertTrue(after > before);
+        Assert.assertTrue(reopened.update("some", new byte[]{0x2}, after) > after);
+    }
+
+    @Test
+    public void repositoriesSharingADirectoryNeverShareVersions() {
+        ByteArrayRepo other = new ByteArrayRepo(this.myTempDir);
+        this.repo.save("some", new byte[]{0x1});
+        other.save("other", new byte[]{0x1});
+
+        Assert.assertTrue(this.repo.loadEntry("some").getVersion() != other.loadEntry("other").getVersion());
+        other.close();
+    }
+
+    @Test
+    public void entriesWrittenBehindItsBackGetAVersion() throws Exception {
+        Files.write(new byte[]{0x1}, new File(this.myTempDir, "external"));
+
+        Entry<byte[]> loaded = this.repo.loadEntry("external");
+        Assert.assertArrayEquals(new byte[]{0x1}, loaded.getContent());
+        Assert.assertTrue(this.repo.compareAndSet("external", loaded.getVersion(), new byte[]{0x2}));
+    }
+
+    @Test
+    public void entriesWrittenBehindItsBackGetAVersionWithOptimisticReads() throws Exception {
+        ByteArrayRepo stampedRepo = new ByteArrayRepo.Builder(this.myTempDir).lockProvider(new StampedLockProvider()).build();
+        Files.write(new byte[]{0x1}, new File(this.myTempDir, "external"));
+
+        Entry<byte[]> loaded = stampedRepo.loadEntry("external");
+        Assert.assertArrayEquals(new byte[]{0x1}, loaded.getContent());
+        Assert.assertEquals(loaded.getVersion(), stampedRepo.loadEntry("external").getVersion());
+        Assert.assertTrue(stampedRepo.compareAndSet("external", loaded.getVersion(), new byte[]{0x2}));
+    }
+
+    @Test
+    public void compareAndSetLoopsLoseNoIncrement() throws Exception {
+        this.repo.save("counter", new byte[]{0});
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < 25; j++) {
+                            Entry<byte[]> entry;
+                            do {
+                                entry = repo.loadEntry("counter");
+                            } while (!repo.compareAndSet("counter", entry.getVersion(), new byte[]{(byte) (entry.getContent()[0] + 1)}));
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertArrayEquals(new byte[]{100}, this.repo.load("counter"));
+    }
 }
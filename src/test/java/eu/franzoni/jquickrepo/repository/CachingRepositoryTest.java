@@ -0,0 +1,201 @@
+package eu.franzoni.jquickrepo.repository;
+
+import eu.franzoni.jquickrepo.concurrency.StripedLockProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CachingRepositoryTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private ByteArrayRepo diskRepo;
+
+    @Before
+    public void setUp() throws Exception {
+        diskRepo = new ByteArrayRepo(tempFolder.getRoot());
+    }
+
+    @Test
+    public void repeatedLoadsAreServedFromCache() {
+        CachingRepository<byte[]> repo = new CachingRepository<byte[]>(diskRepo, 10);
+        repo.save("some", new byte[]{0xa});
+
+        repo.load("some");
+        repo.load("some");
+        repo.load("some");
+
+        Assert.assertEquals(1, repo.getMissCount());
+        Assert.assertEquals(2, repo.getHitCount());
+    }
+
+    @Test(timeout = 10000)
+    public void differentIdsNeverWaitForEachOther() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ByteArrayRepo slowDisk = new ByteArrayRepo(tempFolder.newFolder("slow")) {
+            @Override
+            public byte[] load(String id) {
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.load(id);
+            }
+        };
+        slowDisk.save("slow", new byte[]{1});
+        // an id which a striped lock would make wait for the slow one.
+        StripedLockProvider stripes = new StripedLockProvider();
+        String neighbour = null;
+        for (int i = 0; neighbour == null; i++) {
+            if (stripes.provideLock("id" + i) == stripes.provideLock("slow")) {
+                neighbour = "id" + i;
+            }
+        }
+
+        final CachingRepository<byte[]> repo = new CachingRepository<byte[]>(slowDisk, 10);
+        Thread loader = new Thread() {
+            @Override
+            public void run() {
+                repo.load("slow");
+            }
+        };
+        loader.setDaemon(true);
+        loader.start();
+        try {
+            loading.await();
+            repo.save(neighbour, new byte[]{2});
+            repo.delete(neighbour);
+        } finally {
+            release.countDown();
+        }
+        loader.join();
+    }
+
+    @Test
+    public void cachedValueIsReturnedEvenIfDiskChangesBehindTheCache() {
+        CachingRepository<byte[]> repo = new CachingRepository<byte[]>(diskRepo, 10);
+        repo.save("some", new byte[]{0xa});
+        repo.load("some");
+
+        diskRepo.update("some", new byte[]{0xb});
+        Assert.assertArrayEquals(new byte[]{0xa}, repo.load("some"));
+
+        repo.invalidate("some");
+        Assert.assertArrayEquals(new byte[]{0xb}, repo.load("some"));
+    }
+
+    @Test
+    public void writesInvalidateCachedValue() {
+        CachingRepository<byte[]> repo = new CachingRepository<byte[]>(diskRepo, 10);
+        repo.save("some", new byte[]{0xa});
+        repo.load("some");
+
+        repo.update("some", new byte[]{0xb});
+        Assert.assertArrayEquals(new byte[]{0xb}, repo.load("some"));
+
+        repo.saveOrUpdate("some", new byte[]{0xc});
+        Assert.assertArrayEquals(new byte[]{0xc}, repo.load("some"));
+
+        repo.modifyWhileLocking("some", new DoWhileLocking<byte[]>() {
+            @Override
+            public byte[] execute(byte[] data) {
+                return new byte[]{0xd};
+            }
+        });
+        Assert.assertArrayEquals(new byte[]{0xd}, repo.load("some"));
+    }
+
+    @Test(expected = UnknownResourceIdException.class)
+    public void deleteInvalidatesCachedValue() {
+        CachingRepository<byte[]> repo = new CachingRepository<byte[]>(diskRepo, 10);
+        repo.save("some", new byte[]{0xa});
+        repo.load("some");
+
+        repo.delete("some");
+        repo.load("some");
+    }
+
+    @Test
+    public void leastRecentlyUsedValueIsEvictedWhenFull() {
+        CachingRepository<byte[]> repo = new CachingRepository<byte[]>(diskRepo, 2);
+        repo.save("a", new byte[]{0xa});
+        repo.save("b", new byte[]{0xb});
+        repo.save("c", new byte[]{0xc});
+
+        repo.load("a");
+        repo.load("b");
+        repo.load("a");
+        repo.load("c");
+        Assert.assertEquals(1, repo.getEvictionCount());
+
+        repo.load("a");
+        Assert.assertEquals(2, repo.getHitCount());
+        repo.load("b");
+        Assert.assertEquals(2, repo.getHitCount());
+    }
+
+    @Test
+    public void weightBoundIsHonoured() {
+        CachingRepository<byte[]> repo = new CachingRepository<byte[]>(diskRepo, 4, new Weigher<byte[]>() {
+            @Override
+            public long weigh(String id, byte[] value) {
+                return value.length;
+            }
+        }, 0, TimeUnit.SECONDS);
+        repo.save("small", new byte[]{0xa});
+        repo.save("big", new byte[]{0xa, 0xb, 0xc, 0xd});
+        repo.save("huge", new byte[]{0xa, 0xb, 0xc, 0xd, 0xe});
+
+        repo.load("small");
+        repo.load("big");
+        Assert.assertEquals(1, repo.getEvictionCount());
+
+        repo.load("huge");
+        repo.load("huge");
+        Assert.assertEquals(0, repo.getHitCount());
+        Assert.assertTrue(Arrays.equals(new byte[]{0xa, 0xb, 0xc, 0xd}, repo.load("big")));
+        Assert.assertEquals(1, repo.getHitCount());
+    }
+
+    @Test
+    public void expiredValuesAreReloaded() throws Exception {
+        CachingRepository<byte[]> repo = new CachingRepository<byte[]>(diskRepo, 10, 1, TimeUnit.MILLISECONDS);
+        repo.save("some", new byte[]{0xa});
+        repo.load("some");
+
+        Thread.sleep(20);
+        repo.load("some");
+
+        Assert.assertEquals(2, repo.getMissCount());
+        Assert.assertEquals(1, repo.getEvictionCount());
+    }
+
+    @Test
+    public void batchInvalidatesEveryWrittenId() {
+        CachingRepository<byte[]> repo = new CachingRepository<byte[]>(diskRepo, 10);
+        repo.save("some", new byte[]{0xa});
+        repo.save("other", new byte[]{0xb});
+        repo.load("some");
+        repo.load("other");
+
+        repo.apply(new Batch<byte[]>().update("some", new byte[]{0xc}).delete("other"));
+
+        Assert.assertArrayEquals(new byte[]{0xc}, repo.load("some"));
+        try {
+            repo.load("other");
+            Assert.fail("other should be gone");
+        } catch (UnknownResourceIdException e) {
+            // expected.
+        }
+    }
+}
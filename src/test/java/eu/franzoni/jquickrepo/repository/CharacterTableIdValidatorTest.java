@@ -0,0 +1,74 @@
+package eu.franzoni.jquickrepo.repository;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+public class CharacterTableIdValidatorTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void defaultAcceptsWhatTheRegexDid() {
+        CharacterTableIdValidator.DEFAULT.validate("Some_id-0123456789");
+    }
+
+    @Test(expected = BadIdException.class)
+    public void defaultRefusesEmptyIds() {
+        CharacterTableIdValidator.DEFAULT.validate("");
+    }
+
+    @Test(expected = BadIdException.class)
+    public void defaultRefusesDots() {
+        CharacterTableIdValidator.DEFAULT.validate("some.id");
+    }
+
+    @Test(expected = BadIdException.class)
+    public void charactersPastTheTableAreRefused() {
+        CharacterTableIdValidator.DEFAULT.validate("café");
+    }
+
+    @Test
+    public void extendedCharactersCanBeAllowed() {
+        new CharacterTableIdValidator(CharacterTableIdValidator.DEFAULT_CHARACTERS + ".é").validate("café.txt");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void separatorsCantBeAllowed() {
+        new CharacterTableIdValidator("abc/");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void controlCharactersCantBeAllowed() {
+        new CharacterTableIdValidator("abc\n");
+    }
+
+    @Test
+    public void dotsCantMakeHiddenOrPartFiles() {
+        CharacterTableIdValidator validator = new CharacterTableIdValidator("abc.");
+        for (String id : new String[]{".", "..", ".abc", "abc.part"}) {
+            try {
+                validator.validate(id);
+                Assert.fail(id + " should have been refused");
+            } catch (BadIdException e) {
+                // expected.
+            }
+        }
+        validator.validate("a.b");
+    }
+
+    @Test
+    public void repositoryUsesTheGivenValidator() throws Exception {
+        File dir = this.tempFolder.newFolder("repo");
+        ByteArrayRepo repo = new ByteArrayRepo.Builder(dir).idValidator(new CharacterTableIdValidator(CharacterTableIdValidator.DEFAULT_CHARACTERS + ".")).build();
+
+        repo.save("report.2024", new byte[]{0x1});
+
+        Assert.assertArrayEquals(new byte[]{0x1}, repo.load("report.2024"));
+        Assert.assertTrue(new File(dir, "report.2024").isFile());
+    }
+}
@@ -0,0 +1,84 @@
+package eu.franzoni.jquickrepo.repository;
+
+import eu.franzoni.jquickrepo.concurrency.VirtualThreads;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ExecutorAsyncRepositoryTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private ExecutorService executor;
+    private ExecutorAsyncRepository<String> repo;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        repo = new ExecutorAsyncRepository<String>(new MarshallingRepository<String>(tempFolder.getRoot()), executor);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void manyOperationsCanBeInFlightAtOnce() throws Exception {
+        List<CompletableFuture<Void>> saves = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 100; i++) {
+            saves.add(repo.save("id" + i, "value" + i));
+        }
+        CompletableFuture.allOf(saves.toArray(new CompletableFuture[saves.size()])).get();
+
+        Assert.assertEquals("value42", repo.load("id42").get());
+        Assert.assertEquals(100, repo.loadAll().get().size());
+    }
+
+    @Test
+    public void modifyWhileLockingRunsOnTheExecutor() throws Exception {
+        repo.modifyWhileLocking("counter", new DoWhileLocking<String>() {
+            @Override
+            public String execute(String data) {
+                return data + "1";
+            }
+        }, "").get();
+
+        Assert.assertEquals("1", repo.load("counter").get());
+    }
+
+    @Test
+    public void failuresCompleteTheFutureExceptionally() throws Exception {
+        try {
+            repo.load("missing").get();
+            Assert.fail("load should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof UnknownResourceIdException);
+        }
+    }
+
+    @Test
+    public void virtualThreadsCanRunTheOperations() throws Exception {
+        Assume.assumeTrue(VirtualThreads.isAvailable());
+        ExecutorService virtualThreads = VirtualThreads.newVirtualThreadPerTaskExecutor();
+        try {
+            ExecutorAsyncRepository<String> virtualRepo = new ExecutorAsyncRepository<String>(repo.getRepository(), virtualThreads);
+            virtualRepo.save("some", "value").get();
+            Assert.assertEquals("value", virtualRepo.load("some").get());
+        } finally {
+            virtualThreads.shutdown();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package eu.franzoni.jquickrepo.repository;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class IdIndexTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dir;
+    private ByteArrayRepo repo;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tempFolder.newFolder("repo");
+        repo = new ByteArrayRepo(dir);
+    }
+
+    @Test
+    public void writesAreIndexed() {
+        repo.save("b", new byte[]{0x1});
+        repo.saveOrUpdate("a", new byte[]{0x2});
+        repo.apply(new Batch<byte[]>().save("c", new byte[]{0x3}).delete("b"));
+
+        Assert.assertEquals(Arrays.asList("a", "c"), repo.keys());
+        Assert.assertEquals(2, repo.size());
+        Assert.assertTrue(repo.exists("a"));
+        Assert.assertFalse(repo.exists("b"));
+    }
+
+    @Test
+    public void keysByPrefix() {
+        for (String id : new String[]{"user-2", "order-1", "user-1", "users", "use"}) {
+            repo.save(id, new byte[]{0x1});
+        }
+
+        Assert.assertEquals(Arrays.asList("user-1", "user-2", "users"), repo.keys("user"));
+        Assert.assertEquals(Collections.<String>emptyList(), repo.keys("zzz"));
+    }
+
+    @Test
+    public void failedWritesAreNotIndexed() {
+        try {
+            repo.update("missing", new byte[]{0x1});
+            Assert.fail("there's nothing to update");
+        } catch (MissingIdException e) {
+            // expected.
+        }
+
+        Assert.assertEquals(0, repo.size());
+    }
+
+    @Test
+    public void existingEntriesAreFoundWhenOpening() {
+        repo.save("a", new byte[]{0x1});
+
+        Assert.assertEquals(Arrays.asList("a"), new ByteArrayRepo(dir).keys());
+    }
+
+    @Test
+    public void idsAreReadBackAfterClosing() throws Exception {
+        repo.save("a", new byte[]{0x1});
+        repo.close();
+        // not seen, as the directory isn't listed.
+        Assert.assertTrue(new File(dir, "behind-its-back").createNewFile());
+
+        ByteArrayRepo reopened = new ByteArrayRepo(dir);
+        Assert.assertEquals(Arrays.asList("a"), reopened.keys());
+        Assert.assertFalse(new File(dir, IdIndex.SNAPSHOT).exists());
+    }
+
+    @Test
+    public void idsAreListedAgainAfterACrash() throws Exception {
+        repo.save("a", new byte[]{0x1});
+        repo.close();
+        new ByteArrayRepo(dir).save("b", new byte[]{0x2});
+        // never closed, as if the process died.
+
+        Assert.assertEquals(Arrays.asList("a", "b"), new ByteArrayRepo(dir).keys());
+    }
+
+    @Test
+    public void writesAfterClosingDropTheSnapshot() {
+        repo.close();
+        repo.save("a", new byte[]{0x1});
+
+        Assert.assertFalse(new File(dir, IdIndex.SNAPSHOT).exists());
+        Assert.assertEquals(Arrays.asList("a"), new ByteArrayRepo(dir).keys());
+    }
+
+    @Test
+    public void repositoriesOpenTogetherLeaveNoSnapshot() {
+        ByteArrayRepo other = new ByteArrayRepo(dir);
+        repo.save("a", new byte[]{0x1});
+        repo.close();
+        other.save("b", new byte[]{0x2});
+        other.close();
+
+        Assert.assertFalse(new File(dir, IdIndex.SNAPSHOT).exists());
+        Assert.assertEquals(Arrays.asList("a", "b"), new ByteArrayRepo(dir).keys());
+    }
+
+    @Test
+    public void corruptSnapshotIsIgnored() throws Exception {
+        repo.save("a", new byte[]{0x1});
+        repo.close();
+        RandomAccessFile snapshot = new RandomAccessFile(new File(dir, IdIndex.SNAPSHOT), "rw");
+        try {
+            snapshot.seek(14);
+            snapshot.write('z');
+        } finally {
+            snapshot.close();
+        }
+
+        Assert.assertEquals(Arrays.asList("a"), new ByteArrayRepo(dir).keys());
+    }
+}
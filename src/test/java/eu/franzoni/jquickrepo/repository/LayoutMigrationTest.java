@@ -0,0 +1,134 @@
+package eu.franzoni.jquickrepo.repository;
+
+import com.google.common.collect.Sets;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+public class LayoutMigrationTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tempFolder.newFolder("repo");
+        ByteArrayRepo flat = new ByteArrayRepo(dir);
+        for (int i = 0; i < 100; i++) {
+            flat.save("id" + i, new byte[]{(byte) i});
+        }
+    }
+
+    @Test
+    public void flatToShardedAndBack() throws Exception {
+        Assert.assertEquals(100, LayoutMigration.migrate(dir, new ShardedLayout(2)));
+        assertAllThere(new ByteArrayRepo.Builder(dir).layout(new ShardedLayout(2)).build());
+
+        Assert.assertEquals(100, LayoutMigration.migrate(dir, Layout.FLAT));
+        assertAllThere(new ByteArrayRepo(dir));
+        // no marker nor shards left.
+        Assert.assertEquals(100, ByteArrayRepoTest.entryNames(dir).size());
+        Assert.assertFalse(new File(dir, Layout.MARKER).exists());
+    }
+
+    @Test
+    public void betweenShardings() throws Exception {
+        LayoutMigration.migrate(dir, new ShardedLayout(1));
+        LayoutMigration.migrate(dir, new ShardedLayout(3));
+
+        assertAllThere(new ByteArrayRepo.Builder(dir).layout(new ShardedLayout(3)).build());
+    }
+
+    @Test
+    public void nothingToDoForTheSameLayout() {
+        Assert.assertEquals(0, LayoutMigration.migrate(dir, Layout.FLAT));
+    }
+
+    @Test
+    public void interruptedMigrationIsResumed() throws Exception {
+        // as if the first entry had been moved before stopping.
+        File shard = new ShardedLayout(2).directoryOf(dir.toPath(), "id0").toFile();
+        Assert.assertTrue(shard.mkdirs());
+        Assert.assertTrue(new File(dir, "id0").renameTo(new File(shard, "id0")));
+
+        Assert.assertEquals(99, LayoutMigration.migrate(dir, new ShardedLayout(2)));
+        assertAllThere(new ByteArrayRepo.Builder(dir).layout(new ShardedLayout(2)).build());
+    }
+
+    @Test
+    public void partFilesAreDropped() throws Exception {
+        Assert.assertTrue(new File(dir, "abandoned.part").createNewFile());
+
+        LayoutMigration.migrate(dir, new ShardedLayout(1));
+
+        Assert.assertFalse(new File(dir, "abandoned.part").exists());
+        Assert.assertFalse(Sets.newHashSet(dir.list()).contains("abandoned"));
+    }
+
+    @Test
+    public void entriesNamedLikeShardsAreMovedAside() throws Exception {
+        File hexDir = tempFolder.newFolder("hex");
+        ByteArrayRepo flat = new ByteArrayRepo(hexDir);
+        Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < 256; i++) {
+            String id = String.format("%02x", i);
+            flat.save(id, id.getBytes("UTF-8"));
+            expected.add(id);
+        }
+        for (int i = 0; i < 2000; i++) {
+            flat.save("id" + i, ("id" + i).getBytes("UTF-8"));
+            expected.add("id" + i);
+        }
+
+        Assert.assertEquals(expected.size(), LayoutMigration.migrate(hexDir, new ShardedLayout(1)));
+        assertHolds(new ByteArrayRepo.Builder(hexDir).layout(new ShardedLayout(1)).build(), expected);
+        // the entries named like the second level shards are in the way, then the other way round.
+        LayoutMigration.migrate(hexDir, new ShardedLayout(2));
+        assertHolds(new ByteArrayRepo.Builder(hexDir).layout(new ShardedLayout(2)).build(), expected);
+        LayoutMigration.migrate(hexDir, new ShardedLayout(1));
+        assertHolds(new ByteArrayRepo.Builder(hexDir).layout(new ShardedLayout(1)).build(), expected);
+        LayoutMigration.migrate(hexDir, Layout.FLAT);
+        assertHolds(new ByteArrayRepo(hexDir), expected);
+        Assert.assertFalse(new File(hexDir, LayoutMigration.STAGING).exists());
+    }
+
+    @Test
+    public void entriesMovedAsideAreResumed() throws Exception {
+        File hexDir = tempFolder.newFolder("hex");
+        new ByteArrayRepo(hexDir).save("4c", new byte[]{1});
+        // as if stopped right after moving it aside.
+        File staging = new File(hexDir, LayoutMigration.STAGING);
+        Assert.assertTrue(staging.mkdir());
+        Assert.assertTrue(new File(hexDir, "4c").renameTo(new File(staging, "4c")));
+
+        Assert.assertEquals(1, LayoutMigration.migrate(hexDir, new ShardedLayout(1)));
+        Assert.assertArrayEquals(new byte[]{1}, new ByteArrayRepo.Builder(hexDir).layout(new ShardedLayout(1)).build().load("4c"));
+        Assert.assertFalse(staging.exists());
+    }
+
+    private static void assertHolds(ByteArrayRepo repo, Set<String> expected) throws Exception {
+        Set<String> ids = new HashSet<String>();
+        for (Entry<byte[]> entry : repo.loadAll()) {
+            ids.add(entry.getId());
+            Assert.assertEquals(entry.getId(), new String(entry.getContent(), "UTF-8"));
+        }
+        Assert.assertEquals(expected, ids);
+    }
+
+    private static void assertAllThere(ByteArrayRepo repo) {
+        Set<String> ids = new HashSet<String>();
+        for (Entry<byte[]> entry : repo.loadAll()) {
+            ids.add(entry.getId());
+            Assert.assertArrayEquals(new byte[]{(byte) Integer.parseInt(entry.getId().substring(2))}, entry.getContent());
+        }
+        Assert.assertEquals(100, ids.size());
+    }
+}
@@ -0,0 +1,261 @@
+package eu.franzoni.jquickrepo.repository;
+
+
+import eu.franzoni.jquickrepo.concurrency.MultipleResourceLock;
+import eu.franzoni.jquickrepo.metrics.ContentionTrackingLockProvider;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+
+public class LogStructuredRepoTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File myTempDir;
+    private LogStructuredRepo repo;
+
+    @Before
+    public void setUp() throws Exception {
+        myTempDir = tempFolder.newFolder("temp");
+        repo = openRepo(1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        repo.close();
+    }
+
+    private LogStructuredRepo openRepo(long maxSegmentSize) {
+        return new LogStructuredRepo(myTempDir, maxSegmentSize, 0.5, 0, TimeUnit.SECONDS, new MultipleResourceLock());
+    }
+
+    private void reopen() throws Exception {
+        repo.close();
+        repo = openRepo(1024);
+    }
+
+    @Test
+    public void testSavedDataCanBeLoaded() {
+        this.repo.save("something", new byte[]{0xa, 0xb});
+        Assert.assertArrayEquals(new byte[]{0xa, 0xb}, this.repo.load("something"));
+    }
+
+    @Test(expected = DuplicateResourceIdException.class)
+    public void testSaveThrowsExceptionIfIdExists() {
+        this.repo.save("something", new byte[]{0xa});
+        this.repo.save("something", new byte[]{0xb});
+    }
+
+    @Test(expected = MissingIdException.class)
+    public void testUpdateThrowsExceptionIfIdIsMissing() {
+        this.repo.update("something", new byte[]{0xa});
+    }
+
+    @Test
+    public void keysComeFromTheIndex() throws Exception {
+        this.repo.save("user-2", new byte[]{0xa});
+        this.repo.save("user-1", new byte[]{0xb});
+        this.repo.save("order-1", new byte[]{0xc});
+        this.repo.delete("user-2");
+        reopen();
+
+        Assert.assertEquals(Arrays.asList("order-1", "user-1"), this.repo.keys());
+        Assert.assertEquals(Arrays.asList("user-1"), this.repo.keys("user"));
+        Assert.assertTrue(this.repo.exists("order-1"));
+        Assert.assertFalse(this.repo.exists("user-2"));
+        Assert.assertEquals(2, this.repo.size());
+    }
+
+    @Test(expected = UnknownResourceIdException.class)
+    public void testDeletedIdCannotBeLoaded() {
+        this.repo.save("something", new byte[]{0xa});
+        this.repo.delete("something");
+        this.repo.load("something");
+    }
+
+    @Test(expected = BadIdException.class)
+    public void testInvalidIdIsRejected() {
+        this.repo.save("../something", new byte[]{0xa});
+    }
+
+    @Test
+    public void testModifyWhileLockingUsesMissingValue() {
+        this.repo.modifyWhileLocking("counter", new DoWhileLocking<byte[]>() {
+            @Override
+            public byte[] execute(byte[] data) {
+                return new byte[]{(byte) (data[0] + 1)};
+            }
+        }, new byte[]{41});
+        Assert.assertArrayEquals(new byte[]{42}, this.repo.load("counter"));
+    }
+
+    @Test
+    public void testEntriesSurviveReopen() throws Exception {
+        this.repo.save("kept", new byte[]{0x1});
+        this.repo.save("updated", new byte[]{0x2});
+        this.repo.update("updated", new byte[]{0x3});
+        this.repo.save("deleted", new byte[]{0x4});
+        this.repo.delete("deleted");
+
+        reopen();
+
+        Assert.assertArrayEquals(new byte[]{0x1}, this.repo.load("kept"));
+        Assert.assertArrayEquals(new byte[]{0x3}, this.repo.load("updated"));
+        Assert.assertEquals(2, this.repo.loadAll().size());
+    }
+
+    @Test
+    public void testTornRecordIsDiscardedOnReopen() throws Exception {
+        this.repo.save("complete", new byte[]{0x1, 0x2});
+        this.repo.save("torn", new byte[100]);
+        this.repo.close();
+
+        File segment = new File(this.myTempDir, "segment-0000000001.log");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+
+        this.repo = openRepo(1024);
+        Assert.assertArrayEquals(new byte[]{0x1, 0x2}, this.repo.load("complete"));
+        Assert.assertEquals(1, this.repo.loadAll().size());
+
+        this.repo.save("torn", new byte[]{0x3});
+        reopen();
+        Assert.assertArrayEquals(new byte[]{0x3}, this.repo.load("torn"));
+    }
+
+    @Test
+    public void testCompactionReclaimsOverwrittenSegments() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            this.repo.saveOrUpdate("entry", new byte[100]);
+        }
+        this.repo.saveOrUpdate("entry", new byte[]{0x7});
+        int before = this.repo.segmentCount();
+
+        this.repo.compact();
+
+        Assert.assertTrue(this.repo.segmentCount() < before);
+        Assert.assertArrayEquals(new byte[]{0x7}, this.repo.load("entry"));
+        reopen();
+        Assert.assertArrayEquals(new byte[]{0x7}, this.repo.load("entry"));
+    }
+
+    @Test
+    public void testDeletesSurviveCompactionAndReopen() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            this.repo.save("entry" + i, new byte[100]);
+        }
+        for (int i = 0; i < 20; i += 2) {
+            this.repo.delete("entry" + i);
+        }
+        for (int i = 0; i < 20; i++) {
+            this.repo.saveOrUpdate("filler", new byte[100]);
+        }
+
+        this.repo.compact();
+        reopen();
+
+        Set<String> ids = new HashSet<String>();
+        for (Entry<byte[]> entry : this.repo.loadAll()) {
+            ids.add(entry.getId());
+        }
+        Set<String> expected = new HashSet<String>();
+        for (int i = 1; i < 20; i += 2) {
+            expected.add("entry" + i);
+        }
+        expected.add("filler");
+        Assert.assertEquals(expected, ids);
+    }
+
+    @Test
+    public void testBatchSurvivesReopen() throws Exception {
+        this.repo.save("deleted", new byte[]{0x1});
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        for (int i = 0; i < 30; i++) {
+            entries.put("entry" + i, new byte[]{(byte) i});
+        }
+        this.repo.apply(new Batch<byte[]>().saveAll(entries).delete("deleted"));
+
+        reopen();
+
+        Assert.assertEquals(30, this.repo.loadAll().size());
+        Assert.assertArrayEquals(new byte[]{0x7}, this.repo.load("entry7"));
+    }
+
+    @Test(expected = MissingIdException.class)
+    public void testFailingBatchWritesNothing() throws Exception {
+        try {
+            this.repo.apply(new Batch<byte[]>().save("new", new byte[]{0x1}).update("missing", new byte[]{0x2}));
+        } finally {
+            Assert.assertEquals(0, this.repo.loadAll().size());
+        }
+    }
+    @Test
+    public void versionedUpdatesSeeEveryWrite() {
+        this.repo.save("some", new byte[]{0x1});
+        Entry<byte[]> loaded = this.repo.loadEntry("some");
+
+        long updated = this.repo.update("some", new byte[]{0x2}, loaded.getVersion());
+        Assert.assertEquals(updated, this.repo.loadEntry("some").getVersion());
+        Assert.assertFalse(this.repo.compareAndSet("some", loaded.getVersion(), new byte[]{0x3}));
+        Assert.assertTrue(this.repo.compareAndSet("some", updated, new byte[]{0x3}));
+        Assert.assertArrayEquals(new byte[]{0x3}, this.repo.load("some"));
+    }
+
+    @Test
+    public void entriesAreGuardedByTheGivenLocks() throws Exception {
+        ContentionTrackingLockProvider locks = new ContentionTrackingLockProvider(new MultipleResourceLock());
+        LogStructuredRepo tracked = new LogStructuredRepo(tempFolder.newFolder("tracked"), locks);
+        try {
+            tracked.save("some", new byte[]{0x1});
+            tracked.load("some");
+            Assert.assertEquals(2, locks.getAcquisitionCount());
+        } finally {
+            tracked.close();
+        }
+    }
+
+    @Test
+    public void compactionKeepsVersions() throws Exception {
+        this.repo.save("stable", new byte[]{0x1});
+        long version = this.repo.loadEntry("stable").getVersion();
+        for (int i = 0; i < 50; i++) {
+            this.repo.saveOrUpdate("filler", new byte[100]);
+        }
+
+        this.repo.compact();
+        // the record of the entry was moved.
+        Assert.assertFalse(new File(this.myTempDir, "segment-0000000001.log").exists());
+        Assert.assertEquals(version, this.repo.loadEntry("stable").getVersion());
+        reopen();
+        Assert.assertEquals(version, this.repo.loadEntry("stable").getVersion());
+        Assert.assertTrue(this.repo.compareAndSet("stable", version, new byte[]{0x2}));
+    }
+
+    @Test
+    public void versionsKeepGrowingAcrossReopens() throws Exception {
+        this.repo.save("some", new byte[]{0x1});
+        long before = this.repo.loadEntry("some").getVersion();
+        this.repo.delete("some");
+        reopen();
+
+        this.repo.save("some", new byte[]{0x1});
+        Assert.assertTrue(this.repo.loadEntry("some").getVersion() > before);
+    }
+
+    @Test(expected = VersionConflictException.class)
+    public void recreatedEntryHasANewVersion() {
+        this.repo.save("some", new byte[]{0x1});
+        long version = this.repo.loadEntry("some").getVersion();
+        this.repo.delete("some");
+        this.repo.save("some", new byte[]{0x1});
+
+        this.repo.update("some", new byte[]{0x2}, version);
+    }
+}
@@ -1,16 +1,30 @@
 package eu.franzoni.jquickrepo.repository;
 
 import com.google.common.collect.Sets;
+import eu.franzoni.jquickrepo.metrics.RepositoryMetrics;
+import eu.franzoni.jquickrepo.serialization.CompressingSerializer;
+import eu.franzoni.jquickrepo.serialization.JavaSerializer;
+import eu.franzoni.jquickrepo.serialization.SerializationException;
+import eu.franzoni.jquickrepo.serialization.XStreamSerializer;
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MarshallingRepositoryTest {
 
@@ -90,4 +104,201 @@ public class MarshallingRepositoryTest {
         assertEquals(expected, loaded);
 
     }
+
+    @Test
+    public void iterateAllInParallelUnmarshalsEveryEntry() {
+        MarshallingRepository<String> repo = new MarshallingRepository<String>(tempFolder.getRoot());
+        repo.save("1", "a");
+        repo.save("2", "b");
+        repo.save("3", "c");
+        final Set<Entry<String>> expected = new HashSet<Entry<String>>();
+        expected.add(new Entry<String>("1", "a"));
+        expected.add(new Entry<String>("2", "b"));
+        expected.add(new Entry<String>("3", "c"));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Set<Entry<String>> loaded = new HashSet<Entry<String>>();
+            final Iterator<Entry<String>> iterator = repo.iterateAll(executor, 2);
+            while (iterator.hasNext()) {
+                loaded.add(iterator.next());
+            }
+            assertEquals(expected, loaded);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void cachedObjectsAreCopiedOnLoad() {
+        MarshallingRepository<List<String>> repo = new MarshallingRepository<List<String>>(tempFolder.getRoot(), 1024 * 1024, new Copier<List<String>>() {
+            @Override
+            public List<String> copy(List<String> original) {
+                return new ArrayList<String>(original);
+            }
+        });
+        List<String> data = new ArrayList<String>();
+        data.add("ciao");
+        repo.save("something", data);
+
+        repo.load("something").add("mamma");
+        Assert.assertEquals(data, repo.load("something"));
+    }
+
+    @Test
+    public void writesInvalidateCachedObjects() {
+        MarshallingRepository<String> repo = new MarshallingRepository<String>(tempFolder.getRoot(), 1024 * 1024, new Copier<String>() {
+            @Override
+            public String copy(String original) {
+                return original;
+            }
+        });
+        repo.save("1", "a");
+        assertEquals("a", repo.load("1"));
+
+        // same size, and likely the same modification time: only the explicit invalidation can tell.
+        repo.update("1", "b");
+        assertEquals("b", repo.load("1"));
+
+        repo.modifyWhileLocking("1", new DoWhileLocking<String>() {
+            @Override
+            public String execute(String data) {
+                return "c";
+            }
+        });
+        assertEquals("c", repo.load("1"));
+    }
+
+    @Test
+    public void cachedObjectsCanBeWeighedByTheCaller() {
+        Copier<String> sharing = new Copier<String>() {
+            @Override
+            public String copy(String original) {
+                return original;
+            }
+        };
+        MarshallingRepository<String> repo = new MarshallingRepository<String>(new ByteArrayRepo(tempFolder.getRoot()), new JavaSerializer<String>(), 1500, sharing, new Weigher<String>() {
+            @Override
+            public long weigh(String id, String value) {
+                return 1000;
+            }
+        });
+        RepositoryMetrics metrics = new RepositoryMetrics();
+        repo.setMetricsListener(metrics);
+        repo.save("1", "a");
+        repo.save("2", "b");
+
+        repo.load("1");
+        repo.load("2");
+        // pushed out by the second one, it has to be read again.
+        repo.load("1");
+        assertEquals(3, metrics.getUnmarshallingLatency().getCount());
+    }
+
+    @Test
+    public void changesMadeBehindTheRepositoryAreNoticed() {
+        final int[] copies = new int[1];
+        MarshallingRepository<String> repo = new MarshallingRepository<String>(tempFolder.getRoot(), 1024 * 1024, new Copier<String>() {
+            @Override
+            public String copy(String original) {
+                copies[0]++;
+                return original;
+            }
+        });
+        repo.save("1", "a");
+        assertEquals("a", repo.load("1"));
+        assertEquals("a", repo.load("1"));
+        assertEquals(2, copies[0]);
+
+        new MarshallingRepository<String>(tempFolder.getRoot()).update("1", "something longer");
+        assertEquals("something longer", repo.load("1"));
+    }
+
+    @Test
+    public void serializerIsPluggable() {
+        MarshallingRepository<String> repo = new MarshallingRepository<String>(tempFolder.getRoot(), new JavaSerializer<String>());
+        repo.save("1", "a");
+        assertEquals("a", repo.load("1"));
+    }
+
+    @Test
+    public void failedMarshallingDoesntBlockLaterWrites() {
+        MarshallingRepository<String> repo = new MarshallingRepository<String>(tempFolder.getRoot(), new JavaSerializer<String>() {
+            @Override
+            public void serialize(String obj, OutputStream out) throws IOException {
+                if ("bad".equals(obj)) {
+                    out.write(1);
+                    throw new SerializationException("can't marshal this");
+                }
+                super.serialize(obj, out);
+            }
+        });
+        try {
+            repo.save("1", "bad");
+            fail("must not be saved");
+        } catch (SerializationException e) {
+            // expected
+        }
+        assertEquals(0, tempFolder.getRoot().list().length);
+
+        repo.save("1", "good");
+        assertEquals("good", repo.load("1"));
+    }
+
+    @Test
+    public void batchIsSerializedOnTheExecutor() {
+        MarshallingRepository<String> repo = new MarshallingRepository<String>(tempFolder.getRoot(), 1024 * 1024, new Copier<String>() {
+            @Override
+            public String copy(String original) {
+                return original;
+            }
+        });
+        repo.save("cached", "old");
+        repo.load("cached");
+
+        Map<String, String> entries = new HashMap<String, String>();
+        for (int i = 0; i < 50; i++) {
+            entries.put("id" + i, "value" + i);
+        }
+        entries.put("cached", "new");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            repo.apply(new Batch<String>().saveOrUpdateAll(entries), executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            assertEquals(entry.getValue(), repo.load(entry.getKey()));
+        }
+    }
+    @Test
+    public void versionedUpdateUnmarshallsWithItsVersion() {
+        MarshallingRepository<List<String>> repo = new MarshallingRepository<List<String>>(tempFolder.getRoot());
+        repo.save("something", new ArrayList<String>(Arrays.asList("a")));
+
+        Entry<List<String>> loaded = repo.loadEntry("something");
+        assertEquals(Arrays.asList("a"), loaded.getContent());
+        long updated = repo.update("something", new ArrayList<String>(Arrays.asList("b")), loaded.getVersion());
+
+        assertFalse(repo.compareAndSet("something", loaded.getVersion(), new ArrayList<String>(Arrays.asList("c"))));
+        assertEquals(updated, repo.loadEntry("something").getVersion());
+        assertEquals(Arrays.asList("b"), repo.load("something"));
+    }
+    @Test
+    public void compressionCanBeEnabledOnAnExistingRepository() {
+        List<String> data = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            data.add("element " + i);
+        }
+        new MarshallingRepository<List<String>>(tempFolder.getRoot()).save("plain", data);
+
+        MarshallingRepository<List<String>> repo = new MarshallingRepository<List<String>>(tempFolder.getRoot(), new CompressingSerializer<List<String>>(new XStreamSerializer<List<String>>()));
+        repo.save("compressed", data);
+
+        assertEquals(data, repo.load("plain"));
+        assertEquals(data, repo.load("compressed"));
+        assertTrue(new File(tempFolder.getRoot(), "compressed").length() * 5 < new File(tempFolder.getRoot(), "plain").length());
+    }
 }
@@ -0,0 +1,126 @@
+package eu.franzoni.jquickrepo.repository;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class PartFileRecoveryTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tempFolder.newFolder("repo");
+    }
+
+    private static void leavePartFile(File file, int size) throws Exception {
+        Files.write(file.toPath(), new byte[size]);
+    }
+
+    @Test
+    public void leftoverPartFilesDontBlockWrites() throws Exception {
+        // as if earlier processes had died while writing the id, under old and new names.
+        leavePartFile(new File(dir, "a.part"), 1);
+        leavePartFile(new File(dir, "a.1.part"), 1);
+        ByteArrayRepo repo = new ByteArrayRepo(dir);
+
+        repo.save("a", new byte[]{1});
+        repo.update("a", new byte[]{2});
+        Assert.assertArrayEquals(new byte[]{2}, repo.load("a"));
+        Assert.assertEquals(1, repo.loadAll().size());
+    }
+
+    @Test
+    public void partFilesAreDeleted() throws Exception {
+        ByteArrayRepo repo = new ByteArrayRepo(dir);
+        repo.save("a", new byte[]{1});
+        repo.save("b", new byte[]{2});
+        leavePartFile(new File(dir, "a.5.part"), 10);
+        leavePartFile(new File(dir, "c.part"), 20);
+        leavePartFile(new File(dir, ".hidden.part"), 1);
+
+        PartFileRecovery.Report report = PartFileRecovery.recover(dir, null);
+
+        Assert.assertEquals(2, report.getRecovered());
+        Assert.assertEquals(30, report.getBytes());
+        Assert.assertEquals(1, report.getPartitions());
+        Assert.assertTrue(report.getScanned() >= 4);
+        Assert.assertFalse(report.isQuarantined());
+        Assert.assertFalse(new File(dir, "a.5.part").exists());
+        Assert.assertFalse(new File(dir, "c.part").exists());
+        Assert.assertTrue(new File(dir, ".hidden.part").exists());
+        Assert.assertArrayEquals(new byte[]{1}, new ByteArrayRepo(dir).load("a"));
+
+        Assert.assertEquals(0, PartFileRecovery.recover(dir, null).getRecovered());
+    }
+
+    @Test
+    public void partFilesCanBeRecoveredWhenOpening() throws Exception {
+        new ByteArrayRepo(dir).save("a", new byte[]{1});
+        leavePartFile(new File(dir, "a.5.part"), 10);
+        Assert.assertNull(new ByteArrayRepo(dir).getRecoveryReport());
+        Assert.assertTrue(new File(dir, "a.5.part").exists());
+
+        ByteArrayRepo repo = new ByteArrayRepo.Builder(dir).recoverPartFiles(null).build();
+
+        Assert.assertEquals(1, repo.getRecoveryReport().getRecovered());
+        Assert.assertEquals(10, repo.getRecoveryReport().getBytes());
+        Assert.assertFalse(new File(dir, "a.5.part").exists());
+        Assert.assertArrayEquals(new byte[]{1}, repo.load("a"));
+    }
+
+    @Test
+    public void shardsAreRecoveredInParallel() throws Exception {
+        ShardedLayout layout = new ShardedLayout(2);
+        ByteArrayRepo repo = new ByteArrayRepo.Builder(dir).layout(layout).build();
+        for (int i = 0; i < 50; i++) {
+            String id = "id" + i;
+            repo.save(id, new byte[]{(byte) i});
+            leavePartFile(layout.directoryOf(dir.toPath(), id).resolve(id + ".1.part").toFile(), 1);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        PartFileRecovery.Report report;
+        try {
+            report = PartFileRecovery.recover(dir, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals(50, report.getRecovered());
+        Assert.assertEquals(100, report.getScanned());
+        Assert.assertTrue(report.getPartitions() > 1);
+        Assert.assertEquals(50, new ByteArrayRepo.Builder(dir).layout(layout).build().loadAll().size());
+    }
+
+    @Test
+    public void partFilesCanBeQuarantined() throws Exception {
+        File quarantine = new File(dir, ".quarantine");
+        leavePartFile(new File(dir, "a.part"), 3);
+        PartFileRecovery.recover(dir, quarantine, null);
+        leavePartFile(new File(dir, "a.part"), 4);
+
+        PartFileRecovery.Report report = PartFileRecovery.recover(dir, quarantine, null);
+
+        Assert.assertTrue(report.isQuarantined());
+        Assert.assertEquals(1, report.getRecovered());
+        Assert.assertEquals(3, new File(quarantine, "a.part").length());
+        Assert.assertEquals(4, new File(quarantine, "a.part.1").length());
+        Assert.assertEquals(0, new ByteArrayRepo(dir).loadAll().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void quarantineInTheRepositoryMustBeHidden() {
+        PartFileRecovery.recover(dir, new File(dir, "quarantine"), null);
+    }
+}
@@ -0,0 +1,105 @@
+package eu.franzoni.jquickrepo.repository;
+
+import com.google.common.collect.Sets;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ShardedLayoutTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dir;
+    private ByteArrayRepo repo;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tempFolder.newFolder("sharded");
+        repo = new ByteArrayRepo.Builder(dir).layout(new ShardedLayout(2)).build();
+    }
+
+    @Test
+    public void entriesGoTwoLevelsDown() {
+        repo.save("some", new byte[]{0x1});
+
+        File entry = new ShardedLayout(2).directoryOf(dir.toPath(), "some").resolve("some").toFile();
+        Assert.assertTrue(entry.isFile());
+        Assert.assertEquals(dir, entry.getParentFile().getParentFile().getParentFile());
+        Assert.assertArrayEquals(new byte[]{0x1}, repo.load("some"));
+    }
+
+    @Test
+    public void everyOperationWorksAcrossShards() {
+        for (int i = 0; i < 200; i++) {
+            repo.save("id" + i, new byte[]{(byte) i});
+        }
+        repo.update("id1", new byte[]{0x7});
+        repo.delete("id2");
+
+        Assert.assertArrayEquals(new byte[]{0x7}, repo.load("id1"));
+        Assert.assertEquals(199, repo.loadAll().size());
+    }
+
+    @Test
+    public void loadAllWalksTheShardsInParallel() {
+        Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < 200; i++) {
+            repo.save("id" + i, new byte[]{(byte) i});
+            expected.add("id" + i);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Set<String> ids = new HashSet<String>();
+            for (Entry<byte[]> entry : repo.loadAll(executor)) {
+                ids.add(entry.getId());
+            }
+            Assert.assertEquals(expected, ids);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void theSameIdAlwaysGoesToTheSameShard() {
+        Assert.assertEquals(new ShardedLayout(3).directoryOf(dir.toPath(), "some-id"), new ShardedLayout(3).directoryOf(dir.toPath(), "some-id"));
+    }
+
+    @Test
+    public void layoutIsRecorded() throws Exception {
+        Assert.assertEquals(Sets.newHashSet(Layout.MARKER), Sets.newHashSet(dir.list()));
+        Assert.assertEquals(new ShardedLayout(2), Layout.read(dir.toPath()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anotherLayoutIsRefused() {
+        new ByteArrayRepo.Builder(dir).layout(new ShardedLayout(1)).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void flatIsRefusedOnceSharded() {
+        new ByteArrayRepo(dir);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void flatRepositoryWithEntriesNeedsMigrating() throws Exception {
+        File flat = tempFolder.newFolder("flat");
+        new ByteArrayRepo(flat).save("some", new byte[]{0x1});
+
+        new ByteArrayRepo.Builder(flat).layout(new ShardedLayout(2)).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void levelsAreBounded() {
+        new ShardedLayout(ShardedLayout.MAX_LEVELS + 1);
+    }
+}
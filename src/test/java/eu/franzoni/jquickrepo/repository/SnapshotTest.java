@@ -0,0 +1,216 @@
+package eu.franzoni.jquickrepo.repository;
+
+import eu.franzoni.jquickrepo.serialization.XStreamSerializer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SnapshotTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dir;
+    private ByteArrayRepo repo;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tempFolder.newFolder("repo");
+        repo = new ByteArrayRepo(dir);
+    }
+
+    private int keptVersions() {
+        String[] kept = new File(dir, VersionHistory.DIRECTORY).list();
+        return kept == null ? 0 : kept.length;
+    }
+
+    private static Map<String, Byte> contents(Snapshot<byte[]> snapshot) {
+        Map<String, Byte> contents = new HashMap<String, Byte>();
+        for (Entry<byte[]> entry : snapshot.loadAll()) {
+            contents.put(entry.getId(), entry.getContent()[0]);
+        }
+        return contents;
+    }
+
+    @Test
+    public void snapshotIgnoresLaterWrites() {
+        repo.save("a", new byte[]{0x1});
+        repo.save("b", new byte[]{0x2});
+        Snapshot<byte[]> snapshot = repo.snapshot();
+
+        repo.update("a", new byte[]{0x3});
+        repo.delete("b");
+        repo.save("c", new byte[]{0x4});
+
+        Assert.assertEquals(Arrays.asList("a", "b"), snapshot.keys());
+        Assert.assertArrayEquals(new byte[]{0x1}, snapshot.load("a"));
+        Assert.assertArrayEquals(new byte[]{0x2}, snapshot.load("b"));
+        Assert.assertEquals(Arrays.asList("a", "c"), repo.keys());
+        Assert.assertArrayEquals(new byte[]{0x3}, repo.load("a"));
+    }
+
+    @Test(expected = UnknownResourceIdException.class)
+    public void entriesCreatedLaterAreNotInTheSnapshot() {
+        Snapshot<byte[]> snapshot = repo.snapshot();
+        repo.save("a", new byte[]{0x1});
+
+        snapshot.load("a");
+    }
+
+    @Test
+    public void closingTheSnapshotDropsWhatItKept() {
+        repo.save("a", new byte[]{0x1});
+        repo.save("b", new byte[]{0x2});
+        Snapshot<byte[]> snapshot = repo.snapshot();
+        repo.update("a", new byte[]{0x3});
+        repo.update("a", new byte[]{0x4});
+        repo.delete("b");
+        // only the versions the snapshot needs.
+        Assert.assertEquals(2, keptVersions());
+
+        snapshot.close();
+
+        Assert.assertEquals(0, keptVersions());
+        Assert.assertArrayEquals(new byte[]{0x4}, repo.load("a"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedSnapshotCantBeRead() {
+        Snapshot<byte[]> snapshot = repo.snapshot();
+        snapshot.close();
+
+        snapshot.keys();
+    }
+
+    @Test
+    public void noHistoryWithoutSnapshotsOrRetention() {
+        repo.save("a", new byte[]{0x1});
+        long version = repo.loadEntry("a").getVersion();
+        repo.update("a", new byte[]{0x2});
+
+        Assert.assertEquals(0, keptVersions());
+        try {
+            repo.load("a", version);
+            Assert.fail("superseded versions aren't kept");
+        } catch (UnknownResourceIdException e) {
+            // expected.
+        }
+    }
+
+    @Test
+    public void retainedVersionsCanBeLoaded() {
+        ByteArrayRepo retaining = new ByteArrayRepo.Builder(dir).retainedVersions(2).build();
+        long[] versions = new long[4];
+        retaining.save("a", new byte[]{0});
+        versions[0] = retaining.loadEntry("a").getVersion();
+        for (int i = 1; i < 4; i++) {
+            versions[i] = retaining.update("a", new byte[]{(byte) i}, versions[i - 1]);
+        }
+
+        Assert.assertEquals(2, keptVersions());
+        for (int i = 1; i < 4; i++) {
+            Assert.assertArrayEquals(new byte[]{(byte) i}, retaining.load("a", versions[i]));
+        }
+        try {
+            retaining.load("a", versions[0]);
+            Assert.fail("only two superseded versions are kept");
+        } catch (UnknownResourceIdException e) {
+            // expected.
+        }
+    }
+
+    @Test
+    public void retainedVersionsSurviveReopen() {
+        ByteArrayRepo retaining = new ByteArrayRepo.Builder(dir).retainedVersions(1).build();
+        retaining.save("a", new byte[]{0x1});
+        long version = retaining.loadEntry("a").getVersion();
+        retaining.update("a", new byte[]{0x2});
+        retaining.close();
+
+        Assert.assertArrayEquals(new byte[]{0x1}, new ByteArrayRepo.Builder(dir).retainedVersions(1).build().load("a", version));
+    }
+
+    @Test
+    public void lowerRetentionTrimsOnOpening() {
+        ByteArrayRepo retaining = new ByteArrayRepo.Builder(dir).retainedVersions(3).build();
+        retaining.save("a", new byte[]{0x1});
+        retaining.update("a", new byte[]{0x2});
+        retaining.update("a", new byte[]{0x3});
+        retaining.close();
+        Assert.assertEquals(2, keptVersions());
+
+        new ByteArrayRepo.Builder(dir).retainedVersions(1).build().close();
+
+        Assert.assertEquals(1, keptVersions());
+    }
+
+    @Test
+    public void deletingDropsTheHistory() {
+        ByteArrayRepo retaining = new ByteArrayRepo.Builder(dir).retainedVersions(2).build();
+        retaining.save("a", new byte[]{0x1});
+        retaining.update("a", new byte[]{0x2});
+        retaining.delete("a");
+
+        Assert.assertEquals(0, keptVersions());
+    }
+
+    @Test
+    public void marshallingSnapshotUnmarshalls() {
+        MarshallingRepository<String> marshalling = new MarshallingRepository<String>(repo, new XStreamSerializer<String>());
+        marshalling.save("a", "before");
+        Snapshot<String> snapshot = marshalling.snapshot();
+        marshalling.update("a", "after");
+
+        Assert.assertEquals("before", snapshot.load("a"));
+        snapshot.close();
+    }
+
+    @Test
+    public void snapshotReadsAreRepeatableWhileWriting() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            repo.save("entry" + i, new byte[]{0});
+        }
+        final AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> writer = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (byte round = 1; !stop.get(); round++) {
+                        for (int i = 0; i < 20; i++) {
+                            repo.update("entry" + i, new byte[]{round});
+                        }
+                        repo.saveOrUpdate("churn", new byte[]{round});
+                        repo.delete("churn");
+                    }
+                }
+            });
+
+            Snapshot<byte[]> snapshot = repo.snapshot();
+            Map<String, Byte> first = contents(snapshot);
+            Thread.sleep(50);
+            Map<String, Byte> second = contents(snapshot);
+            snapshot.close();
+            stop.set(true);
+            writer.get();
+
+            Assert.assertEquals(first, second);
+            first.remove("churn");
+            Assert.assertEquals(20, first.size());
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(0, keptVersions());
+    }
+}
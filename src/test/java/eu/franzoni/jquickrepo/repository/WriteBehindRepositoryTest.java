@@ -0,0 +1,361 @@
+package eu.franzoni.jquickrepo.repository;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WriteBehindRepositoryTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private ByteArrayRepo diskRepo;
+    private WriteBehindRepository<byte[]> repo;
+
+    @Before
+    public void setUp() throws Exception {
+        diskRepo = new ByteArrayRepo(tempFolder.getRoot());
+        // flushed only when asked to, unless a test says otherwise.
+        repo = new WriteBehindRepository<byte[]>(diskRepo, 1000, 1, TimeUnit.HOURS);
+    }
+
+    @After
+    public void tearDown() {
+        repo.close();
+    }
+
+    private static void awaitTrue(String what, Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.holds()) {
+            if (System.nanoTime() > deadline) {
+                Assert.fail(what);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    @Test
+    public void writesToTheSameIdAreCoalesced() {
+        for (int i = 0; i < 100; i++) {
+            repo.saveOrUpdate("hot", new byte[]{(byte) i});
+        }
+
+        Assert.assertArrayEquals(new byte[]{99}, repo.load("hot"));
+        Assert.assertFalse(diskRepo.exists("hot"));
+
+        repo.flush();
+        Assert.assertArrayEquals(new byte[]{99}, diskRepo.load("hot"));
+        Assert.assertEquals(100, repo.getBufferedWriteCount());
+        Assert.assertEquals(1, repo.getPersistedWriteCount());
+        Assert.assertEquals(0, repo.getDirtyCount());
+    }
+
+    @Test
+    public void readsSeeBufferedWrites() {
+        diskRepo.save("stored", new byte[]{1});
+        diskRepo.save("deleted", new byte[]{2});
+
+        repo.save("buffered", new byte[]{3});
+        repo.update("stored", new byte[]{4});
+        repo.delete("deleted");
+
+        Assert.assertArrayEquals(new byte[]{3}, repo.load("buffered"));
+        Assert.assertArrayEquals(new byte[]{4}, repo.load("stored"));
+        Assert.assertTrue(repo.exists("buffered"));
+        Assert.assertFalse(repo.exists("deleted"));
+        Assert.assertEquals(Arrays.asList("buffered", "stored"), repo.keys());
+        Assert.assertEquals(Arrays.asList("buffered"), repo.keys("b"));
+        Assert.assertEquals(2, repo.size());
+        try {
+            repo.load("deleted");
+            Assert.fail("deleted entry was loaded");
+        } catch (UnknownResourceIdException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void checksTakeBufferedWritesIntoAccount() {
+        repo.save("some", new byte[]{1});
+        try {
+            repo.save("some", new byte[]{2});
+            Assert.fail("saved twice");
+        } catch (DuplicateResourceIdException e) {
+            // expected
+        }
+
+        repo.delete("some");
+        try {
+            repo.update("some", new byte[]{3});
+            Assert.fail("deleted entry was updated");
+        } catch (MissingIdException e) {
+            // expected
+        }
+        try {
+            repo.delete("some");
+            Assert.fail("deleted twice");
+        } catch (UnknownResourceIdException e) {
+            // expected
+        }
+
+        repo.save("some", new byte[]{4});
+        repo.flush();
+        Assert.assertArrayEquals(new byte[]{4}, diskRepo.load("some"));
+    }
+
+    @Test(expected = BadIdException.class)
+    public void badIdsAreRefusedWhenWritten() {
+        repo.saveOrUpdate("../outside", new byte[]{1});
+    }
+
+    @Test
+    public void entriesSavedAndDeletedBeforeFlushingAreNeverWritten() {
+        repo.save("transient", new byte[]{1});
+        repo.delete("transient");
+        repo.flush();
+
+        Assert.assertFalse(diskRepo.exists("transient"));
+        Assert.assertTrue(ByteArrayRepoTest.entryNames(tempFolder.getRoot()).isEmpty());
+    }
+
+    @Test
+    public void modifyWhileLockingSeesBufferedValue() {
+        repo.save("counter", new byte[]{0});
+        for (int i = 0; i < 10; i++) {
+            repo.modifyWhileLocking("counter", new DoWhileLocking<byte[]>() {
+                @Override
+                public byte[] execute(byte[] data) {
+                    return new byte[]{(byte) (data[0] + 1)};
+                }
+            });
+        }
+        repo.modifyWhileLocking("missing", new DoWhileLocking<byte[]>() {
+            @Override
+            public byte[] execute(byte[] data) {
+                return new byte[]{(byte) (data[0] + 1)};
+            }
+        }, new byte[]{41});
+
+        repo.flush();
+        Assert.assertArrayEquals(new byte[]{10}, diskRepo.load("counter"));
+        Assert.assertArrayEquals(new byte[]{42}, diskRepo.load("missing"));
+    }
+
+    @Test
+    public void versionedOperationsPersistTheIdFirst() {
+        repo.save("some", new byte[]{1});
+        Entry<byte[]> entry = repo.loadEntry("some");
+        Assert.assertArrayEquals(new byte[]{1}, entry.getContent());
+        Assert.assertTrue(diskRepo.exists("some"));
+
+        repo.update("some", new byte[]{2});
+        Assert.assertFalse(repo.compareAndSet("some", entry.getVersion(), new byte[]{3}));
+        Assert.assertArrayEquals(new byte[]{2}, diskRepo.load("some"));
+
+        Entry<byte[]> updated = repo.loadEntry("some");
+        repo.update("some", new byte[]{4}, updated.getVersion());
+        Assert.assertArrayEquals(new byte[]{4}, diskRepo.load("some"));
+    }
+
+    @Test
+    public void batchesAreCheckedAgainstBufferedWrites() {
+        repo.save("some", new byte[]{1});
+        try {
+            repo.apply(new Batch<byte[]>().save("other", new byte[]{2}).save("some", new byte[]{3}));
+            Assert.fail("saved twice");
+        } catch (DuplicateResourceIdException e) {
+            // expected
+        }
+        Assert.assertFalse(repo.exists("other"));
+
+        repo.apply(new Batch<byte[]>().save("other", new byte[]{2}).delete("some"));
+        Assert.assertEquals(Arrays.asList("other"), repo.keys());
+    }
+
+    @Test
+    public void loadAllFlushesFirst() {
+        repo.save("one", new byte[]{1});
+        repo.save("two", new byte[]{2});
+
+        Assert.assertEquals(2, repo.loadAll().size());
+        Assert.assertEquals(0, repo.getDirtyCount());
+        Assert.assertEquals(2, diskRepo.size());
+    }
+
+    @Test
+    public void dirtyIdsAreFlushedAfterTheInterval() throws Exception {
+        final WriteBehindRepository<byte[]> timed = new WriteBehindRepository<byte[]>(diskRepo, 1000, 20, TimeUnit.MILLISECONDS);
+        try {
+            // the flusher is idle by then, with no deadline.
+            Thread.sleep(50);
+            timed.save("some", new byte[]{1});
+            awaitTrue("not flushed in time", new Condition() {
+                @Override
+                public boolean holds() {
+                    return diskRepo.exists("some");
+                }
+            });
+            Assert.assertEquals(0, timed.getDirtyCount());
+        } finally {
+            timed.close();
+        }
+    }
+
+    @Test
+    public void dirtyIdsAreFlushedOnceHalfOfMaxDirty() throws Exception {
+        final WriteBehindRepository<byte[]> sized = new WriteBehindRepository<byte[]>(diskRepo, 4, 1, TimeUnit.HOURS);
+        try {
+            sized.save("one", new byte[]{1});
+            sized.save("two", new byte[]{2});
+            awaitTrue("not flushed when half full", new Condition() {
+                @Override
+                public boolean holds() {
+                    return diskRepo.size() == 2;
+                }
+            });
+        } finally {
+            sized.close();
+        }
+    }
+
+    @Test
+    public void failingFlushesBackOff() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        ByteArrayRepo flaky = new ByteArrayRepo(tempFolder.newFolder("flaky")) {
+            @Override
+            public void saveOrUpdate(String id, byte[] data) {
+                attempts.incrementAndGet();
+                if (failing.get()) {
+                    throw new RuntimeException("disk full");
+                }
+                super.saveOrUpdate(id, data);
+            }
+        };
+        WriteBehindRepository<byte[]> sized = new WriteBehindRepository<byte[]>(flaky, 4, 1, TimeUnit.HOURS);
+        try {
+            sized.save("one", new byte[]{1});
+            sized.save("two", new byte[]{2});
+            Thread.sleep(300);
+            // a few retries, rather than one after the other.
+            Assert.assertTrue(attempts.get() > 0);
+            Assert.assertTrue(String.valueOf(attempts.get()), attempts.get() < 50);
+            Assert.assertEquals(2, sized.getDirtyCount());
+        } finally {
+            failing.set(false);
+            sized.close();
+        }
+        Assert.assertArrayEquals(new byte[]{2}, flaky.load("two"));
+    }
+
+    @Test
+    public void closePersistsAndRefusesLaterWrites() {
+        repo.save("some", new byte[]{1});
+        repo.close();
+
+        Assert.assertArrayEquals(new byte[]{1}, diskRepo.load("some"));
+        Assert.assertArrayEquals(new byte[]{1}, repo.load("some"));
+        try {
+            repo.save("other", new byte[]{2});
+            Assert.fail("written after close");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void modifyingNeverTouchesWhatLoadsWereServed() {
+        repo.save("some", new byte[]{1});
+        byte[] loaded = repo.load("some");
+
+        repo.modifyWhileLocking("some", new DoWhileLocking<byte[]>() {
+            @Override
+            public byte[] execute(byte[] data) {
+                data[0] = 2;
+                return data;
+            }
+        });
+
+        Assert.assertArrayEquals(new byte[]{1}, loaded);
+        Assert.assertArrayEquals(new byte[]{2}, repo.load("some"));
+    }
+
+    @Test
+    public void modifyingCopiesKeepsTheIdBuffered() {
+        WriteBehindRepository<byte[]> copying = new WriteBehindRepository<byte[]>(diskRepo, 1000, 1, TimeUnit.HOURS, new Copier<byte[]>() {
+            @Override
+            public byte[] copy(byte[] original) {
+                return original.clone();
+            }
+        });
+        try {
+            copying.save("some", new byte[]{1});
+            byte[] loaded = copying.load("some");
+            copying.modifyWhileLocking("some", new DoWhileLocking<byte[]>() {
+                @Override
+                public byte[] execute(byte[] data) {
+                    data[0]++;
+                    return data;
+                }
+            });
+
+            Assert.assertArrayEquals(new byte[]{1}, loaded);
+            Assert.assertArrayEquals(new byte[]{2}, copying.load("some"));
+            Assert.assertFalse(diskRepo.exists("some"));
+        } finally {
+            copying.close();
+        }
+    }
+
+    @Test
+    public void concurrentWritersLoseNoUpdate() throws Exception {
+        final MarshallingRepository<Integer> counters = new MarshallingRepository<Integer>(tempFolder.newFolder("counters"));
+        final WriteBehindRepository<Integer> buffered = new WriteBehindRepository<Integer>(counters, 2, 1, TimeUnit.MILLISECONDS);
+        final int threads = 4;
+        final int increments = 250;
+
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < increments; i++) {
+                        // a few ids over a tiny buffer: writers wait for room, flushes overlap writes.
+                        buffered.modifyWhileLocking("counter" + (i % 3), new DoWhileLocking<Integer>() {
+                            @Override
+                            public Integer execute(Integer data) {
+                                return data + 1;
+                            }
+                        }, 0);
+                    }
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        buffered.close();
+
+        int total = 0;
+        for (int i = 0; i < 3; i++) {
+            total += counters.load("counter" + i);
+        }
+        Assert.assertEquals(threads * increments, total);
+    }
+}
@@ -0,0 +1,176 @@
+package eu.franzoni.jquickrepo.serialization;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class CompressingSerializerTest {
+
+    private static List<String> sampleList(int size) {
+        List<String> data = new ArrayList<String>();
+        for (int i = 0; i < size; i++) {
+            data.add("element number " + i);
+        }
+        return data;
+    }
+
+    private static void assertRoundTrips(Serializer<List<String>> serializer, List<String> data) throws IOException {
+        Assert.assertEquals(data, serializer.deserialize(serializer.serialize(data)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(data, out);
+        Assert.assertEquals(data, serializer.deserialize(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    @Test
+    public void deflateRoundTripsAndCompresses() throws Exception {
+        XStreamSerializer<List<String>> xstream = new XStreamSerializer<List<String>>();
+        CompressingSerializer<List<String>> compressing = new CompressingSerializer<List<String>>(xstream);
+
+        assertRoundTrips(compressing, sampleList(100));
+        Assert.assertTrue(compressing.serialize(sampleList(100)).length * 5 < xstream.serialize(sampleList(100)).length);
+    }
+
+    @Test
+    public void lzfRoundTripsAndCompresses() throws Exception {
+        XStreamSerializer<List<String>> xstream = new XStreamSerializer<List<String>>();
+        CompressingSerializer<List<String>> compressing = new CompressingSerializer<List<String>>(xstream, CompressionCodec.lzf(), 0);
+
+        assertRoundTrips(compressing, sampleList(100));
+        Assert.assertTrue(compressing.serialize(sampleList(100)).length * 3 < xstream.serialize(sampleList(100)).length);
+    }
+
+    @Test
+    public void lzfRoundTripsAnyData() {
+        CompressionCodec lzf = CompressionCodec.lzf();
+        Random random = new Random(42);
+        for (int size : new int[]{3, 100, 1000, 100000}) {
+            byte[] data = new byte[size];
+            // short runs of a few symbols: some matches, some literals, long and short.
+            for (int i = 0; i < size; i++) {
+                data[i] = (byte) (random.nextInt(8) < 6 ? i / 64 : random.nextInt(4));
+            }
+            byte[] compressed = lzf.compress(data, size);
+            if (compressed != null) {
+                Assert.assertArrayEquals(data, lzf.decompress(compressed, 0, compressed.length, size));
+            }
+        }
+        byte[] zeroes = new byte[100000];
+        byte[] compressed = lzf.compress(zeroes, zeroes.length);
+        // at most 264 bytes per 3 byte back reference.
+        Assert.assertTrue(compressed.length < 1200);
+        Assert.assertArrayEquals(zeroes, lzf.decompress(compressed, 0, compressed.length, zeroes.length));
+    }
+
+    @Test
+    public void incompressibleDataIsStoredAsItIs() {
+        byte[] data = new byte[1000];
+        new Random(42).nextBytes(data);
+
+        Assert.assertNull(CompressionCodec.lzf().compress(data, data.length));
+        Assert.assertNull(CompressionCodec.deflate().compress(data, data.length));
+    }
+
+    @Test
+    public void smallDataIsNotCompressed() {
+        XStreamSerializer<List<String>> xstream = new XStreamSerializer<List<String>>();
+        CompressingSerializer<List<String>> compressing = new CompressingSerializer<List<String>>(xstream, CompressionCodec.deflate(), 10000);
+
+        Assert.assertArrayEquals(xstream.serialize(sampleList(10)), compressing.serialize(sampleList(10)));
+    }
+
+    @Test
+    public void dataWrittenWithoutCompressionOrWithAnotherCodecIsReadable() {
+        XStreamSerializer<List<String>> xstream = new XStreamSerializer<List<String>>();
+        CompressingSerializer<List<String>> deflate = new CompressingSerializer<List<String>>(xstream);
+        CompressingSerializer<List<String>> lzf = new CompressingSerializer<List<String>>(xstream, CompressionCodec.lzf(), 0);
+
+        Assert.assertEquals(sampleList(100), deflate.deserialize(xstream.serialize(sampleList(100))));
+        Assert.assertEquals(sampleList(100), deflate.deserialize(lzf.serialize(sampleList(100))));
+        Assert.assertEquals(sampleList(100), lzf.deserialize(deflate.serialize(sampleList(100))));
+    }
+
+    @Test
+    public void dataLookingLikeAHeaderRoundTrips() {
+        Serializer<byte[]> bytes = new AbstractSerializer<byte[]>() {
+            @Override
+            public void serialize(byte[] obj, OutputStream out) throws IOException {
+                out.write(obj);
+            }
+
+            @Override
+            public byte[] deserialize(InputStream in) throws IOException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                int b;
+                while ((b = in.read()) >= 0) {
+                    out.write(b);
+                }
+                return out.toByteArray();
+            }
+        };
+        CompressingSerializer<byte[]> compressing = new CompressingSerializer<byte[]>(bytes);
+        byte[] tricky = {(byte) 0x8f, 'J', 'Q', 'Z', 1, 2};
+
+        Assert.assertArrayEquals(tricky, compressing.deserialize(compressing.serialize(tricky)));
+        Assert.assertArrayEquals(new byte[]{1, 2}, compressing.deserialize(compressing.serialize(new byte[]{1, 2})));
+    }
+
+    @Test
+    public void dictionaryHelpsSmallEntries() throws Exception {
+        XStreamSerializer<List<String>> xstream = new XStreamSerializer<List<String>>();
+        byte[] dictionary = xstream.serialize(sampleList(3));
+        CompressingSerializer<List<String>> plain = new CompressingSerializer<List<String>>(xstream, CompressionCodec.deflate(), 0);
+        CompressingSerializer<List<String>> withDictionary = new CompressingSerializer<List<String>>(xstream, CompressionCodec.deflate(9, dictionary), 0);
+
+        assertRoundTrips(withDictionary, sampleList(4));
+        Assert.assertTrue(withDictionary.serialize(sampleList(4)).length < plain.serialize(sampleList(4)).length);
+    }
+
+    @Test(expected = SerializationException.class)
+    public void anotherDictionaryIsRefused() {
+        XStreamSerializer<List<String>> xstream = new XStreamSerializer<List<String>>();
+        CompressingSerializer<List<String>> one = new CompressingSerializer<List<String>>(xstream, CompressionCodec.deflate(9, "<list><string>".getBytes(StandardCharsets.UTF_8)), 0);
+        CompressingSerializer<List<String>> other = new CompressingSerializer<List<String>>(xstream, CompressionCodec.deflate(9, "<string></string>".getBytes(StandardCharsets.UTF_8)), 0);
+
+        other.deserialize(one.serialize(sampleList(4)));
+    }
+
+    @Test
+    public void tamperedHeadersAreRefusedBeforeAllocating() {
+        CompressingSerializer<List<String>> compressing = new CompressingSerializer<List<String>>(new XStreamSerializer<List<String>>(), CompressionCodec.lzf(), 0, 1 << 20);
+        byte[] data = compressing.serialize(sampleList(100));
+        int length = ByteBuffer.wrap(data).getInt(5);
+        int[][] tampered = {{Integer.MAX_VALUE, Integer.MAX_VALUE}, {(1 << 20) + 1, 100}, {-1, 100}, {length, -1}, {length, length + 1}};
+
+        for (int[] header : tampered) {
+            byte[] copy = data.clone();
+            ByteBuffer.wrap(copy).putInt(5, header[0]).putInt(9, header[1]);
+            try {
+                compressing.deserialize(copy);
+                Assert.fail("accepted length " + header[0] + ", compressed length " + header[1]);
+            } catch (SerializationException e) {
+                Assert.assertTrue(e.getMessage().contains("corrupt compression header"));
+            }
+        }
+    }
+
+    @Test(expected = SerializationException.class)
+    public void truncatedDataIsRefused() {
+        CompressingSerializer<List<String>> compressing = new CompressingSerializer<List<String>>(new XStreamSerializer<List<String>>(), CompressionCodec.lzf(), 0);
+        byte[] data = compressing.serialize(sampleList(100));
+        byte[] truncated = new byte[data.length - 10];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+        compressing.deserialize(truncated);
+    }
+}
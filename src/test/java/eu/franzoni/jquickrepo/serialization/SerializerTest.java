@@ -0,0 +1,87 @@
+package eu.franzoni.jquickrepo.serialization;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SerializerTest {
+
+    private static List<String> sampleList() {
+        List<String> data = new ArrayList<String>();
+        data.add("ciao");
+        data.add("mamma");
+        return data;
+    }
+
+    private static class StringListSerializer extends DataSerializer<List<String>> {
+
+        @Override
+        protected void write(List<String> obj, DataOutput out) throws IOException {
+            out.writeInt(obj.size());
+            for (String s : obj) {
+                out.writeUTF(s);
+            }
+        }
+
+        @Override
+        protected List<String> read(DataInput in) throws IOException {
+            int size = in.readInt();
+            List<String> data = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) {
+                data.add(in.readUTF());
+            }
+            return data;
+        }
+    }
+
+    private static void assertRoundTrips(Serializer<List<String>> serializer) throws IOException {
+        List<String> data = sampleList();
+        Assert.assertEquals(data, serializer.deserialize(serializer.serialize(data)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(data, out);
+        Assert.assertEquals(data, serializer.deserialize(new ByteArrayInputStream(out.toByteArray())));
+        Assert.assertArrayEquals(serializer.serialize(data), out.toByteArray());
+    }
+
+    @Test
+    public void xstreamSerializerRoundTrips() throws Exception {
+        assertRoundTrips(new XStreamSerializer<List<String>>());
+    }
+
+    @Test
+    public void javaSerializerRoundTrips() throws Exception {
+        assertRoundTrips(new JavaSerializer<List<String>>());
+    }
+
+    @Test
+    public void dataSerializerRoundTrips() throws Exception {
+        assertRoundTrips(new StringListSerializer());
+    }
+
+    @Test
+    public void dataSerializerIsSmallerThanXml() throws Exception {
+        Assert.assertTrue(new StringListSerializer().serialize(sampleList()).length
+                < new XStreamSerializer<List<String>>().serialize(sampleList()).length);
+    }
+
+    @Test(expected = SerializationException.class)
+    public void truncatedDataThrowsSerializationException() throws Exception {
+        byte[] data = new StringListSerializer().serialize(sampleList());
+        byte[] truncated = new byte[data.length - 1];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        new StringListSerializer().deserialize(truncated);
+    }
+
+    @Test(expected = SerializationException.class)
+    public void badXmlThrowsSerializationException() throws Exception {
+        new XStreamSerializer<List<String>>().deserialize("<list><string>".getBytes("UTF-8"));
+    }
+}